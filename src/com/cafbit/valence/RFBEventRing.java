@@ -0,0 +1,349 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cafbit.valence;
+
+import java.util.concurrent.locks.LockSupport;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * A single-producer/single-consumer ring of preallocated, mutable event
+ * slots which carries input events from the UI thread to the sender
+ * thread.  Unlike posting a Message wrapping a new event object, this
+ * allocates nothing per event and avoids a Looper hop.
+ *
+ * The producer (the UI thread) fills slots and then publishes them by
+ * advancing the tail.  Publication is deferred while a batch is open,
+ * so that all of the events from one burst of input become visible to
+ * the consumer at once.  The consumer (the sender thread) parks when
+ * the ring is empty, and is unparked by the producer on publish.
+ *
+ * Overflow policy: if the ring is full, plain pointer moves are merged
+ * into a single accumulated move, and everything else (clicks, scroll
+ * and key events) is held in an overflow queue on the producer side.
+ * Nothing but intermediate move positions is ever dropped.  The
+ * overflow queue is retried from the producer's Looper until the
+ * consumer catches up.
+ */
+public class RFBEventRing {
+
+    public static final int TYPE_POINTER = 1;
+    public static final int TYPE_KEY = 2;
+
+    private static final long OVERFLOW_RETRY_DELAY = 5; // milliseconds
+
+    /**
+     * One event.  Pointer events use dt/dx/dy/buttons/sx/sy/fling, and
+     * key events use keysym/modifierKeysym.
+     */
+    public static class Slot {
+        public int type;
+        public long dt;
+        public float dx, dy;
+        public boolean button1;
+        public boolean button2;
+        public float sx, sy;
+        public boolean fling;
+        public int keysym;
+        public int modifierKeysym;
+
+        private void copy(Slot other) {
+            type = other.type;
+            dt = other.dt;
+            dx = other.dx;
+            dy = other.dy;
+            button1 = other.button1;
+            button2 = other.button2;
+            sx = other.sx;
+            sy = other.sy;
+            fling = other.fling;
+            keysym = other.keysym;
+            modifierKeysym = other.modifierKeysym;
+        }
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+
+    // consumer-owned
+    private volatile long head = 0;
+    // published by the producer
+    private volatile long tail = 0;
+    private volatile boolean consumerWaiting = false;
+    private volatile Thread consumer = null;
+
+    // producer-only state
+    private long producerTail = 0;
+    private int batchDepth = 0;
+    private boolean lastButton1 = false;
+    private boolean lastButton2 = false;
+    private Slot[] overflow = new Slot[0];
+    private int overflowHead = 0;
+    private int overflowCount = 0;
+    private Slot overflowMove = new Slot();
+    private boolean overflowMovePending = false;
+    private Handler retryHandler;
+    private long overflowMerged = 0;
+
+    /**
+     * Create a ring with the given capacity, which is rounded up to a
+     * power of two.  This must be called on the producer's thread.
+     */
+    public RFBEventRing(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        slots = new Slot[size];
+        for (int i=0; i<size; i++) {
+            slots[i] = new Slot();
+        }
+        mask = size - 1;
+        if (Looper.myLooper() != null) {
+            retryHandler = new Handler();
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////
+    // producer side
+    //////////////////////////////////////////////////////////////////////
+
+    /**
+     * Defer publication until the matching endBatch(), so the consumer
+     * sees the whole burst at once.  Batches may nest.
+     */
+    public void beginBatch() {
+        batchDepth++;
+    }
+
+    public void endBatch() {
+        if (batchDepth > 0) {
+            batchDepth--;
+        }
+        if (batchDepth == 0) {
+            publish();
+        }
+    }
+
+    public void offerPointer(long dt, float dx, float dy, boolean button1, boolean button2, float sx, float sy, boolean fling) {
+        boolean isMove = (sx == 0.0f) && (sy == 0.0f) && (! fling) &&
+            (button1 == lastButton1) && (button2 == lastButton2);
+        lastButton1 = button1;
+        lastButton2 = button2;
+
+        drainOverflow();
+        if ((overflowCount == 0) && (! overflowMovePending) && hasCapacity()) {
+            Slot slot = slots[(int)(producerTail & mask)];
+            slot.type = TYPE_POINTER;
+            slot.dt = dt;
+            slot.dx = dx;
+            slot.dy = dy;
+            slot.button1 = button1;
+            slot.button2 = button2;
+            slot.sx = sx;
+            slot.sy = sy;
+            slot.fling = fling;
+            producerTail++;
+        } else if (isMove) {
+            // merge into the accumulated overflow move
+            if (overflowMovePending) {
+                overflowMove.dt += dt;
+                overflowMove.dx += dx;
+                overflowMove.dy += dy;
+                overflowMerged++;
+            } else {
+                overflowMove.type = TYPE_POINTER;
+                overflowMove.dt = dt;
+                overflowMove.dx = dx;
+                overflowMove.dy = dy;
+                overflowMove.button1 = button1;
+                overflowMove.button2 = button2;
+                overflowMove.sx = 0.0f;
+                overflowMove.sy = 0.0f;
+                overflowMove.fling = false;
+                overflowMovePending = true;
+            }
+        } else {
+            Slot slot = queueOverflow();
+            slot.type = TYPE_POINTER;
+            slot.dt = dt;
+            slot.dx = dx;
+            slot.dy = dy;
+            slot.button1 = button1;
+            slot.button2 = button2;
+            slot.sx = sx;
+            slot.sy = sy;
+            slot.fling = fling;
+        }
+        if (batchDepth == 0) {
+            publish();
+        }
+    }
+
+    public void offerKey(int keysym, int modifierKeysym) {
+        drainOverflow();
+        Slot slot;
+        if ((overflowCount == 0) && (! overflowMovePending) && hasCapacity()) {
+            slot = slots[(int)(producerTail & mask)];
+            producerTail++;
+        } else {
+            slot = queueOverflow();
+        }
+        slot.type = TYPE_KEY;
+        slot.keysym = keysym;
+        slot.modifierKeysym = modifierKeysym;
+        if (batchDepth == 0) {
+            publish();
+        }
+    }
+
+    /**
+     * Return the number of pointer moves which were merged because the
+     * ring was full.
+     */
+    public long getOverflowMerged() {
+        return overflowMerged;
+    }
+
+    private boolean hasCapacity() {
+        return (producerTail - head) < slots.length;
+    }
+
+    /**
+     * Reserve a slot at the end of the overflow queue, growing it if
+     * needed.  Any accumulated move is queued first to preserve order.
+     */
+    private Slot queueOverflow() {
+        if (overflowMovePending) {
+            overflowMovePending = false;
+            queueOverflow().copy(overflowMove);
+        }
+        if (overflowCount == overflow.length) {
+            Slot[] bigger = new Slot[(overflow.length == 0) ? 16 : overflow.length*2];
+            for (int i=0; i<overflowCount; i++) {
+                bigger[i] = overflow[(overflowHead+i) % overflow.length];
+            }
+            for (int i=overflowCount; i<bigger.length; i++) {
+                bigger[i] = new Slot();
+            }
+            overflow = bigger;
+            overflowHead = 0;
+        }
+        Slot slot = overflow[(overflowHead+overflowCount) % overflow.length];
+        overflowCount++;
+        return slot;
+    }
+
+    /**
+     * Move as much of the overflow as possible into the ring.
+     */
+    private void drainOverflow() {
+        while ((overflowCount > 0) && hasCapacity()) {
+            slots[(int)(producerTail & mask)].copy(overflow[overflowHead]);
+            producerTail++;
+            overflowHead = (overflowHead + 1) % overflow.length;
+            overflowCount--;
+        }
+        if ((overflowCount == 0) && overflowMovePending && hasCapacity()) {
+            slots[(int)(producerTail & mask)].copy(overflowMove);
+            producerTail++;
+            overflowMovePending = false;
+        }
+    }
+
+    private void publish() {
+        if (tail != producerTail) {
+            tail = producerTail;
+            if (consumerWaiting) {
+                LockSupport.unpark(consumer);
+            }
+        }
+        if (((overflowCount > 0) || overflowMovePending) && (retryHandler != null)) {
+            retryHandler.removeCallbacks(overflowRetry);
+            retryHandler.postDelayed(overflowRetry, OVERFLOW_RETRY_DELAY);
+        }
+    }
+
+    private Runnable overflowRetry = new Runnable() {
+        @Override
+        public void run() {
+            drainOverflow();
+            publish();
+        }
+    };
+
+    //////////////////////////////////////////////////////////////////////
+    // consumer side
+    //////////////////////////////////////////////////////////////////////
+
+    /**
+     * Return the next published slot, or null if the ring is empty.
+     * The slot remains valid until release() is called.
+     */
+    public Slot peek() {
+        long h = head;
+        if (h == tail) {
+            return null;
+        }
+        return slots[(int)(h & mask)];
+    }
+
+    /**
+     * Hand the slot returned by peek() back to the producer.
+     */
+    public void release() {
+        head = head + 1;
+    }
+
+    /**
+     * Park the calling (consumer) thread until the producer publishes
+     * something, or until wakeup() is called.
+     */
+    public void await() {
+        await(-1);
+    }
+
+    /**
+     * As await(), but return after at most "timeout" milliseconds,
+     * unless it's negative.
+     */
+    public void await(long timeout) {
+        consumer = Thread.currentThread();
+        consumerWaiting = true;
+        if (head == tail) {
+            if (timeout < 0) {
+                LockSupport.park(this);
+            } else {
+                LockSupport.parkNanos(this, timeout * 1000000L);
+            }
+        }
+        consumerWaiting = false;
+    }
+
+    /**
+     * Unpark the consumer, e.g. to let it notice a shutdown.
+     */
+    public void wakeup() {
+        Thread thread = consumer;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+}
@@ -17,21 +17,26 @@
 
 package com.cafbit.valence;
 
-import java.net.Socket;
+import java.io.EOFException;
 
 import com.cafbit.valence.RFBThread.RFBThreadHandler;
+import com.cafbit.valence.rfb.RFBConnection;
+import com.cafbit.valence.rfb.RFBDecoder;
+import com.cafbit.valence.rfb.RFBTransport;
 
 public class RFBRecvThread extends Thread {
 
     private static int serial = 0;
 
     private RFBThreadHandler parentHandler;
-    private Socket socket;
+    private RFBConnection conn;
+    private RFBTransport transport;
     private boolean valid = true;
 
-    public RFBRecvThread(RFBThreadHandler handler, Socket socket) {
+    public RFBRecvThread(RFBThreadHandler handler, RFBConnection conn) {
         this.parentHandler = handler;
-        this.socket = socket;
+        this.conn = conn;
+        this.transport = conn.getTransport();
         setName("rfbrecv-"+(serial++));
     }
 
@@ -41,16 +46,55 @@ public class RFBRecvThread extends Thread {
 
     @Override
     public void run() {
-        if (socket == null) {
+        if (transport == null) {
             // demo mode
             return;
         }
+        if (conn.isFramebufferEnabled()) {
+            decodeMessages();
+        } else {
+            gobble();
+        }
+    }
+
+    /**
+     * Apply server messages to the connection's framebuffer.
+     */
+    private void decodeMessages() {
+        try {
+            transport.setReadTimeout(0);
+            while (true) {
+                int type = conn.processServerMessage();
+                if ((type == RFBDecoder.MSG_FRAMEBUFFER_UPDATE) ||
+                    (type == RFBDecoder.MSG_END_OF_CONTINUOUS_UPDATES)) {
+                    // let the scheduler ask for more
+                    parentHandler.onFramebufferUpdate();
+                }
+            }
+        } catch (EOFException e) {
+            if (valid) {
+                parentHandler.onRecvDisconnect();
+            }
+        } catch (Exception e) {
+            if (valid) {
+                parentHandler.error(e);
+            }
+        } finally {
+            conn.releaseDecoder();
+        }
+    }
+
+    /**
+     * Input-only mode: we don't use received data.  This just gobbles
+     * bytes, on the off chance that the server sends us something.
+     */
+    private void gobble() {
         byte buffer[] = new byte[4096];
         while (true) {
             int ret;
             try {
-                socket.setSoTimeout(0);
-                ret = socket.getInputStream().read(buffer);
+                transport.setReadTimeout(0);
+                ret = transport.getInputStream().read(buffer);
             } catch (Exception e) {
                 if (valid) {
                     parentHandler.error(e);
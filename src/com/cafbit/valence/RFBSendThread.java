@@ -0,0 +1,150 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cafbit.valence;
+
+import java.io.IOException;
+
+import com.cafbit.valence.RFBThread.RFBThreadHandler;
+import com.cafbit.valence.rfb.RFBConnection;
+import com.cafbit.valence.rfb.RFBPointerEvent;
+
+/**
+ * Consumes input events from an RFBEventRing and writes them to the
+ * RFB connection.  Everything found in the ring on each wakeup is sent
+ * as a single batch, flushed early if it outlasts the connection's
+ * maximum batch latency.
+ */
+public class RFBSendThread extends Thread {
+
+    private static int serial = 0;
+
+    private RFBThreadHandler parentHandler;
+    private RFBConnection conn;
+    private RFBEventRing ring;
+    private volatile boolean valid = true;
+    private boolean sentInput = false;
+
+    // reused for every pointer event
+    private RFBPointerEvent rpe = new RFBPointerEvent();
+
+    public RFBSendThread(RFBThreadHandler handler, RFBConnection conn, RFBEventRing ring) {
+        this.parentHandler = handler;
+        this.conn = conn;
+        this.ring = ring;
+        setName("rfbsend-"+(serial++));
+    }
+
+    public void invalidate() {
+        valid = false;
+        ring.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (valid) {
+            try {
+                RFBEventRing.Slot slot = ring.peek();
+                if (slot == null) {
+                    // with pointer prediction, a pointer which has
+                    // stopped is glided back to its true position.
+                    // scroll clicks are written once per frame, and
+                    // flings continue after the fingers lift.
+                    long settleDelay = conn.getPointerSettleDelay();
+                    long scrollDelay = conn.getScrollDelay();
+                    if (settleDelay == 0) {
+                        conn.settlePointer();
+                    } else if (scrollDelay == 0) {
+                        conn.stepScroll();
+                    } else {
+                        ring.await(earliest(settleDelay, scrollDelay));
+                    }
+                    continue;
+                }
+                sendBatch();
+                if (! sentInput) {
+                    sentInput = true;
+                    parentHandler.onFirstInput();
+                }
+            } catch (IOException e) {
+                if (valid) {
+                    parentHandler.error(e);
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Return the sooner of two delays, where -1 means never.
+     */
+    private static long earliest(long a, long b) {
+        if (a < 0) {
+            return b;
+        } else if (b < 0) {
+            return a;
+        }
+        return Math.min(a, b);
+    }
+
+    /**
+     * Send everything in the ring to the server as one batch.  If the
+     * producer keeps the ring busy for longer than the connection's
+     * maximum batch latency, what has been collected so far (including
+     * any coalesced pointer position) is flushed without waiting for
+     * the ring to drain.
+     */
+    void sendBatch() throws IOException {
+        conn.beginBatch();
+        try {
+            long maxLatency = conn.getMaxBatchLatency() * 1000000L;
+            long flushTime = System.nanoTime();
+            RFBEventRing.Slot slot;
+            while ((slot = ring.peek()) != null) {
+                send(slot);
+                ring.release();
+                long now = System.nanoTime();
+                if ((now - flushTime) >= maxLatency) {
+                    conn.flushBatch();
+                    flushTime = now;
+                }
+            }
+        } finally {
+            conn.endBatch();
+        }
+    }
+
+    private void send(RFBEventRing.Slot slot) throws IOException {
+        switch (slot.type) {
+        case RFBEventRing.TYPE_POINTER:
+            rpe.dt = slot.dt;
+            rpe.dx = slot.dx;
+            rpe.dy = slot.dy;
+            rpe.button1 = slot.button1;
+            rpe.button2 = slot.button2;
+            rpe.sx = slot.sx;
+            rpe.sy = slot.sy;
+            rpe.fling = slot.fling;
+            conn.sendEvent(rpe);
+            break;
+        case RFBEventRing.TYPE_KEY:
+            conn.sendKey(slot.keysym, slot.modifierKeysym);
+            break;
+        }
+    }
+
+}
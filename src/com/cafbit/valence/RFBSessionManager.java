@@ -0,0 +1,383 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cafbit.valence;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import android.os.Handler;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.cafbit.valence.ValenceActivity.ValenceDetachedHandler;
+import com.cafbit.valence.ValenceActivity.ValenceHandler;
+import com.cafbit.valence.rfb.RFBReactor;
+
+/**
+ * Holds the application's RFB sessions, so that several servers can be
+ * connected at once and the user can switch between them without
+ * reconnecting.  Each session is an RFBThread with its own event ring;
+ * all of them share one RFBReactor for their socket I/O.
+ *
+ * A session is "attached" while an activity is showing it, and
+ * "paused" while that activity is in the background.  When the
+ * activity pauses or goes away, the session's idle timer starts, and
+ * the session is closed if nobody resumes or attaches to it before
+ * the timer runs out.  Until then it is kept warm, already
+ * authenticated, so that reopening the same server attaches
+ * instantly.  Idle sessions are health-checked periodically (and
+ * again when reattached), and if there are more than maxSessions, the
+ * least recently used detached session is closed to make room.  A
+ * paused session still belongs to its activity, so it is never closed
+ * to make room.
+ *
+ * This must only be used from the UI thread.
+ */
+public class RFBSessionManager {
+
+    public static final long DEFAULT_IDLE_TIMEOUT = 10*60*1000; // 10 minutes
+    public static final long WARM_UP_TIMEOUT = 30*1000; // 30 seconds
+    public static final int DEFAULT_MAX_SESSIONS = 4;
+    private static final long HEALTH_CHECK_INTERVAL = 60*1000; // 1 minute
+
+    private static class Session {
+        String key;
+        RFBThread thread;
+        long idleTimeout;
+        boolean attached = false;
+        // attached, but the activity is in the background
+        boolean paused = false;
+        // connected speculatively, and not yet claimed by an activity
+        boolean warmUp = false;
+        long lastUsed;
+    }
+
+    private ArrayList<Session> sessions = new ArrayList<Session>();
+    private long keepAliveTime = DEFAULT_IDLE_TIMEOUT;
+    private boolean pointerPrediction = false;
+    private boolean framebufferEnabled = false;
+    private int maxSessions = DEFAULT_MAX_SESSIONS;
+    private RFBReactor reactor = null;
+    private IdleHandler idleHandler = new IdleHandler();
+
+    public RFBSessionManager() {
+    }
+
+    /**
+     * Set how long (in milliseconds) sessions are kept open once no
+     * activity is showing them.  This applies to every session.
+     */
+    public void setKeepAliveTime(long keepAliveTime) {
+        this.keepAliveTime = keepAliveTime;
+        for (Session session : sessions) {
+            if (session.warmUp) {
+                continue;
+            }
+            session.idleTimeout = keepAliveTime;
+            if ((! session.attached) || session.paused) {
+                startIdleTimer(session);
+            }
+        }
+    }
+    public long getKeepAliveTime() {
+        return keepAliveTime;
+    }
+
+    /**
+     * Turn pointer prediction on or off for every session.
+     */
+    public void setPointerPrediction(boolean pointerPrediction) {
+        this.pointerPrediction = pointerPrediction;
+        for (Session session : sessions) {
+            session.thread.setPointerPrediction(pointerPrediction);
+        }
+    }
+    public boolean getPointerPrediction() {
+        return pointerPrediction;
+    }
+
+    /**
+     * Keep a copy of the remote screen in sessions added from now on,
+     * so the activity can show it.  Open sessions are unaffected.
+     */
+    public void setFramebufferEnabled(boolean framebufferEnabled) {
+        this.framebufferEnabled = framebufferEnabled;
+    }
+    public boolean isFramebufferEnabled() {
+        return framebufferEnabled;
+    }
+
+    public void setMaxSessions(int maxSessions) {
+        this.maxSessions = Math.max(1, maxSessions);
+    }
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    /**
+     * Return the live session for "key", or null if there isn't one.
+     */
+    public RFBThread find(String key) {
+        prune();
+        for (Session session : sessions) {
+            if (session.key.equals(key)) {
+                return session.thread;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Take charge of a new session, before it is started.  It will
+     * use the shared reactor if one can be opened.
+     */
+    public void add(String key, RFBThread thread) {
+        RFBThread existing = find(key);
+        if (existing != null) {
+            close(existing);
+        }
+        // make room by closing the least recently used idle session
+        while (sessions.size() >= maxSessions) {
+            Session lru = null;
+            for (Session session : sessions) {
+                if ((! session.attached) && ((lru == null) || (session.lastUsed < lru.lastUsed))) {
+                    lru = session;
+                }
+            }
+            if (lru == null) {
+                break;
+            }
+            Log.w("Valence", "Closing least recently used RFB session.");
+            close(lru.thread);
+        }
+        if (reactor == null) {
+            try {
+                reactor = RFBReactor.getShared();
+            } catch (IOException e) {
+                Log.w("Valence", "cannot start the RFB reactor; using blocking sockets", e);
+            }
+        }
+        if (reactor != null) {
+            thread.setReactor(reactor);
+        }
+        thread.setPointerPrediction(pointerPrediction);
+        thread.setFramebufferEnabled(framebufferEnabled);
+        Session session = new Session();
+        session.key = key;
+        session.thread = thread;
+        session.idleTimeout = keepAliveTime;
+        session.lastUsed = SystemClock.uptimeMillis();
+        sessions.add(session);
+    }
+
+    /**
+     * Speculatively connect and authenticate "thread" in the
+     * background, before any activity asks for it, so that a later
+     * attach() finds the session ready.  If no activity attaches to it
+     * within WARM_UP_TIMEOUT, it is closed.  Returns false (and doesn't
+     * start the thread) if a session for "key" is already open.
+     */
+    public boolean warmUp(String key, RFBThread thread) {
+        if (find(key) != null) {
+            return false;
+        }
+        add(key, thread);
+        Session session = get(thread);
+        session.warmUp = true;
+        session.idleTimeout = WARM_UP_TIMEOUT;
+        thread.setValenceHandler(new ValenceDetachedHandler());
+        startIdleTimer(session);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Set how long (in milliseconds) the session may sit unattached
+     * before it is closed.
+     */
+    public void setIdleTimeout(RFBThread thread, long idleTimeout) {
+        Session session = get(thread);
+        if (session != null) {
+            session.idleTimeout = idleTimeout;
+        }
+    }
+
+    public int getSessionCount() {
+        prune();
+        return sessions.size();
+    }
+
+    /**
+     * Show the session in an activity: events go to "handler", and
+     * the idle timer stops.  If the session connected while another
+     * handler was listening, "handler" is sent onConnect() too.  The
+     * activity resumes screen updates (if any) itself.
+     */
+    public void attach(RFBThread thread, ValenceHandler handler) {
+        Session session = get(thread);
+        if (session == null) {
+            return;
+        }
+        idleHandler.removeMessages(IdleHandler.MSG_IDLE, session);
+        idleHandler.removeMessages(IdleHandler.MSG_HEALTH_CHECK, session);
+        boolean wasIdle = ((! session.attached) || session.paused) && (! session.warmUp);
+        if (session.warmUp) {
+            session.warmUp = false;
+            session.idleTimeout = keepAliveTime;
+        }
+        session.attached = true;
+        session.paused = false;
+        session.lastUsed = SystemClock.uptimeMillis();
+        boolean newHandler = (thread.getValenceHandler() != handler);
+        thread.setValenceHandler(handler);
+        if (newHandler && thread.isConnected()) {
+            // the thread may have told the previous handler instead
+            handler.onConnect();
+        }
+        RFBThread.RFBThreadHandler rfbHandler = thread.getHandler();
+        if ((rfbHandler != null) && wasIdle && thread.isConnected()) {
+            // a warm session may have died quietly; find out now,
+            // rather than on the user's first keystroke.
+            rfbHandler.checkHealth();
+        }
+    }
+
+    /**
+     * The activity showing the session has paused (and has stopped
+     * its screen updates).  The idle timer starts, but the session
+     * stays attached until the activity resumes it with attach() or
+     * goes away.
+     */
+    public void pause(RFBThread thread) {
+        Session session = get(thread);
+        if (session == null) {
+            return;
+        }
+        session.lastUsed = SystemClock.uptimeMillis();
+        session.paused = true;
+        startIdleTimer(session);
+        scheduleHealthCheck(session);
+    }
+
+    /**
+     * The activity showing the session has gone away (for a
+     * configuration change, or because the user switched sessions).
+     */
+    public void detach(RFBThread thread) {
+        Session session = get(thread);
+        if (session == null) {
+            return;
+        }
+        session.attached = false;
+        session.paused = false;
+        session.lastUsed = SystemClock.uptimeMillis();
+        thread.setValenceHandler(new ValenceDetachedHandler());
+        RFBThread.RFBThreadHandler rfbHandler = thread.getHandler();
+        if (rfbHandler != null) {
+            rfbHandler.onDetach();
+        }
+        startIdleTimer(session);
+        scheduleHealthCheck(session);
+    }
+
+    /**
+     * Disconnect the session and forget it.
+     */
+    public void close(RFBThread thread) {
+        Session session = get(thread);
+        if (session != null) {
+            idleHandler.removeMessages(IdleHandler.MSG_IDLE, session);
+            idleHandler.removeMessages(IdleHandler.MSG_HEALTH_CHECK, session);
+            sessions.remove(session);
+        }
+        thread.quit();
+    }
+
+    private Session get(RFBThread thread) {
+        for (Session session : sessions) {
+            if (session.thread == thread) {
+                return session;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Forget sessions whose threads have ended (on error or server
+     * disconnect).
+     */
+    private void prune() {
+        for (int i=sessions.size()-1; i>=0; i--) {
+            Session session = sessions.get(i);
+            if (session.thread.isFinished()) {
+                idleHandler.removeMessages(IdleHandler.MSG_IDLE, session);
+                idleHandler.removeMessages(IdleHandler.MSG_HEALTH_CHECK, session);
+                sessions.remove(i);
+            }
+        }
+    }
+
+    private void startIdleTimer(Session session) {
+        idleHandler.removeMessages(IdleHandler.MSG_IDLE, session);
+        idleHandler.sendMessageAtTime(
+            Message.obtain(idleHandler, IdleHandler.MSG_IDLE, session),
+            SystemClock.uptimeMillis() + session.idleTimeout
+        );
+    }
+
+    private void scheduleHealthCheck(Session session) {
+        idleHandler.removeMessages(IdleHandler.MSG_HEALTH_CHECK, session);
+        idleHandler.sendMessageDelayed(
+            Message.obtain(idleHandler, IdleHandler.MSG_HEALTH_CHECK, session),
+            HEALTH_CHECK_INTERVAL
+        );
+    }
+
+    private class IdleHandler extends Handler {
+
+        public static final int MSG_IDLE = 1;
+        public static final int MSG_HEALTH_CHECK = 2;
+
+        @Override
+        public void handleMessage(Message msg) {
+            super.handleMessage(msg);
+            switch (msg.what) {
+            case MSG_IDLE:
+                Session session = (Session)msg.obj;
+                Log.w("Valence", "Closing idle RFB session.");
+                close(session.thread);
+                break;
+            case MSG_HEALTH_CHECK:
+                session = (Session)msg.obj;
+                if (session.thread.isFinished()) {
+                    // a dead session ends its own thread
+                    prune();
+                    break;
+                }
+                RFBThread.RFBThreadHandler rfbHandler = session.thread.getHandler();
+                if ((rfbHandler != null) && session.thread.isConnected()) {
+                    rfbHandler.checkHealth();
+                }
+                scheduleHealthCheck(session);
+                break;
+            }
+        }
+    }
+
+}
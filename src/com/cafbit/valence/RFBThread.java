@@ -20,28 +20,48 @@ package com.cafbit.valence;
 import java.io.IOException;
 import java.net.InetAddress;
 
+import android.graphics.Rect;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.cafbit.valence.ValenceActivity.ValenceHandler;
+import com.cafbit.valence.rfb.PointerAccelerationCurve;
+import com.cafbit.valence.rfb.RFBBatchWriter;
 import com.cafbit.valence.rfb.RFBConnection;
-import com.cafbit.valence.rfb.RFBEvent;
+import com.cafbit.valence.rfb.RFBFramebuffer;
+import com.cafbit.valence.rfb.RFBReactor;
 import com.cafbit.valence.rfb.RFBSecurity;
 
 public class RFBThread extends Thread {
 
-    private static final long DETACH_TIMEOUT = 10*1000; // 10 seconds
-    private static final long ACTIVITY_TIMEOUT = 10*60*1000; // 10 minutes
+    private static final int EVENT_RING_SIZE = 128;
+    private static final long SEND_JOIN_TIMEOUT = 1000; // 1 second
+    private static final long HEALTH_CHECK_TIMEOUT = 5000; // 5 seconds
+    // with pointer prediction, how often to measure the round trip,
+    // and how long to wait for the answer.
+    private static final long ROUND_TRIP_INTERVAL = 10000; // 10 seconds
+    private static final long ROUND_TRIP_TIMEOUT = 1000; // 1 second
 
     private static int serial = 0;
 
-    private ValenceHandler parentHandler;
-    private RFBThreadHandler myHandler;
+    private volatile ValenceHandler parentHandler;
+    private volatile RFBThreadHandler myHandler;
     private RFBConnection conn;
     private RFBRecvThread recvThread;
-    private boolean connected = false;
+    private RFBSendThread sendThread;
+    private volatile boolean connected = false;
+    private volatile boolean quitRequested = false;
+    private volatile boolean finished = false;
+    // session timing, measured from the creation of the thread (which
+    // is when the user picked the server)
+    private long createTime = SystemClock.uptimeMillis();
+    private volatile long timeToConnect = -1;
+    private volatile long timeToFirstInput = -1;
+    // created on the UI thread, which is the ring's only producer
+    private RFBEventRing eventRing = new RFBEventRing(EVENT_RING_SIZE);
 
     public RFBThread(ValenceHandler handler, String address, int port, RFBSecurity security) {
         this.parentHandler = handler;
@@ -55,6 +75,16 @@ public class RFBThread extends Thread {
         setName("rfb-"+(serial++));
     }
 
+    /**
+     * Race these other addresses of the server (found by discovery)
+     * along with its own, until "expireTime" (in wall-clock
+     * milliseconds).  See RFBConnection.setAddressAliases().  This
+     * must be called before the thread is started.
+     */
+    public void setAddressAliases(String[] aliases, long expireTime) {
+        this.conn.setAddressAliases(aliases, expireTime);
+    }
+
     public void setArd35Compatibility(boolean ard35Compatibility) {
         this.conn.setArd35Compatibility(ard35Compatibility);
     }
@@ -62,9 +92,77 @@ public class RFBThread extends Thread {
         return this.conn.getArd35Compatibility();
     }
 
+    /**
+     * Select the pointer acceleration curve, one of
+     * PointerAccelerationCurve.CURVE_*.
+     */
+    public void setAccelerationCurve(int curve) {
+        this.conn.setAccelerationCurve(PointerAccelerationCurve.get(curve));
+    }
+
+    /**
+     * Extrapolate pointer movements to hide the network latency.  While
+     * this is enabled, the round trip time is measured periodically.
+     * This may be called at any time.
+     */
+    public void setPointerPrediction(boolean pointerPrediction) {
+        this.conn.setPointerPrediction(pointerPrediction);
+        RFBThreadHandler handler = myHandler;
+        if (pointerPrediction && (handler != null)) {
+            handler.measureRoundTrip();
+        }
+    }
+    public boolean getPointerPrediction() {
+        return this.conn.getPointerPrediction();
+    }
+
+    /**
+     * Keep a copy of the remote screen, which the activity can show.
+     * This must be called before the thread is started.
+     */
+    public void setFramebufferEnabled(boolean framebufferEnabled) {
+        this.conn.setFramebufferEnabled(framebufferEnabled);
+    }
+    public boolean isFramebufferEnabled() {
+        return this.conn.isFramebufferEnabled();
+    }
+
+    /**
+     * Return the copy of the remote screen, or null if there isn't
+     * one (yet).  The decoders write it on the receiving thread.
+     */
+    public RFBFramebuffer getFramebuffer() {
+        if (! connected) {
+            return null;
+        }
+        return this.conn.getFramebuffer();
+    }
+
+    /**
+     * Return where the pointer is on the remote screen, as last sent.
+     */
+    public float getPointerX() {
+        return this.conn.getPointerX();
+    }
+    public float getPointerY() {
+        return this.conn.getPointerY();
+    }
+
+    /**
+     * Run the connection on a non-blocking transport serviced by the
+     * given reactor.  Input-only sessions then need no receiving
+     * thread.  This must be called before the thread is started.
+     */
+    public void setReactor(RFBReactor reactor) {
+        this.conn.setReactor(reactor);
+    }
+
     public void setValenceHandler(ValenceHandler valenceHandler) {
         this.parentHandler = valenceHandler;
     }
+    public ValenceHandler getValenceHandler() {
+        return parentHandler;
+    }
 
     public RFBThreadHandler getHandler() {
         return myHandler;
@@ -74,11 +172,68 @@ public class RFBThread extends Thread {
         return connected;
     }
 
+    /**
+     * Return true once the thread has shut down (or failed to
+     * connect).
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Return the milliseconds from the creation of this thread until
+     * the RFB handshake completed, or -1 if it hasn't yet.
+     */
+    public long getTimeToConnect() {
+        return timeToConnect;
+    }
+
+    /**
+     * Return the milliseconds from the creation of this thread until
+     * the first input event was written to the server, or -1 if none
+     * has been yet.  For a pre-connected session, this is the delay the
+     * user actually experienced.
+     */
+    public long getTimeToFirstInput() {
+        return timeToFirstInput;
+    }
+
+    /**
+     * Disconnect and end the thread.  This may be called at any time,
+     * even before the thread is running.
+     */
+    public void quit() {
+        quitRequested = true;
+        RFBThreadHandler handler = myHandler;
+        if (handler != null) {
+            handler.quit();
+        }
+    }
+
+    /**
+     * Return the ring which carries input events to the sending thread.
+     * Only the UI thread may offer events to it.
+     */
+    public RFBEventRing getEventRing() {
+        return eventRing;
+    }
+
     @Override
     public void run() {
+        try {
+            session();
+        } finally {
+            finished = true;
+        }
+    }
+
+    private void session() {
         // set up the IPC
         Looper.prepare();
         this.myHandler = new RFBThreadHandler();
+        if (quitRequested) {
+            return;
+        }
 
         // connect to the RFB server
         try {
@@ -88,23 +243,53 @@ public class RFBThread extends Thread {
             parentHandler.error(e);
             return;
         }
+        timeToConnect = SystemClock.uptimeMillis() - createTime;
+        Log.i("Valence", "RFB handshake: "+conn.getHandshakeTimings()+" connected after "+timeToConnect+"ms");
+
+        // set up the receiving thread, unless this is an input-only
+        // session on a transport that can discard the input by itself.
+        if (conn.isFramebufferEnabled() || ! conn.discardInput(onServerClosed)) {
+            recvThread = new RFBRecvThread(myHandler, conn);
+            recvThread.start();
+        }
 
-        // set up the receiving thread
-        // (we don't use received data.  this just gobbles bytes, on
-        // the off chance that the server sends us something.)
-        recvThread = new RFBRecvThread(myHandler, conn.getSocket());
-        recvThread.start();
+        // set up the sending thread, which drains input events from
+        // the event ring.
+        sendThread = new RFBSendThread(myHandler, conn, eventRing);
+        sendThread.start();
+
+        // pings are answered on the receiving side
+        final RFBThreadHandler handler = myHandler;
+        conn.setOnPingAnswered(new Runnable() {
+            @Override
+            public void run() {
+                handler.onPingAnswered();
+            }
+        });
 
-        // notify the parent that we are connected
-        parentHandler.onConnect();
+        // notify the parent that we are connected.  A handler set
+        // after this sees isConnected(), so whoever sets it must tell
+        // it (see RFBSessionManager.attach()).
         connected = true;
+        parentHandler.onConnect();
+        myHandler.measureRoundTrip();
 
         // loop!
         Looper.loop();
 
         connected = false;
-        recvThread.invalidate();
+        RFBBatchWriter.Stats stats = conn.getBatchStats();
+        if (stats != null) {
+            Log.i("Valence", "RFB batching: "+stats+" coalesced="+conn.getCoalescedPointerEvents());
+        }
+        invalidateThreads();
+        try {
+            // don't close the socket out from under a write in progress
+            sendThread.join(SEND_JOIN_TIMEOUT);
+        } catch (InterruptedException e) {
+        }
         recvThread = null;
+        sendThread = null;
         try {
             conn.disconnect();
         } catch (IOException e) {
@@ -117,8 +302,22 @@ public class RFBThread extends Thread {
         public static final int MSG_QUIT = 1;
         public static final int MSG_ERROR = 2;
         public static final int MSG_RECV_DISCONNECT = 3;
-        public static final int MSG_RFB_EVENT = 4;
-        public static final int MSG_TIMEOUT = 5;
+        public static final int MSG_SCHEDULE_UPDATES = 6;
+        public static final int MSG_PAUSE_UPDATES = 7;
+        public static final int MSG_RESUME_UPDATES = 8;
+        public static final int MSG_SET_VIEWPORT = 9;
+        public static final int MSG_HEALTH_CHECK = 10;
+        public static final int MSG_HEALTH_RESULT = 11;
+        public static final int MSG_FIRST_INPUT = 12;
+        public static final int MSG_MEASURE_ROUND_TRIP = 13;
+        public static final int MSG_ROUND_TRIP_TIMEOUT = 14;
+        public static final int MSG_FRAMEBUFFER_UPDATE = 15;
+        public static final int MSG_PING_ANSWERED = 16;
+
+        // the ping the outstanding health check is waiting for, or 0
+        // if none is outstanding.  The round trip measurement is
+        // outstanding while MSG_ROUND_TRIP_TIMEOUT is pending.
+        private int healthCheckPing = 0;
 
         public RFBThreadHandler() {
         }
@@ -129,45 +328,136 @@ public class RFBThread extends Thread {
             //System.out.println("RFB thread message "+msg.what);
 
             switch (msg.what) {
-            case MSG_TIMEOUT:
-                Log.w("Valence", "Closing RFB connection due to timeout.");
             case MSG_QUIT:
-                if (recvThread != null) {
-                    recvThread.invalidate();
-                }
+                invalidateThreads();
                 Looper.myLooper().quit();
                 Log.w("Valence", "RFB thread shutting down.");
                 break;
             case MSG_ERROR:
-                if (recvThread != null) {
-                    recvThread.invalidate();
-                }
+                invalidateThreads();
                 parentHandler.error((Throwable)msg.obj);
                 Looper.myLooper().quit();
                 break;
             case MSG_RECV_DISCONNECT:
-                if (recvThread != null) {
-                    recvThread.invalidate();
-                }
+                invalidateThreads();
                 parentHandler.onDisconnect();
                 Looper.myLooper().quit();
                 break;
-            case MSG_RFB_EVENT:
-                RFBEvent event = (RFBEvent)msg.obj;
-                try {
-                    conn.sendEvent(event);
-                } catch (IOException e) {
-                    if (recvThread != null) {
-                        recvThread.invalidate();
+            case MSG_PAUSE_UPDATES:
+                conn.pauseUpdates();
+                // nobody is moving the pointer now
+                removeMessages(MSG_MEASURE_ROUND_TRIP);
+                removeMessages(MSG_ROUND_TRIP_TIMEOUT);
+                conn.cancelRoundTrip();
+                break;
+            case MSG_RESUME_UPDATES:
+                conn.resumeUpdates();
+                scheduleUpdates();
+                measureRoundTrip();
+                break;
+            case MSG_SET_VIEWPORT:
+                Rect viewport = (Rect)msg.obj;
+                conn.setViewport(viewport.left, viewport.top, viewport.width(), viewport.height());
+                scheduleUpdates();
+                break;
+            case MSG_SCHEDULE_UPDATES:
+                scheduleUpdates();
+                break;
+            case MSG_FRAMEBUFFER_UPDATE:
+                scheduleUpdates();
+                parentHandler.onFramebufferUpdate();
+                break;
+            case MSG_HEALTH_CHECK:
+                if ((healthCheckPing == 0) && (conn.getTransport() != null)) {
+                    try {
+                        healthCheckPing = conn.sendPing();
+                    } catch (IOException e) {
+                        sendFailed(e);
+                        break;
                     }
-                    parentHandler.error(e);
+                    sendMessageDelayed(Message.obtain(this, MSG_HEALTH_RESULT), HEALTH_CHECK_TIMEOUT);
+                }
+                break;
+            case MSG_HEALTH_RESULT:
+                if ((healthCheckPing != 0) && (! conn.isPingAnswered(healthCheckPing))) {
+                    Log.w("Valence", "RFB server stopped responding.");
+                    invalidateThreads();
+                    parentHandler.onAbnormalDisconnect();
                     Looper.myLooper().quit();
                 }
+                healthCheckPing = 0;
+                break;
+            case MSG_PING_ANSWERED:
+                if ((healthCheckPing != 0) && conn.isPingAnswered(healthCheckPing)) {
+                    removeMessages(MSG_HEALTH_RESULT);
+                    healthCheckPing = 0;
+                }
+                if (hasMessages(MSG_ROUND_TRIP_TIMEOUT)) {
+                    // only one ping is outstanding at a time, so this
+                    // was the measurement's own.
+                    removeMessages(MSG_ROUND_TRIP_TIMEOUT);
+                    sendMessageDelayed(Message.obtain(this, MSG_MEASURE_ROUND_TRIP), ROUND_TRIP_INTERVAL);
+                }
+                break;
+            case MSG_MEASURE_ROUND_TRIP:
+                removeMessages(MSG_MEASURE_ROUND_TRIP);
+                // with a framebuffer, updates would be mistaken for
+                // the answer; those sessions keep the handshake's
+                // measurement.
+                if (conn.getPointerPrediction() && (! conn.isFramebufferEnabled()) &&
+                        (conn.getTransport() != null) && (! hasMessages(MSG_ROUND_TRIP_TIMEOUT))) {
+                    boolean started;
+                    try {
+                        started = conn.startRoundTrip();
+                    } catch (IOException e) {
+                        sendFailed(e);
+                        break;
+                    }
+                    if (started) {
+                        sendMessageDelayed(Message.obtain(this, MSG_ROUND_TRIP_TIMEOUT), ROUND_TRIP_TIMEOUT);
+                    } else {
+                        // the health check's ping is outstanding
+                        sendMessageDelayed(Message.obtain(this, MSG_MEASURE_ROUND_TRIP), ROUND_TRIP_INTERVAL);
+                    }
+                }
+                break;
+            case MSG_ROUND_TRIP_TIMEOUT:
+                // noticing a dead server is the health check's job
+                conn.cancelRoundTrip();
+                sendMessageDelayed(Message.obtain(this, MSG_MEASURE_ROUND_TRIP), ROUND_TRIP_INTERVAL);
+                break;
+            case MSG_FIRST_INPUT:
+                timeToFirstInput = SystemClock.uptimeMillis() - createTime;
+                Log.i("Valence", "RFB time to first input: "+timeToFirstInput+"ms");
                 break;
             }
 
         }
 
+        /**
+         * Send whatever FramebufferUpdateRequests are due, and arrange
+         * to be called again when the next one will be.
+         */
+        private void scheduleUpdates() {
+            removeMessages(MSG_SCHEDULE_UPDATES);
+            long delay;
+            try {
+                delay = conn.scheduleUpdates();
+            } catch (IOException e) {
+                sendFailed(e);
+                return;
+            }
+            if (delay >= 0) {
+                sendMessageDelayed(Message.obtain(this, MSG_SCHEDULE_UPDATES), delay);
+            }
+        }
+
+        private void sendFailed(IOException e) {
+            invalidateThreads();
+            parentHandler.error(e);
+            Looper.myLooper().quit();
+        }
+
         // helper methods
 
         public void quit() {
@@ -182,25 +472,75 @@ public class RFBThread extends Thread {
             sendMessage(Message.obtain(this, MSG_RECV_DISCONNECT));
         }
 
-        public void onRFBEvent(RFBEvent event) {
-            sendMessage(Message.obtain(this, MSG_RFB_EVENT, event));
+        /**
+         * Called from the receiving thread after each FramebufferUpdate.
+         */
+        public void onFramebufferUpdate() {
+            sendMessage(Message.obtain(this, MSG_FRAMEBUFFER_UPDATE));
         }
 
-        public void onDetach() {
-            sendMessageDelayed(Message.obtain(this, MSG_TIMEOUT), DETACH_TIMEOUT);
+        /**
+         * Make sure the server is still answering; if it isn't, the
+         * session ends with onAbnormalDisconnect().
+         */
+        public void checkHealth() {
+            sendMessage(Message.obtain(this, MSG_HEALTH_CHECK));
+        }
+
+        public void measureRoundTrip() {
+            sendMessage(Message.obtain(this, MSG_MEASURE_ROUND_TRIP));
+        }
+
+        /**
+         * Called on the receiving side when a ping is answered.
+         */
+        public void onPingAnswered() {
+            sendMessage(Message.obtain(this, MSG_PING_ANSWERED));
+        }
+
+        /**
+         * Called once from the sending thread, after the first input
+         * event has been written.
+         */
+        public void onFirstInput() {
+            sendMessage(Message.obtain(this, MSG_FIRST_INPUT));
+        }
+
+        public void setViewport(int x, int y, int w, int h) {
+            sendMessage(Message.obtain(this, MSG_SET_VIEWPORT, new Rect(x, y, x+w, y+h)));
         }
 
-        public void onReattach() {
-            removeMessages(MSG_TIMEOUT);
+        // a backgrounded session stops pulling pixels until it's back.
+        // (RFBSessionManager closes sessions which stay idle.)
+
+        public void onDetach() {
+            sendMessage(Message.obtain(this, MSG_PAUSE_UPDATES));
         }
 
         public void onActivityPause() {
-            sendMessageDelayed(Message.obtain(this, MSG_TIMEOUT), ACTIVITY_TIMEOUT);
+            sendMessage(Message.obtain(this, MSG_PAUSE_UPDATES));
         }
 
         public void onActivityResume() {
-            removeMessages(MSG_TIMEOUT);
+            sendMessage(Message.obtain(this, MSG_RESUME_UPDATES));
         }
-}
+    }
+
+    // run on the reactor thread if the server hangs up
+    private Runnable onServerClosed = new Runnable() {
+        @Override
+        public void run() {
+            myHandler.onRecvDisconnect();
+        }
+    };
+
+    private void invalidateThreads() {
+        if (recvThread != null) {
+            recvThread.invalidate();
+        }
+        if (sendThread != null) {
+            sendThread.invalidate();
+        }
+    }
 
 }
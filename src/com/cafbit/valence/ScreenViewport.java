@@ -0,0 +1,115 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cafbit.valence;
+
+/**
+ * Decides which part of the remote screen the touchpad shows: a window
+ * the size of the view, one remote pixel per view pixel, centered on
+ * the remote pointer as far as the edges of the screen allow.
+ *
+ * It also decides the viewport to ask the server for updates of.
+ * That is the visible window plus a margin on each side, so that the
+ * pointer can wander a little before a new viewport has to be sent.
+ */
+class ScreenViewport {
+
+    // the margin on each side, as a share of the view's size
+    private static final float MARGIN = 0.5f;
+
+    private int visibleX, visibleY, visibleWidth, visibleHeight;
+    private boolean requested = false;
+    // the server resets the viewport when the desktop is resized
+    private int lastScreenWidth, lastScreenHeight;
+    private int requestX, requestY, requestWidth, requestHeight;
+
+    /**
+     * Center a viewWidth x viewHeight window on the pointer at
+     * (pointerX,pointerY) of a screenWidth x screenHeight desktop.
+     * Returns true if the requested viewport changed to cover it, so
+     * the new one should be sent.
+     */
+    boolean update(int screenWidth, int screenHeight, int viewWidth, int viewHeight, float pointerX, float pointerY) {
+        visibleWidth = Math.max(0, Math.min(viewWidth, screenWidth));
+        visibleHeight = Math.max(0, Math.min(viewHeight, screenHeight));
+        visibleX = clamp((int)pointerX - visibleWidth/2, screenWidth - visibleWidth);
+        visibleY = clamp((int)pointerY - visibleHeight/2, screenHeight - visibleHeight);
+        if ((visibleWidth == 0) || (visibleHeight == 0)) {
+            // not laid out yet
+            return false;
+        }
+        if ((screenWidth != lastScreenWidth) || (screenHeight != lastScreenHeight)) {
+            lastScreenWidth = screenWidth;
+            lastScreenHeight = screenHeight;
+            requested = false;
+        }
+        if (requested &&
+            (visibleX >= requestX) && (visibleY >= requestY) &&
+            (visibleX+visibleWidth <= requestX+requestWidth) &&
+            (visibleY+visibleHeight <= requestY+requestHeight)) {
+            return false;
+        }
+        int marginX = (int)(visibleWidth * MARGIN);
+        int marginY = (int)(visibleHeight * MARGIN);
+        requestX = Math.max(0, visibleX - marginX);
+        requestY = Math.max(0, visibleY - marginY);
+        requestWidth = Math.min(screenWidth, visibleX + visibleWidth + marginX) - requestX;
+        requestHeight = Math.min(screenHeight, visibleY + visibleHeight + marginY) - requestY;
+        requested = true;
+        return true;
+    }
+
+    /**
+     * Forget the requested viewport, so the next update() sends one
+     * (e.g. after resuming, or on a new connection).
+     */
+    void reset() {
+        requested = false;
+    }
+
+    private static int clamp(int value, int max) {
+        return Math.max(0, Math.min(value, max));
+    }
+
+    int getVisibleX() {
+        return visibleX;
+    }
+    int getVisibleY() {
+        return visibleY;
+    }
+    int getVisibleWidth() {
+        return visibleWidth;
+    }
+    int getVisibleHeight() {
+        return visibleHeight;
+    }
+
+    int getRequestX() {
+        return requestX;
+    }
+    int getRequestY() {
+        return requestY;
+    }
+    int getRequestWidth() {
+        return requestWidth;
+    }
+    int getRequestHeight() {
+        return requestHeight;
+    }
+
+}
@@ -25,7 +25,9 @@ import android.view.MenuItem;
 import com.cafbit.motelib.model.Device;
 import com.cafbit.motelib.settings.AddDeviceActivity;
 import com.cafbit.motelib.settings.DevicesActivity;
+import com.cafbit.valence.ValenceActivity.ValenceDetachedHandler;
 import com.cafbit.valence.device.ValenceDevice;
+import com.cafbit.valence.rfb.PointerAccelerationCurve;
 
 public class SelectionActivity extends DevicesActivity {
 
@@ -54,9 +56,36 @@ public class SelectionActivity extends DevicesActivity {
             return;
         }
         ValenceDevice device = (ValenceDevice)d;
+        Uri uri = getUri(device);
+
+        // start connecting right away, rather than after
+        // ValenceActivity has been created and laid out.
+        warmUp(uri, device);
 
         Intent intent = new Intent(this, ValenceActivity.class);
         intent.setAction(Intent.ACTION_VIEW);
+        intent.setData(uri);
+        String[] aliases = device.getAddressAliases();
+        if (aliases != null) {
+            intent.putExtra(ValenceActivity.EXTRA_ADDRESS_ALIASES, aliases);
+            intent.putExtra(ValenceActivity.EXTRA_ADDRESS_ALIASES_EXPIRE, device.getAddressAliasesExpire());
+        }
+        startActivity(intent);
+    }
+
+    /**
+     * Start connecting to the selected device in the background, so
+     * that ValenceActivity can adopt the session.  If it never does,
+     * the session manager closes the session after a timeout.
+     */
+    private void warmUp(Uri uri, ValenceDevice device) {
+        RFBSessionManager sessionManager = ((ValenceApplication)getApplication()).getSessionManager();
+        RFBThread rfbThread = ValenceActivity.newThread(new ValenceDetachedHandler(), uri);
+        rfbThread.setAddressAliases(device.getAddressAliases(), device.getAddressAliasesExpire());
+        sessionManager.warmUp(uri.toString(), rfbThread);
+    }
+
+    private Uri getUri(ValenceDevice device) {
         Uri.Builder builder = new Uri.Builder()
             .scheme("valence")
             .encodedAuthority(Uri.encode(device.address)+":"+Uri.encode(""+device.port));
@@ -72,10 +101,12 @@ public class SelectionActivity extends DevicesActivity {
         if ((device.username != null) && (device.username.length() > 0)) {
             builder.appendQueryParameter("username", device.username);
         }
+        if (device.accelerationCurve != PointerAccelerationCurve.DEFAULT_CURVE) {
+            builder.appendQueryParameter("accelerationCurve", ""+device.accelerationCurve);
+        }
         Uri uri = builder.build();
         uri.getPort();
-        intent.setData(uri);
-        startActivity(intent);
+        return uri;
     }
 
     protected void onAddNewDevice() {
@@ -22,6 +22,13 @@ package com.cafbit.valence;
 
 import com.cafbit.valence.TouchPadHandler.Touch;
 
+/**
+ * One step of a touchpad gesture: a relative movement, the button
+ * state, and any scrolling.  These are mutable records which the
+ * TouchPadHandler fills in and reuses for every gesture, so that a
+ * sustained drag creates no garbage.  A listener must copy out whatever
+ * it needs before onTouchPadEvent() returns.
+ */
 public class TouchPadEvent {
     long dt = 0L;
     float dx = 0.0f, dy = 0.0f;
@@ -29,64 +36,68 @@ public class TouchPadEvent {
     boolean button2 = false;
     float sx = 0.0f; // scroll x
     float sy = 0.0f; // scroll y
+    boolean fling = false; // scroll released
+
+    void set(long dt, float dx, float dy, boolean button1, boolean button2, float sx, float sy) {
+        this.dt = dt;
+        this.dx = dx;
+        this.dy = dy;
+        this.button1 = button1;
+        this.button2 = button2;
+        this.sx = sx;
+        this.sy = sy;
+        this.fling = false;
+    }
+
+    // The following fill in the given (reused) events, and return them.
 
-    public static TouchPadEvent[] tap(boolean multiTouchTap) {
-        TouchPadEvent events[] = new TouchPadEvent[2];
-        events[0] = new TouchPadEvent();
-        if (multiTouchTap) {
-            events[0].button2 = true;
-        } else {
-            events[0].button1 = true;
-        }
-        events[1] = new TouchPadEvent();
+    public static TouchPadEvent[] tap(TouchPadEvent events[], boolean multiTouchTap) {
+        events[0].set(0L, 0.0f, 0.0f, ! multiTouchTap, multiTouchTap, 0.0f, 0.0f);
+        events[1].set(0L, 0.0f, 0.0f, false, false, 0.0f, 0.0f);
         return events;
     }
 
-    public static TouchPadEvent move(Touch touch) {
-        TouchPadEvent event = new TouchPadEvent();
-        event.dt = touch.dt;
-        event.dx = touch.dx;
-        event.dy = touch.dy;
+    public static TouchPadEvent move(TouchPadEvent event, Touch touch) {
+        event.set(touch.dt, touch.dx, touch.dy, false, false, 0.0f, 0.0f);
         return event;
     }
 
-    public static TouchPadEvent[] startDrag(Touch touch) {
-        TouchPadEvent events[] = new TouchPadEvent[2];
-        events[0] = new TouchPadEvent();
-        events[0].button1 = true;
-        events[1] = new TouchPadEvent();
-        events[1].dt = touch.dt;
-        events[1].dx = touch.dx;
-        events[1].dy = touch.dy;
-        events[1].button1 = true;
+    public static TouchPadEvent[] startDrag(TouchPadEvent events[], Touch touch) {
+        events[0].set(0L, 0.0f, 0.0f, true, false, 0.0f, 0.0f);
+        events[1].set(touch.dt, touch.dx, touch.dy, true, false, 0.0f, 0.0f);
         return events;
     }
 
-    public static TouchPadEvent drag(Touch touch) {
-        TouchPadEvent event = new TouchPadEvent();
-        event.dt = touch.dt;
-        event.dx = touch.dx;
-        event.dy = touch.dy;
-        event.button1 = true;
+    public static TouchPadEvent drag(TouchPadEvent event, Touch touch) {
+        event.set(touch.dt, touch.dx, touch.dy, true, false, 0.0f, 0.0f);
         return event;
     }
 
-    public static TouchPadEvent scroll(Touch touch) {
-        TouchPadEvent event = new TouchPadEvent();
-        event.sx = touch.sx;
-        event.sy = touch.sy;
+    public static TouchPadEvent scroll(TouchPadEvent event, Touch touch) {
+        event.set(touch.dt, 0.0f, 0.0f, false, false, touch.sx, touch.sy);
         return event;
     }
 
-    public static TouchPadEvent clear() {
-        return new TouchPadEvent();
+    /**
+     * The fingers lifted off a scroll, which the receiver may continue
+     * as a fling until the next event.
+     */
+    public static TouchPadEvent fling(TouchPadEvent event) {
+        event.set(0L, 0.0f, 0.0f, false, false, 0.0f, 0.0f);
+        event.fling = true;
+        return event;
+    }
+
+    public static TouchPadEvent clear(TouchPadEvent event) {
+        event.set(0L, 0.0f, 0.0f, false, false, 0.0f, 0.0f);
+        return event;
     }
 
     public void debug() {
-        System.out.printf("TouchPadEvent dt=%d dx=%f dy=%f b1=%b b2=%b vs=%f hs=%f\n",
+        System.out.printf("TouchPadEvent dt=%d dx=%f dy=%f b1=%b b2=%b vs=%f hs=%f fling=%b\n",
             dt, dx, dy,
             button1, button2,
-            sy, sx
+            sy, sx, fling
         );
     }
 }
\ No newline at end of file
@@ -55,6 +55,7 @@ public class TouchPadHandler {
         // aggregate state
         public float totalDistance = 0.0f;
         public boolean multiTouch = false; // any multi-touch in history?
+        public boolean scrolling = false; // any scrolling in history?
 
         public void clear() {
             t = 0;
@@ -68,6 +69,7 @@ public class TouchPadHandler {
             drag = false;
             totalDistance = 0.0f;
             multiTouch = false;
+            scrolling = false;
         }
 
         // down
@@ -193,6 +195,9 @@ public class TouchPadHandler {
                 sy = +d;
                 break;
             }
+            if (direction != 0) {
+                scrolling = true;
+            }
 
             currentDirection = direction;
         }
@@ -216,12 +221,29 @@ public class TouchPadHandler {
         public void drag() {
             this.drag = true;
         }
+
+        /**
+         * Forget the scroll, so the remaining finger moves the pointer.
+         */
+        public void endScroll() {
+            scrolling = false;
+            currentDirection = 0;
+            newDirection = 0;
+            newDirectionDistance = 0.0f;
+            sx = 0.0f;
+            sy = 0.0f;
+        }
     };
     private Touch touch = new Touch();
 
+    // reused for every event sent to the listener
+    private TouchPadEvent event = new TouchPadEvent();
+    private TouchPadEvent events[] = { new TouchPadEvent(), new TouchPadEvent() };
+
     /**
      * A NormalMotionEvent is like a MotionEvent, except that historical
      * event batches have been flattened out into individual units.
+     * The handler steps a single one through the Debatcher's samples.
      */
     private static class NormalMotionEvent {
         int action;
@@ -229,132 +251,131 @@ public class TouchPadHandler {
         float x, y;
         int pc;
 
-        static float lastX=0.0f, lastY=0.0f;
-
-        private void init(MotionEvent me) {
-            this.action = me.getAction();
-            this.t = me.getEventTime();
-            this.x = me.getX();
-            this.y = me.getY();
-            this.pc = me.getPointerCount();
-
-            if (pc>1) {
-                float smallestDistance = 999999.0f;
-                int nearestPointer = -1;
-                for (int i=0; i<pc; i++) {
-                    float px = me.getX(i);
-                    float py = me.getY(i);
-                    float dx = px-lastX;
-                    float dy = py-lastY;
-                    float d = FloatMath.sqrt(dx*dx+dy*dy);
-                    if (d < smallestDistance) {
-                        smallestDistance = d;
-                        nearestPointer = i;
-                    }
-                }
-                float px = me.getX(nearestPointer);
-                float py = me.getY(nearestPointer);
-                if ((px != this.x) || (py != this.y)){
-                    this.x = px;
-                    this.y = py;
-                }
-            }
-            lastX = x;
-            lastY = y;
-        }
-
-        private void init(MotionEvent me, int pos) {
-            this.action = me.getAction();
-            this.t = me.getHistoricalEventTime(pos);
-            this.x = me.getHistoricalX(pos);
-            this.y = me.getHistoricalY(pos);
-            this.pc = me.getPointerCount();
-
-            if (pc>1) {
-                float lastDistance = 999999.0f;
-                int nearestPointer = -1;
-                for (int i=0; i<pc; i++) {
-                    float px = me.getHistoricalX(i, pos);
-                    float py = me.getHistoricalY(i, pos);
-                    float dx = px-lastX;
-                    float dy = py-lastY;
-                    float d = FloatMath.sqrt(dx*dx+dy*dy);
-                    if (d < lastDistance) {
-                        lastDistance = d;
-                        nearestPointer = i;
-                    }
-                }
-                float px = me.getHistoricalX(nearestPointer, pos);
-                float py = me.getHistoricalY(nearestPointer, pos);
-                if ((px != this.x) || (py != this.y)){
-                    this.x = px;
-                    this.y = py;
-                }
-            }
-            lastX = x;
-            lastY = y;
+        private void set(Debatcher debatcher, int i) {
+            this.action = debatcher.action;
+            this.t = debatcher.t[i];
+            this.x = debatcher.x[i];
+            this.y = debatcher.y[i];
+            this.pc = debatcher.pc;
         }
+    };
+    private NormalMotionEvent nme = new NormalMotionEvent();
 
-        private static final int NUM_POOL_OBJECTS = 20;
-        private static NormalMotionEvent pool[] = new NormalMotionEvent[NUM_POOL_OBJECTS];
-        private static NormalMotionEvent array1[] = new NormalMotionEvent[1];
-        private static NormalMotionEvent array2[] = new NormalMotionEvent[2];
-        private static NormalMotionEvent array3[] = new NormalMotionEvent[3];
-        private static NormalMotionEvent array4[] = new NormalMotionEvent[4];
-        static {
-            for (int i=0; i<NUM_POOL_OBJECTS; i++) {
-                pool[i] = new NormalMotionEvent();
-            }
-        };
+    /**
+     * Flattens each MotionEvent and its historical batch into parallel
+     * arrays of samples.  The arrays grow to fit the largest batch seen,
+     * so no history is ever dropped.  Every TouchPadHandler has its own,
+     * so any number of touch surfaces may be in use at once.
+     */
+    private static class Debatcher {
+        private static final int INITIAL_CAPACITY = 20;
 
-        public static NormalMotionEvent[] debatchMotionEvent(MotionEvent me) {
+        // per MotionEvent
+        int action;
+        int pc;
+        // per sample
+        int count = 0;
+        long t[] = new long[INITIAL_CAPACITY];
+        float x[] = new float[INITIAL_CAPACITY];
+        float y[] = new float[INITIAL_CAPACITY];
+
+        // the position of the previous sample, used to follow the
+        // same pointer through a multi-touch gesture.
+        private float lastX=0.0f, lastY=0.0f;
+
+        /**
+         * Flatten the MotionEvent into the sample arrays, and return
+         * the number of samples.  They remain valid until the next call.
+         */
+        public int debatch(MotionEvent me) {
             int hs = me.getHistorySize();
+            ensureCapacity(hs+1);
+            action = me.getAction();
+            pc = me.getPointerCount();
             int j=0;
             for (int i=0; i<hs; i++) {
                 // if this historical event has the same timestamp
                 // as the previous one, combine it.
-                long t = me.getHistoricalEventTime(i);
-                if ((j > 0) && (pool[j-1].t == t)) {
-                    // keep your friends close, and your nme's closer.
-                    pool[j-1].x = me.getHistoricalX(i);
-                    pool[j-1].y = me.getHistoricalY(i);
+                long ht = me.getHistoricalEventTime(i);
+                if ((j > 0) && (t[j-1] == ht)) {
+                    // keep your friends close, and your samples closer.
+                    x[j-1] = me.getHistoricalX(i);
+                    y[j-1] = me.getHistoricalY(i);
                 } else {
-                    pool[j++].init(me, i);
+                    t[j] = ht;
+                    if (pc > 1) {
+                        int p = nearestHistoricalPointer(me, i);
+                        x[j] = me.getHistoricalX(p, i);
+                        y[j] = me.getHistoricalY(p, i);
+                    } else {
+                        x[j] = me.getHistoricalX(i);
+                        y[j] = me.getHistoricalY(i);
+                    }
+                    lastX = x[j];
+                    lastY = y[j];
+                    j++;
                 }
-                if (j == (NUM_POOL_OBJECTS-1)) {
-                    break;
+            }
+            t[j] = me.getEventTime();
+            if (pc > 1) {
+                int p = nearestPointer(me);
+                x[j] = me.getX(p);
+                y[j] = me.getY(p);
+            } else {
+                x[j] = me.getX();
+                y[j] = me.getY();
+            }
+            lastX = x[j];
+            lastY = y[j];
+            count = j+1;
+            return count;
+        }
+
+        private int nearestPointer(MotionEvent me) {
+            float smallestDistance = 999999.0f;
+            int nearestPointer = 0;
+            for (int i=0; i<pc; i++) {
+                float dx = me.getX(i)-lastX;
+                float dy = me.getY(i)-lastY;
+                float d = FloatMath.sqrt(dx*dx+dy*dy);
+                if (d < smallestDistance) {
+                    smallestDistance = d;
+                    nearestPointer = i;
                 }
             }
-            pool[j++].init(me);
+            return nearestPointer;
+        }
 
-            // premature optimization?
-            switch (j) {
-            case 1:
-                array1[0] = pool[0];
-                return array1;
-            case 2:
-                array2[0] = pool[0];
-                array2[1] = pool[1];
-                return array2;
-            case 3:
-                array3[0] = pool[0];
-                array3[1] = pool[1];
-                array3[2] = pool[2];
-                return array3;
-            case 4:
-                array4[0] = pool[0];
-                array4[1] = pool[1];
-                array4[2] = pool[2];
-                array4[3] = pool[3];
-                return array4;
-            default:
-                NormalMotionEvent nmes[] = new NormalMotionEvent[j];
-                System.arraycopy(pool, 0, nmes, 0, j);
-                return nmes;
+        private int nearestHistoricalPointer(MotionEvent me, int pos) {
+            float smallestDistance = 999999.0f;
+            int nearestPointer = 0;
+            for (int i=0; i<pc; i++) {
+                float dx = me.getHistoricalX(i, pos)-lastX;
+                float dy = me.getHistoricalY(i, pos)-lastY;
+                float d = FloatMath.sqrt(dx*dx+dy*dy);
+                if (d < smallestDistance) {
+                    smallestDistance = d;
+                    nearestPointer = i;
+                }
             }
+            return nearestPointer;
         }
 
+        private void ensureCapacity(int n) {
+            if (n <= t.length) {
+                return;
+            }
+            int capacity = t.length;
+            while (capacity < n) {
+                capacity *= 2;
+            }
+            // the old samples are never needed again
+            t = new long[capacity];
+            x = new float[capacity];
+            y = new float[capacity];
+        }
     };
+    private Debatcher debatcher = new Debatcher();
 
     /**
      * A PendingTap holds information about a tap that is scheduled
@@ -366,12 +387,17 @@ public class TouchPadHandler {
         private boolean canceled = false;
         private boolean multiTouchTap = false;
 
-        public PendingTap(boolean multiTouchTap) {
+        private void reset(boolean multiTouchTap) {
+            this.sent = false;
+            this.canceled = false;
             this.multiTouchTap = multiTouchTap;
         }
 
         public void cancel() {
             canceled = true;
+            // this object is reused, so it mustn't still be queued
+            // when it's scheduled again.
+            view.removeCallbacks(this);
         }
 
         @Override
@@ -379,16 +405,19 @@ public class TouchPadHandler {
             if (canceled) {
                 return;
             }
-            send(TouchPadEvent.tap(multiTouchTap));
+            send(TouchPadEvent.tap(events, multiTouchTap));
             sent = true;
         }
     };
+    // the one PendingTap, which is reused for every scheduled tap
+    private PendingTap tap = new PendingTap();
     private PendingTap pendingTap = null;
     public void scheduleTap(NormalMotionEvent nme, boolean multiTouchTap) {
         if (pendingTap != null) {
             pendingTap.cancel();
         }
-        pendingTap = new PendingTap(multiTouchTap);
+        tap.reset(multiTouchTap);
+        pendingTap = tap;
         view.postDelayed(pendingTap, TAP_TIME_THRESHOLD);
     }
     public void cancelTap() {
@@ -476,12 +505,20 @@ public class TouchPadHandler {
 
     public void send(TouchPadEvent tpes[]) {
         if (onTouchPadEventListener != null) {
-            for (TouchPadEvent tpe : tpes) {
-                onTouchPadEventListener.onTouchPadEvent(tpe);
+            onTouchPadEventListener.onTouchPadBatchBegin();
+            try {
+                for (TouchPadEvent tpe : tpes) {
+                    onTouchPadEventListener.onTouchPadEvent(tpe);
+                }
+            } finally {
+                onTouchPadEventListener.onTouchPadBatchEnd();
             }
         }
     }
 
+    // a fling was started, and may still be running
+    private boolean flingSent = false;
+
     private final int STATE_INITIAL = 0;
     private final int STATE_DOWN = 1;
     private final int STATE_MULTI_DOWN = 2;
@@ -491,17 +528,29 @@ public class TouchPadHandler {
         if (debug) {
             debugEvent(me);
         }
-        for (NormalMotionEvent nme : NormalMotionEvent.debatchMotionEvent(me)) {
-            switch (state) {
-            case STATE_INITIAL:
-                initial(nme);
-                break;
-            case STATE_DOWN:
-                down(nme);
-                break;
-            case STATE_MULTI_DOWN:
-                multiDown(nme);
-                break;
+        // everything produced by one MotionEvent is a single burst.
+        if (onTouchPadEventListener != null) {
+            onTouchPadEventListener.onTouchPadBatchBegin();
+        }
+        try {
+            int n = debatcher.debatch(me);
+            for (int i=0; i<n; i++) {
+                nme.set(debatcher, i);
+                switch (state) {
+                case STATE_INITIAL:
+                    initial(nme);
+                    break;
+                case STATE_DOWN:
+                    down(nme);
+                    break;
+                case STATE_MULTI_DOWN:
+                    multiDown(nme);
+                    break;
+                }
+            }
+        } finally {
+            if (onTouchPadEventListener != null) {
+                onTouchPadEventListener.onTouchPadBatchEnd();
             }
         }
 
@@ -513,9 +562,31 @@ public class TouchPadHandler {
         state = STATE_INITIAL;
     }
 
+    /**
+     * The fingers are lifting off a scroll -- let the receiver carry
+     * it on as a fling.
+     */
+    private void releaseScroll() {
+        if (touch.scrolling && ! flingSent) {
+            send(TouchPadEvent.fling(event));
+            flingSent = true;
+        }
+    }
+
+    /**
+     * A new touch stops any fling.
+     */
+    private void stopFling() {
+        if (flingSent) {
+            send(TouchPadEvent.clear(event));
+            flingSent = false;
+        }
+    }
+
     private void initial(NormalMotionEvent nme) {
         switch (nme.action) {
         case MotionEvent.ACTION_DOWN:
+            stopFling();
             state = STATE_DOWN;
             touch.down(nme);
             break;
@@ -546,7 +617,7 @@ public class TouchPadHandler {
             // transition to STATE_MULTI_DOWN
             if (touch.drag) {
                 // cancel the drag by releasing the mouse button
-                send(TouchPadEvent.clear());
+                send(TouchPadEvent.clear(event));
             }
             state = STATE_MULTI_DOWN;
             // forward immediately to new state handler
@@ -561,9 +632,10 @@ public class TouchPadHandler {
         case MotionEvent.ACTION_DOWN:
             // throw away the existing DOWN state,
             // and start fresh.
+            stopFling();
             if (touch.drag) {
                 // cancel the drag by releasing the mouse button
-                send(TouchPadEvent.clear());
+                send(TouchPadEvent.clear(event));
             }
             clearState();
             state = STATE_DOWN;
@@ -580,13 +652,13 @@ public class TouchPadHandler {
                         if (! pendingTap.canceled) {
                             // go ahead and send this tap
                             // before sending the current tap
-                            send(TouchPadEvent.tap(touch.multiTouch));
+                            send(TouchPadEvent.tap(events, touch.multiTouch));
                         }
                         cancelTap();
                     }
 
                     // send this tap
-                    send(TouchPadEvent.tap(touch.multiTouch));
+                    send(TouchPadEvent.tap(events, touch.multiTouch));
                 } else {
                     // schedule a tap to be sent in the future
                     scheduleTap(nme, touch.multiTouch);
@@ -595,7 +667,7 @@ public class TouchPadHandler {
             } else {
                 if (touch.drag) {
                     // stop the drag by releasing the mouse button
-                    send(TouchPadEvent.clear());
+                    send(TouchPadEvent.clear(event));
                 }
             }
             clearState();
@@ -606,7 +678,7 @@ public class TouchPadHandler {
                 // transition to STATE_MULTI_DOWN
                 if (touch.drag) {
                     // cancel the drag by releasing the mouse button
-                    send(TouchPadEvent.clear());
+                    send(TouchPadEvent.clear(event));
                 }
                 state = STATE_MULTI_DOWN;
                 // forward immediately to new state handler
@@ -616,7 +688,7 @@ public class TouchPadHandler {
             if (touch.drag) {
                 // send the drag movement event
                 if (touch.isMoved()) {
-                    send(TouchPadEvent.drag(touch));
+                    send(TouchPadEvent.drag(event, touch));
                 }
             } else {
                 if ((nme.t - lastTapTime) < TAP_TIME_THRESHOLD) {
@@ -624,11 +696,11 @@ public class TouchPadHandler {
                     cancelTap();
                     touch.drag();
                     // initiate the drag
-                    send(TouchPadEvent.startDrag(touch));
+                    send(TouchPadEvent.startDrag(events, touch));
                 } else {
                     // send a non-drag move event
                     if (touch.isMoved()) {
-                        send(TouchPadEvent.move(touch));
+                        send(TouchPadEvent.move(event, touch));
                     }
                 }
             }
@@ -636,7 +708,7 @@ public class TouchPadHandler {
         case MotionEvent.ACTION_CANCEL:
             if (touch.drag) {
                 // cancel the drag by releasing the mouse button
-                send(TouchPadEvent.clear());
+                send(TouchPadEvent.clear(event));
             }
             clearState();
             break;
@@ -651,6 +723,7 @@ public class TouchPadHandler {
             initial(nme);
             break;
         case MotionEvent.ACTION_UP:
+            releaseScroll();
             // forward to STATE_DOWN ACTION_UP handler
             // to handle a two-finger tap
             state = STATE_DOWN;
@@ -658,19 +731,30 @@ public class TouchPadHandler {
             break;
         case MotionEvent.ACTION_MOVE:
             if (nme.pc == 1) {
-                // single-finger -- transition back
-                // to STATE_DOWN.
+                // single-finger -- transition back to STATE_DOWN.  a
+                // finger lifted off a scroll has already sent its
+                // fling (on ACTION_POINTER_UP), which the remaining
+                // finger's pointer movement then stops.
+                releaseScroll();
+                touch.endScroll();
                 state = STATE_DOWN;
                 down(nme);
             }
             touch.move(nme);
             if (touch.isScrolled()) {
-                send(TouchPadEvent.scroll(touch));
+                // this stops any fling on its own
+                send(TouchPadEvent.scroll(event, touch));
+                flingSent = false;
             }
             break;
         case MotionEvent.ACTION_CANCEL:
             clearState();
             break;
+        default:
+            if ((nme.action & MotionEvent.ACTION_MASK) == MotionEvent.ACTION_POINTER_UP) {
+                releaseScroll();
+            }
+            break;
         }
     }
 
@@ -31,13 +31,21 @@ import android.view.inputmethod.BaseInputConnection;
 import android.view.inputmethod.EditorInfo;
 import android.view.inputmethod.InputConnection;
 
+import com.cafbit.valence.rfb.RFBFramebuffer;
+
 public class TouchPadView extends View {
 
     private TouchPadHandler touchPadHandler;
     private DisplayMetrics metrics = new DisplayMetrics();
 
     public static interface OnTouchPadEventListener {
+        // the event is reused by the handler, so it's only valid
+        // until this returns.
         public void onTouchPadEvent(TouchPadEvent event);
+        // events delivered between these calls belong to one burst
+        // of input, and may be sent to the server together.
+        public void onTouchPadBatchBegin();
+        public void onTouchPadBatchEnd();
     };
 
     public TouchPadView(Context context) {
@@ -188,11 +196,64 @@ public class TouchPadView extends View {
         super.onLayout(changed, left, top, right, bottom);
     }
 
+    /////////////////////////////////////////////////////////////////
+    // remote screen
+    /////////////////////////////////////////////////////////////////
+
+    private RFBFramebuffer framebuffer = null;
+    private int screenX, screenY;
+    private float pointerX, pointerY;
+    private int[] screenPixels = new int[0];
+
+    /**
+     * Show the part of the remote screen whose top-left corner is at
+     * (x,y), one remote pixel per view pixel, with the pointer at
+     * (pointerX,pointerY) marked.  A null framebuffer goes back to the
+     * plain touchpad.
+     */
+    public void showScreen(RFBFramebuffer framebuffer, int x, int y, float pointerX, float pointerY) {
+        if ((framebuffer == null) && (this.framebuffer == null)) {
+            return;
+        }
+        this.framebuffer = framebuffer;
+        this.screenX = x;
+        this.screenY = y;
+        this.pointerX = pointerX;
+        this.pointerY = pointerY;
+        invalidate();
+    }
+
+    private void drawScreen(Canvas canvas) {
+        int w = Math.min(getWidth(), framebuffer.getWidth() - screenX);
+        int h = Math.min(getHeight(), framebuffer.getHeight() - screenY);
+        if ((w <= 0) || (h <= 0)) {
+            return;
+        }
+        if (screenPixels.length < w*h) {
+            screenPixels = new int[w*h];
+        }
+        framebuffer.readRect(screenX, screenY, w, h, screenPixels, 0, w);
+        canvas.drawBitmap(screenPixels, 0, w, 0, 0, w, h, false, null);
+
+        // the server may not draw the cursor itself
+        float px = pointerX - screenX;
+        float py = pointerY - screenY;
+        canvas.drawLines(new float[] {
+            px-l/2, py, px+l/2, py,
+            px, py-l/2, px, py+l/2
+        }, linePaint);
+    }
+
     @Override
     public void onDraw(Canvas canvas) {
         int w = this.getWidth();
         int h = this.getHeight();
 
+        if (framebuffer != null) {
+            drawScreen(canvas);
+            return;
+        }
+
         float boxPoints[] = new float[] {
             0, 0, w, 0,
             w, 0, w, h,
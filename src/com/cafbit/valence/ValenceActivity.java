@@ -21,10 +21,9 @@ import java.io.IOException;
 import java.net.UnknownHostException;
 
 //import com.cafbit.motelib.R;
-import com.cafbit.valence.RFBThread.RFBThreadHandler;
 import com.cafbit.valence.TouchPadView.OnTouchPadEventListener;
+import com.cafbit.valence.rfb.RFBFramebuffer;
 import com.cafbit.valence.rfb.RFBKeyEvent;
-import com.cafbit.valence.rfb.RFBPointerEvent;
 import com.cafbit.valence.rfb.RFBSecurity;
 import com.cafbit.valence.rfb.RFBSecurityARD;
 import com.cafbit.valence.rfb.RFBSecurityVNC;
@@ -59,6 +58,10 @@ import android.widget.ImageView.ScaleType;
 
 public class ValenceActivity extends Activity implements OnTouchPadEventListener {
     private static final String TAG = "Valence";
+    // intent extras: the other addresses which discovery found for the
+    // server, and when (in wall-clock milliseconds) they expire
+    public static final String EXTRA_ADDRESS_ALIASES = "com.cafbit.valence.addressAliases";
+    public static final String EXTRA_ADDRESS_ALIASES_EXPIRE = "com.cafbit.valence.addressAliasesExpire";
 
     private ValenceHandler handler = new ValenceHandlerImpl();
 
@@ -66,12 +69,10 @@ public class ValenceActivity extends Activity implements OnTouchPadEventListener
     // activity using Parcels or some such, instead of (or in addition
     // to) using the URL approach.
     private String address;
-    private int port;
-    private String password;
-    private boolean ard35Compatibility = false;
-    private boolean macAuthentication = false;
-    private String username;
+    // identifies this server's session in the RFBSessionManager
+    private String sessionKey;
 
+    private RFBSessionManager sessionManager;
     private RFBThread rfbThread;
     private boolean isRunning = false;
     private InputMethodManager inputMethodManager;
@@ -81,6 +82,13 @@ public class ValenceActivity extends Activity implements OnTouchPadEventListener
     private ToggleButton keyButton = null;
     private SpecialKey modifier = null;
 
+    // outbound batching state (see beginBatch())
+    private int batchDepth = 0;
+    private RFBEventRing batchRing = null;
+
+    // the part of the remote screen being shown, if any
+    private ScreenViewport screenViewport = new ScreenViewport();
+
     //////////////////////////////////////////////////////////////////////
     // Activity lifecycle
     //////////////////////////////////////////////////////////////////////
@@ -98,17 +106,8 @@ public class ValenceActivity extends Activity implements OnTouchPadEventListener
             finish();
         }
         this.address = uri.getHost();
-        this.port = uri.getPort();
-        this.password = uri.getQueryParameter("password");
-        if ((uri.getQueryParameter("ard35Compatibility") != null) &&
-            (uri.getQueryParameter("ard35Compatibility").equals("true"))) {
-            this.ard35Compatibility = true;
-        }
-        if ((uri.getQueryParameter("macAuthentication") != null) &&
-            (uri.getQueryParameter("macAuthentication").equals("true"))) {
-            this.macAuthentication = true;
-        }
-        this.username = uri.getQueryParameter("username");
+        this.sessionKey = uri.toString();
+        this.sessionManager = ((ValenceApplication)getApplication()).getSessionManager();
 
         LinearLayout layout = new LinearLayout(this);
         layout.setOrientation(LinearLayout.VERTICAL);
@@ -178,7 +177,10 @@ public class ValenceActivity extends Activity implements OnTouchPadEventListener
         touchPadView.setFocusableInTouchMode(true);
         touchPadView.requestFocus();
 
-        RFBThread savedRfbThread = (RFBThread) getLastNonConfigurationInstance();
+        // switch to this server's session if it's still open (e.g.
+        // across a configuration change, or pre-connected by
+        // SelectionActivity), rather than reconnecting.
+        RFBThread savedRfbThread = sessionManager.find(sessionKey);
         if (savedRfbThread != null) {
             reattachThread(savedRfbThread);
         } else {
@@ -201,16 +203,20 @@ public class ValenceActivity extends Activity implements OnTouchPadEventListener
 
         isRunning = true;
 
-        if (! rfbThread.isAlive()) {
-            Log.w(TAG, "rfbThread is disconnected -- reconnect.");
-            rfbThread = null;
-            startThread();
-        } else if (rfbThread != null) {
-            RFBThreadHandler rfbHandler = rfbThread.getHandler();
-            if (rfbHandler != null) {
-                rfbHandler.onActivityResume();
+        if (rfbThread.isFinished()) {
+            // another activity may have already reconnected this server
+            RFBThread cached = sessionManager.find(sessionKey);
+            if (cached != null) {
+                reattachThread(cached);
+            } else {
+                Log.w(TAG, "rfbThread is disconnected -- reconnect.");
+                rfbThread = null;
+                startThread();
             }
+        } else {
+            sessionManager.attach(rfbThread, handler);
         }
+        resumeScreen();
 
     }
 
@@ -225,25 +231,24 @@ public class ValenceActivity extends Activity implements OnTouchPadEventListener
         super.onPause();
 
         if (rfbThread != null) {
-            RFBThreadHandler rfbHandler = rfbThread.getHandler();
+            // nobody can see the screen now
+            RFBThread.RFBThreadHandler rfbHandler = rfbThread.getHandler();
             if (rfbHandler != null) {
-                rfbThread.getHandler().onActivityPause();
+                rfbHandler.onActivityPause();
             }
+            sessionManager.pause(rfbThread);
         }
 
     }
 
-    @Override
-    public Object onRetainNonConfigurationInstance() {
-        detachThread();
-        RFBThread persistentRfbThread = this.rfbThread;
-        this.rfbThread = null;
-        return persistentRfbThread;
-    }
-
+    /**
+     * The session outlives the activity: it stays open in the session
+     * manager until its idle timeout, so coming back to this server
+     * doesn't require reconnecting.
+     */
     @Override
     protected void onDestroy() {
-        stopThread();
+        detachThread();
         super.onDestroy();
     }
 
@@ -346,58 +351,84 @@ public class ValenceActivity extends Activity implements OnTouchPadEventListener
         return button;
     }
 
-    private void startThread() {
-        if (rfbThread != null) {
-            Log.e(TAG, "rfbThread should be null!");
-        }
+    /**
+     * Create (but don't start) an RFBThread for the server described
+     * by a valence: URI.
+     */
+    static RFBThread newThread(ValenceHandler handler, Uri uri) {
+        String address = uri.getHost();
+        int port = uri.getPort();
+        String password = uri.getQueryParameter("password");
+        String username = uri.getQueryParameter("username");
 
         // create the appropriate RFBSecurity object for this connection
         RFBSecurity security;
-        if (macAuthentication) {
+        if ("true".equals(uri.getQueryParameter("macAuthentication"))) {
             security = new RFBSecurityARD(username, password);
         } else {
             security = new RFBSecurityVNC(password);
         }
 
+        RFBThread rfbThread;
         if (port != -1) {
             rfbThread = new RFBThread(handler, address, port, security);
         } else {
             rfbThread = new RFBThread(handler, address, security);
         }
-        if (ard35Compatibility) {
+        if ("true".equals(uri.getQueryParameter("ard35Compatibility"))) {
             rfbThread.setArd35Compatibility(true);
         }
+        String accelerationCurve = uri.getQueryParameter("accelerationCurve");
+        if (accelerationCurve != null) {
+            try {
+                rfbThread.setAccelerationCurve(Integer.parseInt(accelerationCurve));
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "bad acceleration curve: "+accelerationCurve);
+            }
+        }
+        return rfbThread;
+    }
+
+    private void startThread() {
+        if (rfbThread != null) {
+            Log.e(TAG, "rfbThread should be null!");
+        }
+
+        Intent intent = getIntent();
+        rfbThread = newThread(handler, intent.getData());
+        rfbThread.setAddressAliases(
+            intent.getStringArrayExtra(EXTRA_ADDRESS_ALIASES),
+            intent.getLongExtra(EXTRA_ADDRESS_ALIASES_EXPIRE, 0L)
+        );
+        sessionManager.add(sessionKey, rfbThread);
+        sessionManager.attach(rfbThread, handler);
         rfbThread.start();
         startConnectDialog();
     }
 
     private void stopThread() {
         if (rfbThread != null) {
-            RFBThread.RFBThreadHandler handler = rfbThread.getHandler();
-            if (handler != null) {
-                handler.quit();
-            }
+            sessionManager.close(rfbThread);
             rfbThread = null;
         }
     }
 
     private void detachThread() {
         if (rfbThread != null) {
-            RFBThread.RFBThreadHandler handler = rfbThread.getHandler();
-            if (handler != null) {
-                // replace our activity's handler with a stub handler while
-                // the thread is detached from a valid activity.
-                rfbThread.setValenceHandler(new ValenceDetachedHandler());
-                // notify the thread of its detachment.
-                handler.onDetach();
-            }
+            // the session manager gives the thread a stub handler while
+            // it is detached from a valid activity.
+            sessionManager.detach(rfbThread);
+            rfbThread = null;
         }
     }
 
     private void reattachThread(RFBThread rfbThread) {
-        rfbThread.setValenceHandler(handler);
-        rfbThread.getHandler().onReattach();
         this.rfbThread = rfbThread;
+        sessionManager.attach(rfbThread, handler);
+        if (! rfbThread.isConnected()) {
+            // still connecting; onConnect() will dismiss the dialog.
+            startConnectDialog();
+        }
     }
 
     private ProgressDialog connectDialog;
@@ -409,6 +440,8 @@ public class ValenceActivity extends Activity implements OnTouchPadEventListener
         connectDialog.setOnCancelListener(new OnCancelListener() {
             @Override
             public void onCancel(DialogInterface dialogInterface) {
+                // don't keep a session the user gave up on.
+                stopThread();
                 ValenceActivity.this.finish();
             }
         });
@@ -444,8 +477,13 @@ public class ValenceActivity extends Activity implements OnTouchPadEventListener
         if (keyCode == KeyEvent.KEYCODE_UNKNOWN) {
             String chars = keyEvent.getCharacters();
             if (chars != null) {
-                for (char c : chars.toCharArray()) {
-                    sendKey(new RFBKeyEvent(c, modifier));
+                beginBatch();
+                try {
+                    for (char c : chars.toCharArray()) {
+                        sendKey(new RFBKeyEvent(c, modifier));
+                    }
+                } finally {
+                    endBatch();
                 }
             }
             return true;
@@ -480,7 +518,12 @@ public class ValenceActivity extends Activity implements OnTouchPadEventListener
 
     private void sendKey(RFBKeyEvent rfbKeyEvent) {
         if (isConnected()) {
-            rfbThread.getHandler().onRFBEvent(rfbKeyEvent);
+            // resolve the keysyms here, so the event ring only
+            // carries primitives.
+            int keysym = rfbKeyEvent.getKeysym();
+            if (keysym != 0) {
+                rfbThread.getEventRing().offerKey(keysym, rfbKeyEvent.getModifierKeysym());
+            }
             if (modifier != null) {
                 modifier = null;
                 modButton.setChecked(false);
@@ -488,34 +531,110 @@ public class ValenceActivity extends Activity implements OnTouchPadEventListener
         }
     }
 
+    /**
+     * Mark the start of a burst of input events which should be sent
+     * to the server in a single write.  Bursts may nest; only the
+     * outermost one holds back publication on the event ring.  We
+     * remember the ring that saw the beginning so the end is always
+     * delivered to the same place, even if the connection state
+     * changes in between.
+     */
+    private void beginBatch() {
+        if ((batchDepth++ == 0) && isConnected()) {
+            batchRing = rfbThread.getEventRing();
+            batchRing.beginBatch();
+        }
+    }
+
+    private void endBatch() {
+        if ((--batchDepth == 0) && (batchRing != null)) {
+            batchRing.endBatch();
+            batchRing = null;
+        }
+    }
+
     //
     // implement OnTouchPadEventListener
     //
 
+    @Override
+    public void onTouchPadBatchBegin() {
+        beginBatch();
+    }
+
+    @Override
+    public void onTouchPadBatchEnd() {
+        endBatch();
+        // follow the pointer
+        updateScreen();
+    }
+
     @Override
     public void onTouchPadEvent(TouchPadEvent tpe) {
         if (isConnected()) {
-            // convert the TouchPadEvent to an RFBPointerEvent by
-            // applying the following complex transformation to
-            // overcome the fundamental TPE vs. RPE mismatch
-            // inherent in the system.
-            RFBPointerEvent rpe = new RFBPointerEvent();
-            rpe.dt = tpe.dt;
-            rpe.dx = tpe.dx;
-            rpe.dy = tpe.dy;
-            rpe.button1 = tpe.button1;
-            rpe.button2 = tpe.button2;
-            rpe.sy = tpe.sy;
-            rpe.sx = tpe.sx;
-
-            // send the RFBPointerEvent
+            // copy the TouchPadEvent into a slot of the event ring;
+            // the sending thread turns it into an RFBPointerEvent.
 //tpe.debug();
-            rfbThread.getHandler().onRFBEvent(rpe);
+            rfbThread.getEventRing().offerPointer(
+                tpe.dt, tpe.dx, tpe.dy,
+                tpe.button1, tpe.button2,
+                tpe.sx, tpe.sy,
+                tpe.fling
+            );
         }
     }
 
     //
 
+    /**
+     * Start pulling screen updates again, for the whole viewport.
+     */
+    private void resumeScreen() {
+        if (rfbThread == null) {
+            return;
+        }
+        RFBThread.RFBThreadHandler rfbHandler = rfbThread.getHandler();
+        if (rfbHandler != null) {
+            rfbHandler.onActivityResume();
+        }
+        screenViewport.reset();
+        updateScreen();
+    }
+
+    /**
+     * Show the part of the remote screen around the pointer, if the
+     * session keeps a framebuffer, and ask for updates around it.
+     */
+    private void updateScreen() {
+        RFBFramebuffer framebuffer = null;
+        if (rfbThread != null) {
+            framebuffer = rfbThread.getFramebuffer();
+        }
+        if (framebuffer == null) {
+            touchPadView.showScreen(null, 0, 0, 0.0f, 0.0f);
+            return;
+        }
+        float pointerX = rfbThread.getPointerX();
+        float pointerY = rfbThread.getPointerY();
+        boolean moved = screenViewport.update(
+            framebuffer.getWidth(), framebuffer.getHeight(),
+            touchPadView.getWidth(), touchPadView.getHeight(),
+            pointerX, pointerY
+        );
+        RFBThread.RFBThreadHandler rfbHandler = rfbThread.getHandler();
+        if (moved && (rfbHandler != null)) {
+            rfbHandler.setViewport(
+                screenViewport.getRequestX(), screenViewport.getRequestY(),
+                screenViewport.getRequestWidth(), screenViewport.getRequestHeight()
+            );
+        }
+        touchPadView.showScreen(
+            framebuffer,
+            screenViewport.getVisibleX(), screenViewport.getVisibleY(),
+            pointerX, pointerY
+        );
+    }
+
     private boolean finishOnAlert = false;
     private void alert(String title, String message) {
         stopConnectDialog();
@@ -541,6 +660,8 @@ public class ValenceActivity extends Activity implements OnTouchPadEventListener
         public void onConnect();
         public void onDisconnect();
         public void onAbnormalDisconnect();
+        // the remote screen changed
+        public void onFramebufferUpdate();
     };
 
     public static class ValenceDetachedHandler implements ValenceHandler {
@@ -552,6 +673,8 @@ public class ValenceActivity extends Activity implements OnTouchPadEventListener
         public void onConnect() {}
         @Override
         public void onDisconnect() {}
+        @Override
+        public void onFramebufferUpdate() {}
     };
 
     public class ValenceHandlerImpl extends Handler implements ValenceHandler {
@@ -560,6 +683,7 @@ public class ValenceActivity extends Activity implements OnTouchPadEventListener
         public static final int MSG_CONNECT = 2;
         public static final int MSG_DISCONNECT = 3;
         public static final int MSG_ABNORMAL_DISCONNECT = 4;
+        public static final int MSG_FRAMEBUFFER_UPDATE = 5;
 
         @Override
         public void handleMessage(Message msg) {
@@ -585,6 +709,9 @@ public class ValenceActivity extends Activity implements OnTouchPadEventListener
                 break;
             case MSG_CONNECT:
                 stopConnectDialog();
+                // onResume() may have run before the thread could
+                // take messages.
+                resumeScreen();
                 break;
             case MSG_DISCONNECT:
                 finishOnAlert = true;
@@ -594,6 +721,9 @@ public class ValenceActivity extends Activity implements OnTouchPadEventListener
                 finishOnAlert = true;
                 alert("Disconnect", "The remote host closed the connection.");
                 break;
+            case MSG_FRAMEBUFFER_UPDATE:
+                updateScreen();
+                break;
             }
         }
 
@@ -614,6 +744,13 @@ public class ValenceActivity extends Activity implements OnTouchPadEventListener
         public void onAbnormalDisconnect() {
             sendMessage(Message.obtain(this, MSG_ABNORMAL_DISCONNECT));
         }
+
+        public void onFramebufferUpdate() {
+            // one redraw covers any number of updates
+            if (! hasMessages(MSG_FRAMEBUFFER_UPDATE)) {
+                sendMessage(Message.obtain(this, MSG_FRAMEBUFFER_UPDATE));
+            }
+        }
     }
 
 
@@ -24,11 +24,19 @@ import com.cafbit.motelib.MoteApplication;
 import com.cafbit.motelib.MoteContext;
 
 import android.app.Application;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
 
 public class ValenceApplication extends Application implements MoteApplication {
 
+    public static final String PREF_SESSION_KEEP_ALIVE = "sessionKeepAlive";
+    public static final String PREF_POINTER_PREDICTION = "pointerPrediction";
+    public static final String PREF_SHOW_SCREEN = "showScreen";
+
     private static ValenceApplication instance;
     private MoteContext moteContext;
+    private RFBSessionManager sessionManager;
 
     public ValenceApplication() {
     }
@@ -38,6 +46,50 @@ public class ValenceApplication extends Application implements MoteApplication {
         super.onCreate();
         instance = this;
         this.moteContext = new MoteContextImpl(this);
+        this.sessionManager = new RFBSessionManager();
+
+        // the preference listener is held in a field, since
+        // SharedPreferences only keeps a weak reference to it.
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        applyKeepAlive(prefs);
+        applyPointerPrediction(prefs);
+        applyShowScreen(prefs);
+        prefs.registerOnSharedPreferenceChangeListener(prefListener);
+    }
+
+    private SharedPreferences.OnSharedPreferenceChangeListener prefListener =
+        new SharedPreferences.OnSharedPreferenceChangeListener() {
+            @Override
+            public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                if (PREF_SESSION_KEEP_ALIVE.equals(key)) {
+                    applyKeepAlive(prefs);
+                } else if (PREF_POINTER_PREDICTION.equals(key)) {
+                    applyPointerPrediction(prefs);
+                } else if (PREF_SHOW_SCREEN.equals(key)) {
+                    applyShowScreen(prefs);
+                }
+            }
+        };
+
+    private void applyKeepAlive(SharedPreferences prefs) {
+        long seconds = RFBSessionManager.DEFAULT_IDLE_TIMEOUT / 1000;
+        String value = prefs.getString(PREF_SESSION_KEEP_ALIVE, null);
+        if (value != null) {
+            try {
+                seconds = Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                Log.w("Valence", "bad "+PREF_SESSION_KEEP_ALIVE+" preference: "+value);
+            }
+        }
+        sessionManager.setKeepAliveTime(seconds * 1000);
+    }
+
+    private void applyPointerPrediction(SharedPreferences prefs) {
+        sessionManager.setPointerPrediction(prefs.getBoolean(PREF_POINTER_PREDICTION, false));
+    }
+
+    private void applyShowScreen(SharedPreferences prefs) {
+        sessionManager.setFramebufferEnabled(prefs.getBoolean(PREF_SHOW_SCREEN, false));
     }
 
     @Override
@@ -45,6 +97,10 @@ public class ValenceApplication extends Application implements MoteApplication {
         return moteContext;
     }
 
+    public RFBSessionManager getSessionManager() {
+        return sessionManager;
+    }
+
     public ValenceApplication getInstance() {
         return instance;
     }
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cafbit.valence.device;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.cafbit.valence.rfb.DES;
+import com.cafbit.valence.rfb.RFBAuthException;
+import com.cafbit.valence.rfb.RFBConnection;
+import com.cafbit.valence.rfb.RFBException;
+import com.cafbit.valence.rfb.RFBSecurity;
+import com.cafbit.valence.rfb.RFBSecurityARD;
+import com.cafbit.valence.rfb.RFBSecurityVNC;
+import com.cafbit.valence.rfb.RFBTimeoutException;
+
+/**
+ * Checks the stored credentials of many devices at once, e.g. after
+ * their passwords have been rotated.  This is the batch form of
+ * ValenceDeviceClass.probe(device, PROBE_AUTH): each device gets a full
+ * handshake with its own address and credentials, followed by a
+ * disconnect.  It needs no UI.
+ *
+ * At most maxConnections handshakes are in flight at once, and each is
+ * bounded by the host timeout.  Results are delivered as they complete,
+ * not in the order of the device list.  Devices which share a VNC
+ * password share one keyed DES instance.
+ */
+public class ValenceCredentialVerifier {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 16;
+    public static final long DEFAULT_HOST_TIMEOUT = 15000; // 15 seconds
+
+    // result codes
+    /** The server accepted the credentials. */
+    public static final int RESULT_OK          = 0;
+    /** The server let us in without checking the credentials. */
+    public static final int RESULT_NO_AUTH     = 1;
+    /** The server rejected the credentials. */
+    public static final int RESULT_AUTH_FAILED = 2;
+    /** The handshake didn't finish within the host timeout. */
+    public static final int RESULT_TIMEOUT     = 3;
+    /** The host couldn't be resolved or connected to. */
+    public static final int RESULT_UNREACHABLE = 4;
+    /** Anything else (protocol errors, unsupported security, etc.) */
+    public static final int RESULT_ERROR       = 5;
+
+    private static final String[] RESULT_NAMES = {
+        "ok", "no auth", "auth failed", "timeout", "unreachable", "error"
+    };
+
+    public static class Result {
+        public ValenceDevice device;
+        public int result;
+        public String message;
+        public String serverName;
+        public long elapsed; // milliseconds
+
+        public String toString() {
+            return device.address+":"+device.port+" "+RESULT_NAMES[result]+
+                " ("+elapsed+"ms)"+((message != null) ? ": "+message : "");
+        }
+    }
+
+    public interface OnResultListener {
+        public void onResult(Result result);
+    }
+
+    private static int serial = 0;
+
+    private int maxConnections;
+    private long hostTimeout;
+    // keyed DES instances, by password
+    private HashMap<String,DES> desCache = new HashMap<String,DES>();
+
+    public ValenceCredentialVerifier() {
+        this(DEFAULT_MAX_CONNECTIONS, DEFAULT_HOST_TIMEOUT);
+    }
+
+    public ValenceCredentialVerifier(int maxConnections, long hostTimeout) {
+        this.maxConnections = Math.max(1, maxConnections);
+        this.hostTimeout = hostTimeout;
+    }
+
+    public static String getResultName(int result) {
+        return RESULT_NAMES[result];
+    }
+
+    /**
+     * Verify the credentials of every device, calling the listener (on
+     * the calling thread) as each result comes in.  This blocks until
+     * all devices have been checked, and returns the number which
+     * accepted their credentials.
+     */
+    public int verify(List<ValenceDevice> devices, OnResultListener listener) throws InterruptedException {
+        if (devices.isEmpty()) {
+            return 0;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(
+            Math.min(maxConnections, devices.size()), threadFactory
+        );
+        CompletionService<Result> completion = new ExecutorCompletionService<Result>(executor);
+        try {
+            for (final ValenceDevice device : devices) {
+                completion.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() {
+                        return verify(device);
+                    }
+                });
+            }
+            int ok = 0;
+            for (int i=0; i<devices.size(); i++) {
+                Result result;
+                try {
+                    result = completion.take().get();
+                } catch (ExecutionException e) {
+                    // verify(device) catches everything it expects
+                    throw new RuntimeException(e.getCause());
+                }
+                if (result.result == RESULT_OK) {
+                    ok++;
+                }
+                listener.onResult(result);
+            }
+            return ok;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Verify the credentials of one device.  This may be called from
+     * any thread.
+     */
+    public Result verify(ValenceDevice device) {
+        Result result = new Result();
+        result.device = device;
+        long start = System.nanoTime();
+
+        RFBSecurity security;
+        if (device.macAuthentication) {
+            security = new RFBSecurityARD(device.username, device.password);
+        } else {
+            security = new RFBSecurityVNC(getDES(device.password));
+        }
+        RFBConnection conn = new RFBConnection(device.address, device.port, security);
+        conn.setHandshakeTimeout(hostTimeout);
+        try {
+            conn.connect();
+            result.serverName = conn.getServerName();
+            // connect() falls back to "None" security if the server
+            // doesn't offer ours.
+            result.result = RESULT_NO_AUTH;
+            for (byte type : conn.getSecurityTypes()) {
+                if (type == security.getType()) {
+                    result.result = RESULT_OK;
+                }
+            }
+        } catch (RFBAuthException e) {
+            result.result = RESULT_AUTH_FAILED;
+            result.message = e.getMessage();
+        } catch (RFBTimeoutException e) {
+            result.result = RESULT_TIMEOUT;
+            result.message = e.getMessage();
+        } catch (RFBException e) {
+            result.result = RESULT_ERROR;
+            result.message = e.getMessage();
+        } catch (UnknownHostException e) {
+            result.result = RESULT_UNREACHABLE;
+            result.message = "unknown host";
+        } catch (ConnectException e) {
+            result.result = RESULT_UNREACHABLE;
+            result.message = e.getMessage();
+        } catch (NoRouteToHostException e) {
+            result.result = RESULT_UNREACHABLE;
+            result.message = e.getMessage();
+        } catch (IOException e) {
+            result.result = RESULT_ERROR;
+            result.message = e.toString();
+        } finally {
+            try {
+                conn.disconnect();
+            } catch (IOException e) {
+            }
+        }
+
+        result.elapsed = (System.nanoTime() - start) / 1000000L;
+        return result;
+    }
+
+    /**
+     * Return the keyed DES instance for a VNC password, computing its
+     * key schedule only the first time the password is seen.
+     */
+    private DES getDES(String password) {
+        if (password == null) {
+            password = "";
+        }
+        synchronized (desCache) {
+            DES des = desCache.get(password);
+            if (des == null) {
+                des = DES.forPassword(password);
+                desCache.put(password, des);
+            }
+            return des;
+        }
+    }
+
+    private static ThreadFactory threadFactory = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "rfbverify-"+(serial++));
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+}
@@ -19,9 +19,11 @@ package com.cafbit.valence.device;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.Collection;
 
 import com.cafbit.motelib.model.Device;
 import com.cafbit.motelib.model.DeviceClass;
+import com.cafbit.valence.rfb.PointerAccelerationCurve;
 import com.cafbit.xmlfoo.annotations.LameCrypt;
 
 public class ValenceDevice extends Device {
@@ -34,6 +36,12 @@ public class ValenceDevice extends Device {
     public boolean ard35Compatibility = false;
     public boolean macAuthentication = false;
     public String username;
+    public int accelerationCurve = PointerAccelerationCurve.DEFAULT_CURVE;
+    // the other addresses which discovery found for this device's host,
+    // and when (in wall-clock milliseconds) they expire.  These aren't
+    // saved, so a device the user typed in never has any.
+    private transient String[] addressAliases = null;
+    private transient long addressAliasesExpire = 0L;
 
     public ValenceDevice() {
     }
@@ -62,6 +70,33 @@ public class ValenceDevice extends Device {
         return inetAddress;
     }
 
+    /**
+     * Record every address which discovery found for this device's host
+     * (including its own), good for "ttl" milliseconds.
+     */
+    public void setAddressAliases(Collection<InetAddress> hostAddresses, long ttl) {
+        addressAliases = new String[hostAddresses.size()];
+        int i = 0;
+        for (InetAddress hostAddress : hostAddresses) {
+            addressAliases[i++] = hostAddress.getHostAddress();
+        }
+        addressAliasesExpire = System.currentTimeMillis() + ttl;
+    }
+
+    /**
+     * Return the addresses given to setAddressAliases(), or null if
+     * there aren't any or they have expired.
+     */
+    public String[] getAddressAliases() {
+        if ((addressAliases == null) || (System.currentTimeMillis() - addressAliasesExpire >= 0)) {
+            return null;
+        }
+        return addressAliases;
+    }
+    public long getAddressAliasesExpire() {
+        return addressAliasesExpire;
+    }
+
     @Override
     public String getHeadline() {
         return serverName;
@@ -20,6 +20,7 @@ package com.cafbit.valence.device;
 import java.io.IOException;
 
 import android.content.Context;
+import android.util.Log;
 import android.view.View;
 
 import com.cafbit.motelib.discovery.DiscoveryManagerThread;
@@ -49,6 +50,12 @@ public class ValenceDeviceClass implements DeviceClass {
     // probe types
     static final int PROBE_SECURITY = 1;
     static final int PROBE_AUTH     = 2;
+    // read the security types, and authenticate on the same
+    // connection if the server accepts the credentials.  If it
+    // doesn't (or anything else goes wrong during authentication),
+    // this falls back to PROBE_SECURITY.  Only use it with
+    // credentials the user has just confirmed for this server.
+    static final int PROBE_SECURITY_AUTH = 3;
 
     @Override
     public String getDeviceCode() {
@@ -81,6 +88,26 @@ public class ValenceDeviceClass implements DeviceClass {
         String serverName;
         Version serverVersion;
         byte[] securityTypes;
+        // PROBE_SECURITY_AUTH: were these credentials accepted?
+        boolean authenticated = false;
+        private boolean macAuthentication;
+        private String username;
+        private String password;
+
+        /**
+         * Return true if the probe has already authenticated with the
+         * device's current credentials.
+         */
+        boolean isAuthenticated(ValenceDevice device) {
+            return authenticated &&
+                (device.macAuthentication == macAuthentication) &&
+                equal(device.password, password) &&
+                ((! macAuthentication) || equal(device.username, username));
+        }
+
+        private static boolean equal(String a, String b) {
+            return (a == null) ? (b == null) : a.equals(b);
+        }
     }
 
     public ProbeResult probe(final ValenceDevice device, int probeType) throws IOException {
@@ -96,19 +123,37 @@ public class ValenceDeviceClass implements DeviceClass {
 // short-circuit mac auth
 //security = new RFBSecurityVNC(device.password);
 
-        RFBConnection conn;
+        RFBConnection conn = newConnection(device, security);
         ProbeResult probeResult = new ProbeResult();
-        if (device.address.equals(RFBConnection.MAGIC_DEMO_HOSTNAME)) {
-            conn = new RFBConnection(device.address);
-        } else {
-            conn = new RFBConnection(device.address, device.port, security);
-        }
         try {
             if (probeType == PROBE_SECURITY) {
                 conn.probeSecurity();
             } else if (probeType == PROBE_AUTH) {
                 conn.connect();
                 conn.disconnect();
+            } else if (probeType == PROBE_SECURITY_AUTH) {
+                try {
+                    conn.connect();
+                    probeResult.authenticated = true;
+                    probeResult.macAuthentication = device.macAuthentication;
+                    probeResult.username = device.username;
+                    probeResult.password = device.password;
+                } catch (RFBException e) {
+                    Log.w("Valence", "authenticating probe failed: "+e.getMessage());
+                } catch (IOException e) {
+                    Log.w("Valence", "authenticating probe failed: "+e.getMessage());
+                } finally {
+                    try {
+                        conn.disconnect();
+                    } catch (IOException e) {
+                    }
+                }
+                if (! probeResult.authenticated) {
+                    // the security types are all that this probe
+                    // really needs, so start over without credentials.
+                    conn = newConnection(device, security);
+                    conn.probeSecurity();
+                }
             }
         } catch (RFBException e) {
             throw new IOException(e.getMessage());
@@ -129,6 +174,14 @@ public class ValenceDeviceClass implements DeviceClass {
         return probeResult;
     }
 
+    private static RFBConnection newConnection(ValenceDevice device, RFBSecurity security) {
+        if (device.address.equals(RFBConnection.MAGIC_DEMO_HOSTNAME)) {
+            return new RFBConnection(device.address);
+        } else {
+            return new RFBConnection(device.address, device.port, security);
+        }
+    }
+
     @Override
     public ReceiverThread getCustomDiscoveryReceiverThread(NetworkManagerThread networkManager) throws IOException {
         return null;
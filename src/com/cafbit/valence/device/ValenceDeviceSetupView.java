@@ -24,6 +24,7 @@ import java.net.UnknownHostException;
 import com.cafbit.motelib.settings.DeviceSetupState;
 import com.cafbit.motelib.settings.OnDeviceChange;
 import com.cafbit.motelib.settings.OnSaveDeviceSetupState;
+import com.cafbit.valence.rfb.PointerAccelerationCurve;
 import com.cafbit.valence.rfb.RFBConnection;
 
 import android.app.AlertDialog;
@@ -47,6 +48,8 @@ import android.widget.CompoundButton;
 import android.widget.EditText;
 import android.widget.FrameLayout;
 import android.widget.LinearLayout;
+import android.widget.RadioButton;
+import android.widget.RadioGroup;
 import android.widget.ScrollView;
 import android.widget.TextView;
 
@@ -66,12 +69,17 @@ public class ValenceDeviceSetupView extends FrameLayout implements OnClickListen
     private CheckBox macAuthCheckbox;
     private EditText usernameEdit;
     private CheckBox ard35CompatibilityCheckbox;
+    private RadioGroup accelerationCurveGroup;
 
     public static class ValenceDeviceSetupState extends DeviceSetupState {
         public ValenceDevice device = null;
         public int state = 1;
         public boolean isUpdate = false;
         private ValenceDeviceClass.ProbeResult probeResult;
+        // the server the user last confirmed the credentials for (in
+        // step 2), if any
+        private String confirmedAddress = null;
+        private int confirmedPort = 0;
     }
     private ValenceDeviceSetupState state = new ValenceDeviceSetupState();
 
@@ -292,6 +300,23 @@ public class ValenceDeviceSetupView extends FrameLayout implements OnClickListen
             usernameEdit = null;
         }
 
+        // pointer acceleration
+        TextView accelerationLabel = new TextView(context);
+        accelerationLabel.setText("Pointer acceleration:");
+        layout.addView(accelerationLabel);
+        accelerationCurveGroup = new RadioGroup(context);
+        for (int curve=0; curve<PointerAccelerationCurve.NUM_CURVES; curve++) {
+            RadioButton curveButton = new RadioButton(context);
+            curveButton.setId(curve);
+            curveButton.setText(PointerAccelerationCurve.getName(curve));
+            curveButton.setTextSize(TypedValue.COMPLEX_UNIT_PX, passwordLabel.getTextSize());
+            curveButton.setTypeface(passwordLabel.getTypeface());
+            accelerationCurveGroup.addView(curveButton);
+        }
+        accelerationCurveGroup.check(state.device.accelerationCurve);
+        layout.addView(accelerationCurveGroup);
+        layout.addView(createHorizontalRule());
+
         Button button = new Button(context);
         button.setText("Next...");
         button.setOnClickListener(this);
@@ -326,6 +351,9 @@ public class ValenceDeviceSetupView extends FrameLayout implements OnClickListen
         if (state.device.ard35Compatibility) {
             sb.append("Using button-2 instead of button-3 for two-finger taps.\n");
         }
+        if (state.device.accelerationCurve != PointerAccelerationCurve.DEFAULT_CURVE) {
+            sb.append("Pointer acceleration: "+PointerAccelerationCurve.getName(state.device.accelerationCurve)+"\n");
+        }
         TextView deviceLabel = new TextView(context);
         deviceLabel.setText(sb.toString());
         layout.addView(deviceLabel);
@@ -415,6 +443,11 @@ public class ValenceDeviceSetupView extends FrameLayout implements OnClickListen
             state.device.password = password;
             state.device.serverName = name;
 
+            int curve = accelerationCurveGroup.getCheckedRadioButtonId();
+            if ((curve >= 0) && (curve < PointerAccelerationCurve.NUM_CURVES)) {
+                state.device.accelerationCurve = curve;
+            }
+
             if (ard35CompatibilityCheckbox == null) {
                 state.device.ard35Compatibility = false;
             } else {
@@ -444,10 +477,9 @@ public class ValenceDeviceSetupView extends FrameLayout implements OnClickListen
             alert("Error", "A valid IP address or hostname is required to connect to this VNC server.");
             return;
         }
-        final InetAddress deviceAddress;
-        if (state.device.address.equals(RFBConnection.MAGIC_DEMO_HOSTNAME)) {
-            deviceAddress = null;
-        } else {
+        if (! state.device.address.equals(RFBConnection.MAGIC_DEMO_HOSTNAME)) {
+            // make sure the name resolves.  (RFBConnection races all
+            // of its addresses when connecting.)
             try {
                 InetAddress addresses[] =
                     InetAddress.getAllByName(state.device.address);
@@ -455,7 +487,6 @@ public class ValenceDeviceSetupView extends FrameLayout implements OnClickListen
                 if (addresses.length == 0) {
                     throw new UnknownHostException("No such host.");
                 }
-                deviceAddress = addresses[0];
             } catch (UnknownHostException e) {
                 e.printStackTrace();
                 alert("Error","\""+state.device.address+"\" is not a valid IP address or hostname.");
@@ -481,6 +512,19 @@ public class ValenceDeviceSetupView extends FrameLayout implements OnClickListen
             }
         }
 
+        state.confirmedAddress = state.device.address;
+        state.confirmedPort = state.device.port;
+
+        // the first probe may have already logged in with these
+        // credentials, in which case there's no need to do it again.
+        if ((state.probeResult != null) && state.probeResult.isAuthenticated(state.device)) {
+            if ((state.device.serverName == null) || (state.device.serverName.length() == 0)) {
+                state.device.serverName = state.probeResult.serverName;
+            }
+            transition(3);
+            return;
+        }
+
         probe();
     }
 
@@ -499,8 +543,14 @@ public class ValenceDeviceSetupView extends FrameLayout implements OnClickListen
                 try {
                     ValenceDeviceClass.ProbeResult probeResult;
                     if (state.state == 1) {
-                        probeResult =
-                            deviceClass.probe(device, ValenceDeviceClass.PROBE_SECURITY);
+                        // if the user has just confirmed credentials for
+                        // this very server (and come back to step 1),
+                        // try them on the same connection.  Saved
+                        // credentials aren't sent until step 2.
+                        int probeType = hasConfirmedCredentials(device) ?
+                            ValenceDeviceClass.PROBE_SECURITY_AUTH :
+                            ValenceDeviceClass.PROBE_SECURITY;
+                        probeResult = deviceClass.probe(device, probeType);
                     } else {
                         probeResult =
                             deviceClass.probe(device, ValenceDeviceClass.PROBE_AUTH);
@@ -520,6 +570,13 @@ public class ValenceDeviceSetupView extends FrameLayout implements OnClickListen
         // failure = messagebox + return to setupview
     }
 
+    private boolean hasConfirmedCredentials(ValenceDevice device) {
+        return (device.password != null) &&
+            (device.address != null) &&
+            device.address.equals(state.confirmedAddress) &&
+            (device.port == state.confirmedPort);
+    }
+
     private class ProbeHandler extends Handler implements OnCancelListener {
         //
         // three outcomes:
@@ -543,7 +600,7 @@ public class ValenceDeviceSetupView extends FrameLayout implements OnClickListen
             if (message.what == MSG_PROBE_SUCCESS) {
                 ValenceDeviceClass.ProbeResult probeResult =
                     (ValenceDeviceClass.ProbeResult)message.obj;
-                if (probeResult.probeType == ValenceDeviceClass.PROBE_SECURITY) {
+                if (probeResult.probeType != ValenceDeviceClass.PROBE_AUTH) {
                     onSuccessfulSecurityProbe(probeResult);
                 } else {
                     onSuccessfulAuthProbe(probeResult);
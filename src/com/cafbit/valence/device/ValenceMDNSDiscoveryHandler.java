@@ -35,6 +35,7 @@ import com.cafbit.motelib.model.DeviceClass;
 import com.cafbit.netlib.NetUtil;
 import com.cafbit.netlib.dns.DNSAnswer;
 import com.cafbit.netlib.dns.DNSMessage;
+import com.cafbit.valence.rfb.RFBConnection;
 
 public class ValenceMDNSDiscoveryHandler implements MDNSDiscoveryHandler {
 
@@ -122,8 +123,11 @@ public class ValenceMDNSDiscoveryHandler implements MDNSDiscoveryHandler {
                     // query address of the SRV name
                     query(c.srv.name);
                 } else {
-                    // we have a match!
-                    for (InetAddress address : addressCache.get(c.srv.name)) {
+                    // we have a match!  a device is listed for each
+                    // address, but connecting to any of them will race
+                    // them all, for as long as the addresses are fresh.
+                    Set<InetAddress> hostAddresses = addressCache.get(c.srv.name);
+                    for (InetAddress address : hostAddresses) {
                         if (c.addresses.contains(address)) {
                             continue;
                         } else {
@@ -135,6 +139,9 @@ public class ValenceMDNSDiscoveryHandler implements MDNSDiscoveryHandler {
                         device.address = address.getHostAddress();
                         device.deviceClass = deviceClass;
                         device.port = c.srv.port;
+                        if (hostAddresses.size() > 1) {
+                            device.setAddressAliases(hostAddresses, RFBConnection.ADDRESS_ALIAS_TTL);
+                        }
                         device.serverName = c.srv.name;
                         if (device.serverName.endsWith(".local")) {
                             device.serverName = device.serverName.substring(0, device.serverName.length()-6);
@@ -17,9 +17,17 @@ package com.cafbit.valence.rfb;
  */
 
 import java.util.Arrays;
+import java.util.Random;
 
 /**
- * Super-slow DES implementation for the overly patient.
+ * Formerly super-slow DES implementation for the overly patient.
+ *
+ * A DES instance holds the 16 subkeys for one key, so that encrypting
+ * many blocks with the same key (or the same password) computes the key
+ * schedule only once.  The bit permutations are done with byte-indexed
+ * lookup tables, and the S-boxes are merged with the P permutation into
+ * SP-boxes.  The original bit-at-a-time code is kept as
+ * encryptBlockReference(), for testing and benchmarking.
  *
  * The following resources proved valuable in developing and testing
  * this code:
@@ -262,6 +270,86 @@ public class DES {
         return S[boxNumber-1][src];
     }
 
+    //////////////////////////////////////////////////////////////////////
+    //
+    // Lookup tables
+    //
+    // Walking a permutation table one bit at a time is slow, so each
+    // permutation is expanded into one 256-entry table per input byte.
+    // Entry [j][v] is the permutation of an input which is zero except
+    // for the value v in byte j (counting from the left-most byte).
+    // Since a permutation only moves bits around, the permutation of
+    // any input is the OR of the entries for each of its bytes.
+    //
+    //////////////////////////////////////////////////////////////////////
+
+    private static final long[][] IP_TABLE = permutationTable(IP, 64);
+    private static final long[][] FP_TABLE = permutationTable(FP, 64);
+    private static final long[][] E_TABLE = permutationTable(E, 32);
+    private static final long[][] PC1_TABLE = permutationTable(PC1, 64);
+    private static final long[][] PC2_TABLE = permutationTable(PC2, 56);
+
+    /**
+     * SP-boxes.  SP[i][x] is the P permutation of S-box i+1's output for
+     * the 6-bit input x, with that output in its proper place in the
+     * 32-bit S-box result.  The Feistel function's substitution and
+     * permutation steps then reduce to ORing eight SP-box entries.
+     */
+    private static final int[][] SP = spTable();
+
+    private static long[][] permutationTable(byte[] table, int srcWidth) {
+        int bytes = srcWidth / 8;
+        long[][] t = new long[bytes][256];
+        for (int j=0; j<bytes; j++) {
+            int shift = srcWidth - 8*(j+1);
+            for (int v=0; v<256; v++) {
+                t[j][v] = permute(table, srcWidth, ((long)v)<<shift);
+            }
+        }
+        return t;
+    }
+
+    private static int[][] spTable() {
+        int[][] sp = new int[8][64];
+        for (int box=0; box<8; box++) {
+            for (int x=0; x<64; x++) {
+                sp[box][x] = P(S(box+1, (byte)x) << (28 - 4*box));
+            }
+        }
+        return sp;
+    }
+
+    /**
+     * Permute a 64-bit value using a table from permutationTable().
+     */
+    private static long lookup64(long[][] t, long src) {
+        return t[0][(int)(src>>>56)] | t[1][(int)(src>>>48)&0xFF] |
+            t[2][(int)(src>>>40)&0xFF] | t[3][(int)(src>>>32)&0xFF] |
+            t[4][(int)(src>>>24)&0xFF] | t[5][(int)(src>>>16)&0xFF] |
+            t[6][(int)(src>>>8)&0xFF] | t[7][(int)src&0xFF];
+    }
+
+    /**
+     * Permute a 32-bit value using a table from permutationTable().
+     */
+    private static long lookup32(long[][] t, int src) {
+        return t[0][src>>>24] | t[1][(src>>>16)&0xFF] |
+            t[2][(src>>>8)&0xFF] | t[3][src&0xFF];
+    }
+
+    /**
+     * Permute a value of any whole number of bytes using a table from
+     * permutationTable().
+     */
+    private static long lookup(long[][] t, long src) {
+        long dst = 0;
+        for (int j=t.length-1; j>=0; j--) {
+            dst |= t[j][(int)src&0xFF];
+            src >>>= 8;
+        }
+        return dst;
+    }
+
     /**
      * Utility method to convert 8 bytes (starting at the specified
      * offset to the supplied byte array) into a single 64-bit long
@@ -306,24 +394,43 @@ public class DES {
     //
     //////////////////////////////////////////////////////////////////////
 
+    // the 16 48-bit subkeys for this instance's key
+    private final long[] subkeys;
+
+    /**
+     * Create a DES instance for the given 64-bit key, computing its
+     * key schedule.
+     */
+    public DES(long key) {
+        this.subkeys = createSubkeys(key);
+    }
+
+    /**
+     * Create a DES instance for the key in the first 8 bytes of the
+     * supplied array (zero-padded if shorter).
+     */
+    public DES(byte[] key) {
+        this(getLongFromBytes(key, 0));
+    }
+
+    /**
+     * Create a DES instance for a VNC password.  See passwordToKey().
+     */
+    public static DES forPassword(String password) {
+        return new DES(passwordToKey(password));
+    }
+
     /**
      * The Feistel function is the heart of DES.
      */
     private static int feistel(int r, /* 48 bits */ long subkey) {
-        // 1. expansion
-        long e = E(r);
-        // 2. key mixing
-        long x = e ^ subkey;
-        // 3. substitution
-        int dst = 0;
-        for (int i=0; i<8; i++) {
-            dst>>>=4;
-            int s = S(8-i, (byte)(x&0x3F));
-            dst |= s << 28;
-            x>>=6;
-        }
-        // 4. permutation
-        return P(dst);
+        // expansion and key mixing
+        long x = lookup32(E_TABLE, r) ^ subkey;
+        // substitution and permutation
+        return SP[0][(int)(x>>>42)&0x3F] | SP[1][(int)(x>>>36)&0x3F] |
+            SP[2][(int)(x>>>30)&0x3F] | SP[3][(int)(x>>>24)&0x3F] |
+            SP[4][(int)(x>>>18)&0x3F] | SP[5][(int)(x>>>12)&0x3F] |
+            SP[6][(int)(x>>>6)&0x3F] | SP[7][(int)x&0x3F];
     }
 
     /**
@@ -333,34 +440,21 @@ public class DES {
     private static long[] createSubkeys(/* 64 bits */ long key) {
         long subkeys[] = new long[16];
 
-        // perform the PC1 permutation
-        key = PC1(key);
-
-        // split into 28-bit left and right (c and d) pairs.
+        // perform the PC1 permutation, and split into 28-bit left
+        // and right (c and d) pairs.
+        key = lookup64(PC1_TABLE, key);
         int c = (int) (key>>28);
         int d = (int) (key&0x0FFFFFFF);
 
-        // for each of the 16 needed subkeys, perform a bit
-        // rotation on each 28-bit keystuff half, then join
-        // the halves together and permute to generate the
-        // subkey.
         for (int i=0; i<16; i++) {
             // rotate the 28-bit values
-            if (rotations[i] == 1) {
-                // rotate by 1 bit
-                c = ((c<<1) & 0x0FFFFFFF) | (c>>27);
-                d = ((d<<1) & 0x0FFFFFFF) | (d>>27);
-            } else {
-                // rotate by 2 bits
-                c = ((c<<2) & 0x0FFFFFFF) | (c>>26);
-                d = ((d<<2) & 0x0FFFFFFF) | (d>>26);
-            }
+            int n = rotations[i];
+            c = ((c<<n) & 0x0FFFFFFF) | (c>>(28-n));
+            d = ((d<<n) & 0x0FFFFFFF) | (d>>(28-n));
 
-            // join the two keystuff halves together.
+            // join the halves and perform the PC2 permutation
             long cd = (c&0xFFFFFFFFL)<<28 | (d&0xFFFFFFFFL);
-
-            // perform the PC2 permutation
-            subkeys[i] = PC2(cd);
+            subkeys[i] = lookup(PC2_TABLE, cd);
         }
 
         return subkeys; /* 48-bit values */
@@ -370,35 +464,56 @@ public class DES {
      * Encrypt a 64-bit block of plaintext message into a 64-bit
      * ciphertext.
      */
-    public static long encryptBlock(long m, /* 64 bits */ long key) {
-        // generate the 16 subkeys
-        long subkeys[] = createSubkeys(key);
-
-        // perform the initial permutation
-        long ip = IP(m);
-
-        // split the 32-bit value into 16-bit left and right halves.
+    public long encryptBlock(long m) {
+        long ip = lookup64(IP_TABLE, m);
         int l = (int) (ip>>32);
-        int r = (int) (ip&0xFFFFFFFFL);
+        int r = (int) ip;
 
-        // perform 16 rounds
-        for (int i=0; i<16; i++) {
-            int previous_l = l;
-            // the right half becomes the new left half.
-            l = r;
-            // the Feistel function is applied to the old left half
-            // and the resulting value is stored in the right half.
-            r = previous_l ^ feistel(r, subkeys[i]);
+        // perform 16 rounds, two at a time, so that the halves
+        // trade places by trading roles instead of by copying.
+        for (int i=0; i<16; i+=2) {
+            l ^= feistel(r, subkeys[i]);
+            r ^= feistel(l, subkeys[i+1]);
         }
 
-        // reverse the two 32-bit segments (left to right; right to left)
-        long rl = (r&0xFFFFFFFFL)<<32 | (l&0xFFFFFFFFL);
+        // reverse the two 32-bit segments and apply the final
+        // permutation
+        return lookup64(FP_TABLE, (r&0xFFFFFFFFL)<<32 | (l&0xFFFFFFFFL));
+    }
 
-        // apply the final permutation
-        long fp = FP(rl);
+    /**
+     * Wrapper around encryptBlock() that allows arguments to be byte
+     * arrays instead of longs.
+     */
+    public void encryptBlock(
+        byte[] message,
+        int messageOffset,
+        byte[] ciphertext,
+        int ciphertextOffset
+    ) {
+        long m = getLongFromBytes(message, messageOffset);
+        long c = encryptBlock(m);
+        getBytesFromLong(ciphertext, ciphertextOffset, c);
+    }
 
-        // return the ciphertext
-        return fp;
+    /**
+     * Encrypt the supplied message, padding it with zeros to a multiple
+     * of 64 bits (8 bytes), in ECB mode.
+     */
+    public byte[] encrypt(byte[] message) {
+        byte[] ciphertext = new byte[message.length];
+        for (int i=0; i<message.length; i+=8) {
+            encryptBlock(message, i, ciphertext, i);
+        }
+        return ciphertext;
+    }
+
+    /**
+     * Encrypt a 64-bit block of plaintext message into a 64-bit
+     * ciphertext.
+     */
+    public static long encryptBlock(long m, /* 64 bits */ long key) {
+        return new DES(key).encryptBlock(m);
     }
 
     /**
@@ -412,10 +527,7 @@ public class DES {
         int ciphertextOffset,
         byte[] key
     ) {
-        long m = getLongFromBytes(message, messageOffset);
-        long k = getLongFromBytes(key, 0);
-        long c = encryptBlock(m, k);
-        getBytesFromLong(ciphertext, ciphertextOffset, c);
+        new DES(key).encryptBlock(message, messageOffset, ciphertext, ciphertextOffset);
     }
 
     //////////////////////////////////////////////////////////////////////
@@ -434,14 +546,7 @@ public class DES {
      * the same key.
      */
     public static byte[] encrypt(byte[] message, byte[] key) {
-        byte[] ciphertext = new byte[message.length];
-
-        // encrypt each 8-byte (64-bit) block of the message.
-        for (int i=0; i<message.length; i+=8) {
-            encryptBlock(message, i, ciphertext, i, key);
-        }
-
-        return ciphertext;
+        return new DES(key).encrypt(message);
     }
 
     /**
@@ -503,6 +608,111 @@ public class DES {
 
     /* Decrypting is left as an exercise for the reader. ;) */
 
+    //////////////////////////////////////////////////////////////////////
+    //
+    // Reference implementation
+    //
+    // The original bit-at-a-time implementation, which is easy to
+    // follow alongside the literature.  It's kept to check the
+    // table-driven code against, and as a benchmark baseline.
+    //
+    //////////////////////////////////////////////////////////////////////
+
+    /**
+     * The Feistel function is the heart of DES.
+     */
+    private static int feistelReference(int r, /* 48 bits */ long subkey) {
+        // 1. expansion
+        long e = E(r);
+        // 2. key mixing
+        long x = e ^ subkey;
+        // 3. substitution
+        int dst = 0;
+        for (int i=0; i<8; i++) {
+            dst>>>=4;
+            int s = S(8-i, (byte)(x&0x3F));
+            dst |= s << 28;
+            x>>=6;
+        }
+        // 4. permutation
+        return P(dst);
+    }
+
+    /**
+     * Generate 16 48-bit subkeys based on the provided 64-bit key
+     * value.
+     */
+    private static long[] createSubkeysReference(/* 64 bits */ long key) {
+        long subkeys[] = new long[16];
+
+        // perform the PC1 permutation
+        key = PC1(key);
+
+        // split into 28-bit left and right (c and d) pairs.
+        int c = (int) (key>>28);
+        int d = (int) (key&0x0FFFFFFF);
+
+        // for each of the 16 needed subkeys, perform a bit
+        // rotation on each 28-bit keystuff half, then join
+        // the halves together and permute to generate the
+        // subkey.
+        for (int i=0; i<16; i++) {
+            // rotate the 28-bit values
+            if (rotations[i] == 1) {
+                // rotate by 1 bit
+                c = ((c<<1) & 0x0FFFFFFF) | (c>>27);
+                d = ((d<<1) & 0x0FFFFFFF) | (d>>27);
+            } else {
+                // rotate by 2 bits
+                c = ((c<<2) & 0x0FFFFFFF) | (c>>26);
+                d = ((d<<2) & 0x0FFFFFFF) | (d>>26);
+            }
+
+            // join the two keystuff halves together.
+            long cd = (c&0xFFFFFFFFL)<<28 | (d&0xFFFFFFFFL);
+
+            // perform the PC2 permutation
+            subkeys[i] = PC2(cd);
+        }
+
+        return subkeys; /* 48-bit values */
+    }
+
+    /**
+     * Encrypt a 64-bit block of plaintext message into a 64-bit
+     * ciphertext, the slow way.
+     */
+    static long encryptBlockReference(long m, /* 64 bits */ long key) {
+        // generate the 16 subkeys
+        long subkeys[] = createSubkeysReference(key);
+
+        // perform the initial permutation
+        long ip = IP(m);
+
+        // split the 32-bit value into 16-bit left and right halves.
+        int l = (int) (ip>>32);
+        int r = (int) (ip&0xFFFFFFFFL);
+
+        // perform 16 rounds
+        for (int i=0; i<16; i++) {
+            int previous_l = l;
+            // the right half becomes the new left half.
+            l = r;
+            // the Feistel function is applied to the old left half
+            // and the resulting value is stored in the right half.
+            r = previous_l ^ feistelReference(r, subkeys[i]);
+        }
+
+        // reverse the two 32-bit segments (left to right; right to left)
+        long rl = (r&0xFFFFFFFFL)<<32 | (l&0xFFFFFFFFL);
+
+        // apply the final permutation
+        long fp = FP(rl);
+
+        // return the ciphertext
+        return fp;
+    }
+
     //////////////////////////////////////////////////////////////////////
     //
     // Test methods
@@ -583,6 +793,19 @@ public class DES {
             parseBytes("133457799BBCDFF1")
         );
 
+        // check the table-driven code against the reference
+        // implementation with random keys and blocks.
+        Random random = new Random(1);
+        int mismatches = 0;
+        for (int i=0; i<10000; i++) {
+            long key = random.nextLong();
+            long m = random.nextLong();
+            if (encryptBlock(m, key) != encryptBlockReference(m, key)) {
+                mismatches++;
+            }
+        }
+        System.out.println("Reference check: "+(mismatches == 0 ? "PASS" : "FAIL ("+mismatches+" mismatches)"));
+
     }
 
 }
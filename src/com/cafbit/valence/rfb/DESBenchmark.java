@@ -0,0 +1,101 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cafbit.valence.rfb;
+
+import java.util.Random;
+
+/**
+ * Compares the cost of DES encryption, in nanoseconds per 8-byte block,
+ * between the original bit-at-a-time code, the table-driven code with
+ * a fresh key schedule per block, and a keyed DES instance.  A VNC
+ * authentication response is two blocks with the same key.
+ *
+ * Usage: DESBenchmark [blocks]
+ */
+public class DESBenchmark {
+
+    private static final int DEFAULT_BLOCKS = 200000;
+    private static final int WARMUP_PASSES = 2;
+    private static final int PASSES = 5;
+
+    // keep the JIT from discarding the work
+    private static long sink = 0;
+
+    public static void main(String[] args) {
+        int blocks = DEFAULT_BLOCKS;
+        if (args.length > 0) {
+            blocks = Integer.parseInt(args[0]);
+        }
+        long[] messages = new long[blocks];
+        long[] keys = new long[blocks];
+        Random random = new Random(1);
+        for (int i=0; i<blocks; i++) {
+            messages[i] = random.nextLong();
+            keys[i] = random.nextLong();
+        }
+
+        double reference = run("reference, schedule per block", messages, keys, 0, blocks/20);
+        double perBlock = run("tables, schedule per block", messages, keys, 1, blocks);
+        double keyed = run("tables, keyed instance", messages, keys, 2, blocks);
+        System.out.println(String.format(
+            "speedup: %.1fx (schedule per block), %.1fx (keyed)",
+            reference/perBlock, reference/keyed
+        ));
+        System.out.println("("+sink+")");
+    }
+
+    /**
+     * Encrypt "blocks" blocks several times with the given method, and
+     * report the mean ns/block of the passes after the warm-up.
+     */
+    private static double run(String name, long[] messages, long[] keys, int method, int blocks) {
+        long nanos = 0;
+        DES des = new DES(keys[0]);
+        for (int pass=0; pass<WARMUP_PASSES+PASSES; pass++) {
+            long start = System.nanoTime();
+            long x = 0;
+            switch (method) {
+            case 0:
+                for (int i=0; i<blocks; i++) {
+                    x ^= DES.encryptBlockReference(messages[i], keys[i]);
+                }
+                break;
+            case 1:
+                for (int i=0; i<blocks; i++) {
+                    x ^= DES.encryptBlock(messages[i], keys[i]);
+                }
+                break;
+            case 2:
+                for (int i=0; i<blocks; i++) {
+                    x ^= des.encryptBlock(messages[i]);
+                }
+                break;
+            }
+            long elapsed = System.nanoTime() - start;
+            sink ^= x;
+            if (pass >= WARMUP_PASSES) {
+                nanos += elapsed;
+            }
+        }
+        double nsPerBlock = (double)nanos / ((double)blocks * PASSES);
+        System.out.println(String.format("%s: %.1f ns/block", name, nsPerBlock));
+        return nsPerBlock;
+    }
+
+}
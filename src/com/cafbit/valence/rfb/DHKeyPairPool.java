@@ -0,0 +1,270 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cafbit.valence.rfb;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.spec.DHParameterSpec;
+
+import android.util.Log;
+
+/**
+ * Precomputed Diffie-Hellman key pairs for Mac Authentication.
+ *
+ * Generating a DH key pair is the slowest part of the ARD handshake,
+ * and ARD servers always offer the same group (prime and generator).
+ * So once a group has been seen, a background thread keeps a few key
+ * pairs for it ready, and the next handshake with that group takes one
+ * instead of generating its own.  Each pooled key pair is handed out
+ * only once, and is discarded unused when it reaches MAX_KEY_AGE.  The
+ * pool isn't topped up again until the group is next used, so an idle
+ * app doesn't keep computing keys.
+ *
+ * This also caches the security providers for the DH algorithms, so
+ * that getting an instance doesn't search the provider list each time.
+ */
+class DHKeyPairPool {
+
+    private static final int POOL_SIZE = 2;
+    private static final int MAX_GROUPS = 4;
+    static final long MAX_KEY_AGE = 10*60*1000; // 10 minutes
+
+    private static final DHKeyPairPool instance = new DHKeyPairPool();
+
+    private static Provider keyPairGeneratorProvider = null;
+    private static Provider keyFactoryProvider = null;
+    private static Provider keyAgreementProvider = null;
+
+    private static class PooledKeyPair {
+        KeyPair keyPair;
+        long created;
+        long generationTime; // nanoseconds
+    }
+
+    private static class Group {
+        BigInteger prime;
+        BigInteger generator;
+        LinkedList<PooledKeyPair> keyPairs = new LinkedList<PooledKeyPair>();
+        boolean refilling = false;
+    }
+
+    // most recently used first
+    private ArrayList<Group> groups = new ArrayList<Group>();
+    private ScheduledExecutorService executor = null;
+
+    // statistics
+    private int hits = 0;
+    private int misses = 0;
+    private int expired = 0;
+    private long savedTime = 0; // nanoseconds
+
+    static DHKeyPairPool getInstance() {
+        return instance;
+    }
+
+    /**
+     * Return a fresh key pair for the given group, from the pool if
+     * one is ready, and make sure the pool is refilled.
+     */
+    KeyPair take(BigInteger prime, BigInteger generator) throws GeneralSecurityException {
+        PooledKeyPair pooled = null;
+        synchronized (this) {
+            Group group = getGroup(prime, generator);
+            long now = System.currentTimeMillis();
+            while (! group.keyPairs.isEmpty()) {
+                PooledKeyPair candidate = group.keyPairs.removeFirst();
+                if ((now - candidate.created) < MAX_KEY_AGE) {
+                    pooled = candidate;
+                    break;
+                }
+                expired++;
+            }
+            if (pooled != null) {
+                hits++;
+                savedTime += pooled.generationTime;
+                refill(group);
+                return pooled.keyPair;
+            }
+            misses++;
+        }
+        // generate our own first, so the refill doesn't compete with it.
+        KeyPair keyPair = generate(prime, generator).keyPair;
+        synchronized (this) {
+            refill(getGroup(prime, generator));
+        }
+        return keyPair;
+    }
+
+    /**
+     * Return the total time (in milliseconds) which handshakes didn't
+     * have to spend generating key pairs.
+     */
+    synchronized long getSavedTime() {
+        return savedTime / 1000000L;
+    }
+
+    public synchronized String toString() {
+        return "hits="+hits+" misses="+misses+" expired="+expired+" saved="+getSavedTime()+"ms";
+    }
+
+    private Group getGroup(BigInteger prime, BigInteger generator) {
+        for (int i=0; i<groups.size(); i++) {
+            Group group = groups.get(i);
+            if (group.prime.equals(prime) && group.generator.equals(generator)) {
+                if (i > 0) {
+                    groups.remove(i);
+                    groups.add(0, group);
+                }
+                return group;
+            }
+        }
+        Group group = new Group();
+        group.prime = prime;
+        group.generator = generator;
+        groups.add(0, group);
+        // forget the least recently used group, so that servers offering
+        // a new group every time can't make us compute keys forever.
+        if (groups.size() > MAX_GROUPS) {
+            groups.remove(groups.size()-1);
+        }
+        return group;
+    }
+
+    /**
+     * Top up the group's pool in the background, if it isn't already
+     * being topped up.
+     */
+    private void refill(final Group group) {
+        if (group.refilling || (group.keyPairs.size() >= POOL_SIZE)) {
+            return;
+        }
+        group.refilling = true;
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    synchronized (DHKeyPairPool.this) {
+                        if ((group.keyPairs.size() >= POOL_SIZE) || (! groups.contains(group))) {
+                            group.refilling = false;
+                            return;
+                        }
+                    }
+                    PooledKeyPair pooled;
+                    try {
+                        pooled = generate(group.prime, group.generator);
+                    } catch (GeneralSecurityException e) {
+                        Log.w("Valence", "cannot precompute DH key pair", e);
+                        synchronized (DHKeyPairPool.this) {
+                            group.refilling = false;
+                        }
+                        return;
+                    }
+                    synchronized (DHKeyPairPool.this) {
+                        group.keyPairs.addLast(pooled);
+                        scheduleExpiry(group, pooled);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Discard the pooled key pair at MAX_KEY_AGE, if it hasn't been
+     * taken by then.
+     */
+    private void scheduleExpiry(final Group group, final PooledKeyPair pooled) {
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (DHKeyPairPool.this) {
+                    if (group.keyPairs.remove(pooled)) {
+                        expired++;
+                    }
+                }
+            }
+        }, MAX_KEY_AGE, TimeUnit.MILLISECONDS);
+    }
+
+    private static PooledKeyPair generate(BigInteger prime, BigInteger generator) throws GeneralSecurityException {
+        long start = System.nanoTime();
+        KeyPairGenerator keyPairGenerator = newKeyPairGenerator();
+        keyPairGenerator.initialize(new DHParameterSpec(prime, generator));
+        PooledKeyPair pooled = new PooledKeyPair();
+        pooled.keyPair = keyPairGenerator.generateKeyPair();
+        pooled.created = System.currentTimeMillis();
+        pooled.generationTime = System.nanoTime() - start;
+        return pooled;
+    }
+
+    // provider caching
+
+    static synchronized KeyPairGenerator newKeyPairGenerator() throws NoSuchAlgorithmException {
+        if (keyPairGeneratorProvider == null) {
+            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("DH");
+            keyPairGeneratorProvider = keyPairGenerator.getProvider();
+            return keyPairGenerator;
+        }
+        return KeyPairGenerator.getInstance("DH", keyPairGeneratorProvider);
+    }
+
+    static synchronized KeyFactory newKeyFactory() throws NoSuchAlgorithmException {
+        if (keyFactoryProvider == null) {
+            KeyFactory keyFactory = KeyFactory.getInstance("DH");
+            keyFactoryProvider = keyFactory.getProvider();
+            return keyFactory;
+        }
+        return KeyFactory.getInstance("DH", keyFactoryProvider);
+    }
+
+    static synchronized KeyAgreement newKeyAgreement() throws NoSuchAlgorithmException {
+        if (keyAgreementProvider == null) {
+            KeyAgreement keyAgreement = KeyAgreement.getInstance("DH");
+            keyAgreementProvider = keyAgreement.getProvider();
+            return keyAgreement;
+        }
+        return KeyAgreement.getInstance("DH", keyAgreementProvider);
+    }
+
+    private static ThreadFactory threadFactory = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "rfbdh");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    };
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cafbit.valence.rfb;
+
+/**
+ * Maps the speed of a touchpad movement to the gain by which it's
+ * multiplied, so that slow movements are precise and fast ones cover
+ * the screen.  Speeds are in hundredths of an inch per millisecond (the
+ * units of the touchpad's dx/dy over dt).
+ *
+ * A curve is precomputed into a table indexed by quantized speed, so
+ * applying it costs a single table read.  Subclasses implement
+ * compute(), and call precompute() from their constructor once they're
+ * set up.  The built-in curves, selected by the CURVE_* constants, are
+ * shared.
+ */
+public abstract class PointerAccelerationCurve {
+
+    // the original behavior: the gain is proportional to the speed
+    public static final int CURVE_LINEAR = 0;
+    public static final int CURVE_LOG = 1;
+    public static final int CURVE_POWER = 2;
+    public static final int CURVE_MAC = 3;
+    public static final int CURVE_WINDOWS = 4;
+    public static final int NUM_CURVES = 5;
+    public static final int DEFAULT_CURVE = CURVE_LINEAR;
+
+    private static final String[] CURVE_NAMES = {
+        "Linear", "Logarithmic", "Power", "Mac OS X style", "Windows style"
+    };
+
+    public static final float MIN_GAIN = 0.1f;
+    public static final float MAX_GAIN = 15.0f;
+    // faster movements get the gain of this speed
+    public static final float MAX_SPEED = 4.0f;
+    private static final int TABLE_SIZE = 1024;
+    private static final float SCALE = TABLE_SIZE / MAX_SPEED;
+
+    private static PointerAccelerationCurve[] curves = new PointerAccelerationCurve[NUM_CURVES];
+
+    private final float[] table = new float[TABLE_SIZE];
+
+    /**
+     * Return the shared instance of one of the CURVE_* curves, or the
+     * default curve if "curve" isn't one of them.
+     */
+    public static synchronized PointerAccelerationCurve get(int curve) {
+        if ((curve < 0) || (curve >= NUM_CURVES)) {
+            curve = DEFAULT_CURVE;
+        }
+        if (curves[curve] == null) {
+            if (curve == CURVE_WINDOWS) {
+                // like "enhance pointer precision": the distance moved
+                // is a piecewise-linear function of the speed.
+                curves[curve] = new PiecewiseCurve(
+                    new float[] { 0.0f, 0.1f, 0.4f, 1.0f, MAX_SPEED },
+                    new float[] { 0.0f, 0.1f, 1.2f, 10.0f, 60.0f }
+                );
+            } else {
+                curves[curve] = new FormulaCurve(curve);
+            }
+        }
+        return curves[curve];
+    }
+
+    public static String getName(int curve) {
+        if ((curve < 0) || (curve >= NUM_CURVES)) {
+            curve = DEFAULT_CURVE;
+        }
+        return CURVE_NAMES[curve];
+    }
+
+    /**
+     * Return the gain for a movement at "speed".  This is only used to
+     * fill in the table.  The result is clamped to MIN_GAIN..MAX_GAIN.
+     */
+    protected abstract float compute(float speed);
+
+    /**
+     * Fill in the table, sampling each speed range at its middle.
+     */
+    protected final void precompute() {
+        for (int i=0; i<TABLE_SIZE; i++) {
+            float gain = compute((i + 0.5f) / SCALE);
+            if (! (gain >= MIN_GAIN)) {
+                gain = MIN_GAIN;
+            } else if (gain > MAX_GAIN) {
+                gain = MAX_GAIN;
+            }
+            table[i] = gain;
+        }
+    }
+
+    /**
+     * Return the gain for a movement at "speed".
+     */
+    public final float getGain(float speed) {
+        int i = (int)(speed * SCALE);
+        if (i >= TABLE_SIZE) {
+            i = TABLE_SIZE-1;
+        } else if (i < 0) {
+            i = 0;
+        }
+        return table[i];
+    }
+
+    private static class FormulaCurve extends PointerAccelerationCurve {
+        private int curve;
+
+        FormulaCurve(int curve) {
+            this.curve = curve;
+            precompute();
+        }
+
+        protected float compute(float speed) {
+            switch (curve) {
+            case CURVE_LOG:
+                return 5.0f * (float)Math.log(1.0f + 4.0f*speed);
+            case CURVE_POWER:
+                return 8.0f * (float)Math.pow(speed, 1.5);
+            case CURVE_MAC:
+                // nearly flat for slow movements, then a steep rise
+                // which levels off: a sigmoid of the speed.
+                float ss = speed*speed;
+                return 0.6f + 14.4f * ss / (ss + 0.36f);
+            default:
+                return speed * 10.0f;
+            }
+        }
+    }
+
+    /**
+     * A curve on which the distance moved (speed times gain) is
+     * interpolated linearly between control points.
+     */
+    public static class PiecewiseCurve extends PointerAccelerationCurve {
+        private float[] speeds;
+        private float[] distances;
+
+        /**
+         * "speeds" must be increasing, and start at zero.
+         */
+        public PiecewiseCurve(float[] speeds, float[] distances) {
+            this.speeds = speeds.clone();
+            this.distances = distances.clone();
+            precompute();
+        }
+
+        protected float compute(float speed) {
+            int i = 1;
+            while ((i < speeds.length-1) && (speeds[i] < speed)) {
+                i++;
+            }
+            float f = (speed - speeds[i-1]) / (speeds[i] - speeds[i-1]);
+            float distance = distances[i-1] + f * (distances[i] - distances[i-1]);
+            return distance / speed;
+        }
+    }
+
+}
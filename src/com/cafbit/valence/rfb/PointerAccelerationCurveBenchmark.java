@@ -0,0 +1,140 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cafbit.valence.rfb;
+
+import java.util.Random;
+
+/**
+ * Measures the per-event cost of each pointer acceleration curve, in
+ * nanoseconds, as a table lookup and as the formula the table was
+ * computed from, against the original inline speed calculation.  Also
+ * reports how far each table strays from its formula.
+ *
+ * Usage: PointerAccelerationCurveBenchmark [events]
+ */
+public class PointerAccelerationCurveBenchmark {
+
+    private static final int DEFAULT_EVENTS = 1000000;
+    private static final int WARMUP_PASSES = 3;
+    private static final int PASSES = 5;
+
+    // keep the JIT from discarding the work
+    private static float sink = 0.0f;
+
+    public static void main(String[] args) {
+        int events = DEFAULT_EVENTS;
+        if (args.length > 0) {
+            events = Integer.parseInt(args[0]);
+        }
+        // touch movements: up to MAX_SPEED, mostly slow
+        float[] speeds = new float[events];
+        Random random = new Random(1);
+        for (int i=0; i<events; i++) {
+            float r = random.nextFloat();
+            speeds[i] = r * r * PointerAccelerationCurve.MAX_SPEED;
+        }
+
+        double inline = run("original inline", null, speeds, false);
+        for (int curve=0; curve<PointerAccelerationCurve.NUM_CURVES; curve++) {
+            PointerAccelerationCurve c = PointerAccelerationCurve.get(curve);
+            String name = PointerAccelerationCurve.getName(curve);
+            double table = run(name+" table", c, speeds, false);
+            double formula = run(name+" formula", c, speeds, true);
+            System.out.println(String.format(
+                "%-28s %.2fx the inline cost, %.1fx faster than the formula; max error %.4f",
+                name+":", table/inline, formula/table, maxError(c)
+            ));
+        }
+        System.out.println("("+sink+")");
+    }
+
+    /**
+     * Apply the curve to every speed several times, and report the mean
+     * ns/event of the passes after the warm-up.
+     */
+    private static double run(String name, PointerAccelerationCurve curve, float[] speeds, boolean formula) {
+        long nanos = 0;
+        for (int pass=0; pass<WARMUP_PASSES+PASSES; pass++) {
+            long start = System.nanoTime();
+            // each loop is in its own method, so that the JIT compiles
+            // them separately.
+            if (curve == null) {
+                sink += inline(speeds);
+            } else if (formula) {
+                sink += formula(curve, speeds);
+            } else {
+                sink += table(curve, speeds);
+            }
+            long elapsed = System.nanoTime() - start;
+            if (pass >= WARMUP_PASSES) {
+                nanos += elapsed;
+            }
+        }
+        double nsPerEvent = (double)nanos / PASSES / speeds.length;
+        System.out.println(String.format("%-28s %6.2f ns/event", name, nsPerEvent));
+        return nsPerEvent;
+    }
+
+    // as RFBConnection did before the curves
+    private static float inline(float[] speeds) {
+        float x = 0.0f;
+        for (int i=0; i<speeds.length; i++) {
+            float speed = speeds[i] * 10.0f;
+            if (speed > 15.0f) {
+                speed = 15.0f;
+            } else if (speed < 0.1f) {
+                speed = 0.1f;
+            }
+            x += speed;
+        }
+        return x;
+    }
+
+    private static float formula(PointerAccelerationCurve curve, float[] speeds) {
+        float x = 0.0f;
+        for (int i=0; i<speeds.length; i++) {
+            x += curve.compute(speeds[i]);
+        }
+        return x;
+    }
+
+    private static float table(PointerAccelerationCurve curve, float[] speeds) {
+        float x = 0.0f;
+        for (int i=0; i<speeds.length; i++) {
+            x += curve.getGain(speeds[i]);
+        }
+        return x;
+    }
+
+    /**
+     * Return the largest difference between the table and the clamped
+     * formula, across the table's range.
+     */
+    private static float maxError(PointerAccelerationCurve curve) {
+        float max = 0.0f;
+        for (int i=1; i<=100000; i++) {
+            float speed = i * PointerAccelerationCurve.MAX_SPEED / 100000;
+            float exact = Math.max(PointerAccelerationCurve.MIN_GAIN,
+                Math.min(curve.compute(speed), PointerAccelerationCurve.MAX_GAIN));
+            max = Math.max(max, Math.abs(curve.getGain(speed) - exact));
+        }
+        return max;
+    }
+
+}
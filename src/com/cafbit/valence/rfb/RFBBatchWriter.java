@@ -0,0 +1,262 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cafbit.valence.rfb;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Outbound side of an RFBStream.  Since we've disabled Nagle's
+ * algorithm, every write() to the socket becomes its own tiny TCP
+ * segment.  This class collects the client-to-server messages produced
+ * while handling one burst of input (one MotionEvent, one multi-char
+ * key event, etc.) into a single direct buffer, and writes them out
+ * together when the outermost batch ends.
+ *
+ * Messages written outside of a batch are flushed immediately, so the
+ * handshake code sees the same behavior as an unbuffered stream.  To
+ * preserve interactivity, a batch is also flushed as soon as its
+ * oldest message has been waiting for longer than the maximum
+ * latency.
+ */
+public class RFBBatchWriter {
+
+    private static final int BUFFER_SIZE = 4096;
+    public static final long DEFAULT_MAX_LATENCY = 10; // milliseconds
+
+    private WritableByteChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private int batchDepth = 0;
+    private int pendingMessages = 0;
+    private long pendingSince = 0L;
+    private long maxLatencyNanos = DEFAULT_MAX_LATENCY * 1000000L;
+    private Stats stats = new Stats();
+
+    /**
+     * Counters describing how well messages are being batched.  The
+     * histogram counts flushes by the number of messages they carried:
+     * 1, 2, 3-4, 5-8, 9-16, and 17 or more.
+     */
+    public static class Stats {
+        public static final int NUM_BUCKETS = 6;
+        public long flushes = 0;
+        public long messages = 0;
+        public int lastFlushMessages = 0;
+        public int maxFlushMessages = 0;
+        public long[] histogram = new long[NUM_BUCKETS];
+
+        private void record(int n) {
+            flushes++;
+            messages += n;
+            lastFlushMessages = n;
+            if (n > maxFlushMessages) {
+                maxFlushMessages = n;
+            }
+            int bucket = 0;
+            for (int i=n-1; (i > 0) && (bucket < NUM_BUCKETS-1); i>>=1) {
+                bucket++;
+            }
+            histogram[bucket]++;
+        }
+
+        private Stats copy() {
+            Stats copy = new Stats();
+            copy.flushes = flushes;
+            copy.messages = messages;
+            copy.lastFlushMessages = lastFlushMessages;
+            copy.maxFlushMessages = maxFlushMessages;
+            System.arraycopy(histogram, 0, copy.histogram, 0, NUM_BUCKETS);
+            return copy;
+        }
+
+        public float getMessagesPerFlush() {
+            if (flushes == 0) {
+                return 0.0f;
+            }
+            return (float)messages / (float)flushes;
+        }
+
+        public String toString() {
+            return String.format(
+                "flushes=%d messages=%d avg=%.2f max=%d [1:%d 2:%d 3-4:%d 5-8:%d 9-16:%d 17+:%d]",
+                flushes, messages, getMessagesPerFlush(), maxFlushMessages,
+                histogram[0], histogram[1], histogram[2],
+                histogram[3], histogram[4], histogram[5]
+            );
+        }
+    }
+
+    RFBBatchWriter(OutputStream outputStream) {
+        this(Channels.newChannel(outputStream));
+    }
+
+    RFBBatchWriter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    public synchronized void setMaxLatency(long milliseconds) {
+        this.maxLatencyNanos = milliseconds * 1000000L;
+    }
+
+    public synchronized long getMaxLatency() {
+        return maxLatencyNanos / 1000000L;
+    }
+
+    /**
+     * Return a snapshot of the batching counters.
+     */
+    public synchronized Stats getStats() {
+        return stats.copy();
+    }
+
+    /**
+     * Start collecting messages.  Batches may be nested; nothing is
+     * written until the outermost batch ends (or the maximum latency
+     * is exceeded).
+     */
+    public synchronized void beginBatch() {
+        batchDepth++;
+    }
+
+    public synchronized boolean isBatching() {
+        return batchDepth > 0;
+    }
+
+    /**
+     * End the current batch, flushing if this was the outermost one.
+     */
+    public synchronized void endBatch() throws IOException {
+        if (batchDepth > 0) {
+            batchDepth--;
+        }
+        if (batchDepth == 0) {
+            flush();
+        }
+    }
+
+    /**
+     * Write out any pending messages, without ending the batch.
+     */
+    public synchronized void flush() throws IOException {
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            buffer.clear();
+        }
+        stats.record(pendingMessages);
+        pendingMessages = 0;
+    }
+
+    //////////////////////////////////////////////////////////////////////
+    // message construction
+    //////////////////////////////////////////////////////////////////////
+
+    synchronized void put(byte[] ba) throws IOException {
+        if (ba.length > buffer.capacity()) {
+            // too big to batch -- send whatever is pending, then
+            // send this directly.
+            flush();
+            ByteBuffer wrapped = ByteBuffer.wrap(ba);
+            while (wrapped.hasRemaining()) {
+                channel.write(wrapped);
+            }
+            stats.record(1);
+            return;
+        }
+        reserve(ba.length);
+        buffer.put(ba);
+        messageAdded();
+    }
+
+    synchronized void putByte(int b) throws IOException {
+        reserve(1);
+        buffer.put((byte)b);
+        messageAdded();
+    }
+
+    synchronized void putPointerEvent(byte buttons, int x, int y) throws IOException {
+        reserve(6);
+        buffer.put((byte)0x05);    // message-type
+        buffer.put(buttons);       // button-mask
+        buffer.putShort((short)x); // x-position
+        buffer.putShort((short)y); // y-position
+        messageAdded();
+    }
+
+    synchronized void putKeyEvent(boolean down, int keysym) throws IOException {
+        reserve(8);
+        buffer.put((byte)0x04);             // message-type
+        buffer.put((byte)(down ? 1 : 0));   // down-flag
+        buffer.putShort((short)0);          // padding
+        buffer.putInt(keysym);              // keysym
+        messageAdded();
+    }
+
+    synchronized void putFramebufferUpdateRequest(boolean incremental, int x, int y, int w, int h) throws IOException {
+        reserve(10);
+        buffer.put((byte)0x03);                     // message-type
+        buffer.put((byte)(incremental ? 1 : 0));    // incremental
+        buffer.putShort((short)x);                  // x-position
+        buffer.putShort((short)y);                  // y-position
+        buffer.putShort((short)w);                  // width
+        buffer.putShort((short)h);                  // height
+        messageAdded();
+    }
+
+    synchronized void putEnableContinuousUpdates(boolean enable, int x, int y, int w, int h) throws IOException {
+        reserve(10);
+        buffer.put((byte)150);                      // message-type
+        buffer.put((byte)(enable ? 1 : 0));         // enable-flag
+        buffer.putShort((short)x);                  // x-position
+        buffer.putShort((short)y);                  // y-position
+        buffer.putShort((short)w);                  // width
+        buffer.putShort((short)h);                  // height
+        messageAdded();
+    }
+
+    /**
+     * Make room for a message of "length" bytes, flushing the buffer
+     * if necessary.
+     */
+    private void reserve(int length) throws IOException {
+        if (buffer.remaining() < length) {
+            flush();
+        }
+    }
+
+    private void messageAdded() throws IOException {
+        long now = System.nanoTime();
+        if (pendingMessages == 0) {
+            pendingSince = now;
+        }
+        pendingMessages++;
+        if ((batchDepth == 0) || ((now - pendingSince) >= maxLatencyNanos)) {
+            flush();
+        }
+    }
+
+}
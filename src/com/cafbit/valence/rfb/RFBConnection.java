@@ -17,10 +17,14 @@
 
 package com.cafbit.valence.rfb;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 
 import android.util.FloatMath;
 
@@ -34,23 +38,94 @@ public class RFBConnection {
     public static final int DEFAULT_PORT = 5900;
     public static final String MAGIC_DEMO_HOSTNAME = "demo.local";
     private static final int TIMEOUT = 8000;
+
+    // handshake phases, each of which must finish within its own
+    // time budget.
+    public static final int PHASE_CONNECT = 0;
+    public static final int PHASE_VERSION = 1;
+    public static final int PHASE_SECURITY = 2;
+    public static final int PHASE_AUTH = 3;
+    public static final int PHASE_INIT = 4;
+    public static final int NUM_PHASES = 5;
+    private static final String[] PHASE_NAMES = {
+        "connect", "version", "security", "authentication", "initialization"
+    };
+    private static final long[] DEFAULT_PHASE_TIMEOUTS = { // milliseconds
+        TIMEOUT, // connect
+        5000,    // version
+        5000,    // security
+        15000,   // authentication (Mac Authentication is slow on old devices)
+        5000     // initialization
+    };
     private static final int MAX_VERSION = 0x0308;
     private static final int MIN_VERSION = 0x0303;
+    public static final float MAX_PREDICTION_HORIZON = 100.0f; // milliseconds
+    // how long discovered address aliases are good for, as long as
+    // mDNS address records usually live
+    public static final long ADDRESS_ALIAS_TTL = 2*60*1000; // 2 minutes
 
     private String address;
     private InetAddress inetAddress;
+    private InetAddress connectedAddress = null;
+    // other addresses of the same server, good until aliasesExpire
+    // (in wall-clock milliseconds)
+    private InetAddress[] aliases = null;
+    private long aliasesExpire = 0L;
     private int port;
     private RFBSecurity security;
-    private Socket socket = null;
+    private RFBTransport transport = null;
+    private RFBReactor reactor = null;
     private RFBStream stream = null;
+    private RFBPointerCoalescer coalescer = null;
     private Version serverVersion;
     private byte[] securityTypes;
     private String serverName;
-    private int width;
-    private int height;
-    private float pointerX;
-    private float pointerY;
+    // the desktop size may change while the sending thread uses it
+    private volatile int width;
+    private volatile int height;
+    // read by getPointerX() and getPointerY() from other threads
+    private volatile float pointerX;
+    private volatile float pointerY;
     private boolean ard35Compatibility = false;
+    private long maxBatchLatency = RFBBatchWriter.DEFAULT_MAX_LATENCY;
+    private boolean framebufferEnabled = false;
+    private RFBDecoder decoder = null;
+    private RFBDecoder.OnServerMessageListener serverMessageListener = null;
+    private OutputStream recorder = null;
+    private long[] phaseTimeouts = DEFAULT_PHASE_TIMEOUTS.clone();
+    private long[] phaseDurations = new long[NUM_PHASES];
+    private int phase = -1;
+    private long phaseStart = 0L;
+    private long handshakeTimeout = 0L;
+    private long connectAttemptDelay = RFBConnector.DEFAULT_ATTEMPT_DELAY;
+    private long handshakeDeadline = 0L;
+    private int jpegQuality = RFBDecoder.DEFAULT_JPEG_QUALITY;
+    private RFBUpdateScheduler scheduler = null;
+    private int[] updateRequest = new int[5];
+    // smoothed round trip time in nanoseconds, or 0 if unknown
+    private volatile long roundTripTime = 0L;
+    // Pings are shared by the health check and the round trip
+    // measurement, and only one is outstanding at a time: pingTime is
+    // when it was sent, or 0.  Pings are numbered from 1.  The rest is
+    // guarded by pingLock.
+    private final Object pingLock = new Object();
+    private volatile long pingTime = 0L;
+    private int pingSent = 0;
+    private int pingAnswered = 0;
+    private boolean pingMeasured = false;
+    private Runnable onPingAnswered = null;
+    private Runnable pingReceiver = new Runnable() {
+        @Override
+        public void run() {
+            pingReceived();
+        }
+    };
+    private volatile boolean pointerPrediction = false;
+    private RFBPointerPredictor predictor = new RFBPointerPredictor();
+    private RFBScroller scroller = new RFBScroller();
+    private volatile PointerAccelerationCurve accelerationCurve =
+        PointerAccelerationCurve.get(PointerAccelerationCurve.DEFAULT_CURVE);
+    private byte lastButtons = 0;
 
     public RFBConnection(String address, int port, String password) {
         this.address = address;
@@ -119,14 +194,355 @@ public class RFBConnection {
         return ard35Compatibility;
     }
 
-    public Socket getSocket() {
-        return socket;
+    /**
+     * If enabled (before connecting), the connection keeps a copy of
+     * the remote screen, which the caller updates by calling
+     * processServerMessage() on a receiving thread.  Otherwise the
+     * connection is input-only and never asks for screen updates.
+     */
+    public void setFramebufferEnabled(boolean framebufferEnabled) {
+        this.framebufferEnabled = framebufferEnabled;
+    }
+    public boolean isFramebufferEnabled() {
+        return framebufferEnabled;
+    }
+
+    /**
+     * Return the copy of the remote screen, or null if the framebuffer
+     * is not enabled or we are not connected.
+     */
+    public RFBFramebuffer getFramebuffer() {
+        if (decoder == null) {
+            return null;
+        }
+        return decoder.getFramebuffer();
+    }
+
+    /**
+     * Set the JPEG quality level (0-9) to request, or -1 for lossless
+     * updates only.  This must be called before connecting.
+     */
+    public void setJpegQuality(int jpegQuality) {
+        this.jpegQuality = jpegQuality;
+    }
+    public int getJpegQuality() {
+        return jpegQuality;
+    }
+
+    public void setOnServerMessageListener(RFBDecoder.OnServerMessageListener listener) {
+        this.serverMessageListener = listener;
+        if (decoder != null) {
+            decoder.setOnServerMessageListener(listener);
+        }
+    }
+
+    /**
+     * Record the server messages of a framebuffer-enabled session to
+     * the given stream, for replay by RFBDecoderBenchmark.  This must
+     * be called before connecting.  The recording starts with the
+     * framebuffer width and height (two bytes each, big-endian),
+     * followed by the raw server-to-client messages.
+     */
+    public void setRecorder(OutputStream recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Release the decoders' native resources.  This must be called
+     * from the thread which calls processServerMessage(), once it is
+     * done.
+     */
+    public void releaseDecoder() {
+        if (decoder != null) {
+            decoder.close();
+        }
+    }
+
+    /**
+     * Use a non-blocking transport serviced by the given reactor,
+     * instead of a blocking socket.  This must be called before
+     * connecting.
+     */
+    public void setReactor(RFBReactor reactor) {
+        this.reactor = reactor;
+    }
+    public RFBReactor getReactor() {
+        return reactor;
+    }
+
+    /**
+     * Return the connection's transport, or null if we are not
+     * connected (or this is the demo connection).
+     */
+    public RFBTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Return the number of bytes received from the server so far.
+     */
+    public long getBytesReceived() {
+        if (transport == null) {
+            return 0;
+        }
+        return transport.getBytesReceived();
+    }
+
+    /**
+     * Run "onPingAnswered" when a ping is answered.  It runs on the
+     * receiving side (see RFBTransport.setOnReceive()), so it must be
+     * quick.
+     */
+    public void setOnPingAnswered(Runnable onPingAnswered) {
+        synchronized (pingLock) {
+            this.onPingAnswered = onPingAnswered;
+        }
+    }
+
+    /**
+     * Ask for a single pixel of the screen.  The server must answer a
+     * non-incremental request right away, so if nothing arrives soon
+     * after this, the connection is dead.  If a ping is already
+     * outstanding, that one is waited for instead of sending another.
+     * Returns the ping's number for isPingAnswered(), or 0 if we are
+     * not connected.
+     *
+     * The answer is recognized by the arrival of any data at all, so
+     * while the framebuffer is enabled, an update may stand in for it.
+     */
+    public int sendPing() throws IOException {
+        return sendPing(false);
+    }
+
+    /**
+     * Return true if ping number "ping" has been answered.
+     */
+    public boolean isPingAnswered(int ping) {
+        synchronized (pingLock) {
+            return ping <= pingAnswered;
+        }
+    }
+
+    /**
+     * Start measuring the round trip time with a ping of its own.
+     * Returns false (and sends nothing) if another ping is
+     * outstanding, in which case try again later.  The measurement is
+     * only true while the server has nothing else to say, i.e. when
+     * the framebuffer is not enabled.
+     */
+    public boolean startRoundTrip() throws IOException {
+        synchronized (pingLock) {
+            if (pingTime != 0L) {
+                return false;
+            }
+        }
+        return (sendPing(true) != 0);
+    }
+
+    /**
+     * Don't take the answer to startRoundTrip()'s ping as a round trip
+     * measurement, after all.
+     */
+    public void cancelRoundTrip() {
+        synchronized (pingLock) {
+            pingMeasured = false;
+        }
+    }
+
+    private int sendPing(boolean measure) throws IOException {
+        int ping;
+        synchronized (pingLock) {
+            if ((stream == null) || (transport == null)) {
+                return 0;
+            }
+            if (pingTime != 0L) {
+                return pingSent;
+            }
+            ping = ++pingSent;
+            pingMeasured = measure;
+            // before writing, so that the answer can't beat us to it
+            pingTime = System.nanoTime();
+        }
+        stream.writeFramebufferUpdateRequest(false, 0, 0, 1, 1);
+        return ping;
+    }
+
+    /**
+     * Data has arrived: if a ping is outstanding, this is its answer.
+     */
+    private void pingReceived() {
+        if (pingTime == 0L) {
+            return;
+        }
+        Runnable listener;
+        synchronized (pingLock) {
+            if (pingTime == 0L) {
+                return;
+            }
+            if (pingMeasured) {
+                recordRoundTrip(System.nanoTime() - pingTime);
+                pingMeasured = false;
+            }
+            pingAnswered = pingSent;
+            pingTime = 0L;
+            listener = onPingAnswered;
+        }
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    private void recordRoundTrip(long sample) {
+        long rtt = roundTripTime;
+        if (rtt == 0L) {
+            roundTripTime = sample;
+        } else {
+            // as TCP does
+            roundTripTime = rtt + (sample - rtt) / 8;
+        }
+    }
+
+    /**
+     * Return the smoothed round trip time to the server in
+     * milliseconds, or 0 if it hasn't been measured.  The first
+     * measurement is taken during the handshake.
+     */
+    public long getRoundTripTime() {
+        return roundTripTime / 1000000L;
+    }
+
+    /**
+     * Have the transport throw away whatever the server sends, if it
+     * can do so without a receiving thread.  "onClosed" is run if the
+     * server closes the connection.  Returns false if the caller must
+     * read (and discard) the input itself.
+     */
+    public boolean discardInput(Runnable onClosed) {
+        if (transport == null) {
+            return false;
+        }
+        return transport.discardInput(onClosed);
+    }
+
+    public static String getPhaseName(int phase) {
+        return PHASE_NAMES[phase];
+    }
+
+    /**
+     * Set the longest time (in milliseconds) that a handshake phase
+     * may take before it fails with an RFBTimeoutException.
+     */
+    public void setPhaseTimeout(int phase, long timeout) {
+        phaseTimeouts[phase] = timeout;
+    }
+    public long getPhaseTimeout(int phase) {
+        return phaseTimeouts[phase];
+    }
+
+    /**
+     * When a server has several addresses, set how long (in
+     * milliseconds) to give one connection attempt before racing it
+     * against the next address.  The PHASE_CONNECT timeout bounds the
+     * whole race.
+     */
+    public void setConnectAttemptDelay(long connectAttemptDelay) {
+        this.connectAttemptDelay = connectAttemptDelay;
+    }
+    public long getConnectAttemptDelay() {
+        return connectAttemptDelay;
+    }
+
+    /**
+     * Give the other addresses of this server (e.g. its IPv4 and IPv6
+     * addresses, as found by mDNS), to be raced along with its own
+     * until "expireTime" (as System.currentTimeMillis()).  They must
+     * be address literals; anything else is ignored.  They are only
+     * used if the server's address is itself one of them, so stale
+     * aliases can't redirect a connection to another host.
+     */
+    public void setAddressAliases(String[] aliases, long expireTime) {
+        this.aliases = null;
+        if (aliases == null) {
+            return;
+        }
+        ArrayList<InetAddress> addresses = new ArrayList<InetAddress>();
+        for (String alias : aliases) {
+            if (! RFBConnector.isAddressLiteral(alias)) {
+                continue;
+            }
+            try {
+                // a literal, so there's no lookup
+                addresses.add(InetAddress.getByName(alias));
+            } catch (UnknownHostException e) {
+            }
+        }
+        this.aliases = addresses.toArray(new InetAddress[addresses.size()]);
+        this.aliasesExpire = expireTime;
+    }
+
+    private InetAddress[] getAddressAliases(InetAddress[] addresses) {
+        if ((aliases == null) || (System.currentTimeMillis() - aliasesExpire >= 0)) {
+            return null;
+        }
+        for (InetAddress alias : aliases) {
+            for (InetAddress address : addresses) {
+                if (alias.equals(address)) {
+                    return aliases;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Set the longest time (in milliseconds) that the whole handshake
+     * may take, regardless of the phase timeouts, or 0 for no limit.
+     */
+    public void setHandshakeTimeout(long timeout) {
+        this.handshakeTimeout = timeout;
+    }
+    public long getHandshakeTimeout() {
+        return handshakeTimeout;
+    }
+
+    /**
+     * Return how long (in milliseconds) each phase of the last
+     * handshake took, indexed by PHASE_*.
+     */
+    public long[] getPhaseDurations() {
+        long[] durations = new long[NUM_PHASES];
+        for (int i=0; i<NUM_PHASES; i++) {
+            durations[i] = phaseDurations[i] / 1000000L;
+        }
+        return durations;
+    }
+
+    /**
+     * Describe the last handshake's phase durations, for logging.
+     */
+    public String getHandshakeTimings() {
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<NUM_PHASES; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(PHASE_NAMES[i]).append('=').append(phaseDurations[i]/1000000L).append("ms");
+        }
+        return sb.toString();
     }
 
     public String getServerName() {
         return serverName;
     }
 
+    /**
+     * Return the address of the server which we connected to (the
+     * first of its addresses to answer), or null if not connected.
+     */
+    public InetAddress getConnectedAddress() {
+        return connectedAddress;
+    }
+
     public Version getServerVersion() {
         return serverVersion;
     }
@@ -150,13 +566,21 @@ public class RFBConnection {
             return;
         }
 
-        // open the socket and exchange version information
-        establishRFBStream();
+        try {
+            // open the socket and exchange version information
+            establishRFBStream();
 
-        // gather security information
-        this.securityTypes = stream.readSecurity();
-        if (securityTypes == null) {
-            throw new RFBException("error from server: "+stream.readString());
+            // gather security information
+            beginPhase(PHASE_SECURITY);
+            this.securityTypes = stream.readSecurity();
+            if (securityTypes == null) {
+                throw new RFBException("error from server: "+stream.readString());
+            }
+            endPhase();
+        } catch (EOFException e) {
+            throw handshakeFailure(e);
+        } catch (SocketTimeoutException e) {
+            throw handshakeFailure(e);
         }
 
         // disconnect
@@ -177,82 +601,154 @@ public class RFBConnection {
             return;
         }
 
-        establishRFBStream();
+        try {
+            establishRFBStream();
 
-        // security
+            // security
 
-        // read the list of supported security types from the server
-        this.securityTypes = stream.readSecurity();
-        if (securityTypes == null) {
-            throw new RFBException("error from server: "+stream.readString());
-        }
-        // determine if the server supports our preferred security type,
-        // and/or "None" security.
-        boolean securityNoneIsAvailable = false;
-        boolean preferredSecurityIsAvailable = false;
-        for (byte securityType : securityTypes) {
-            if (securityType == SECURITY_NONE) {
-                securityNoneIsAvailable = true;
+            // read the list of supported security types from the server
+            beginPhase(PHASE_SECURITY);
+            this.securityTypes = stream.readSecurity();
+            if (securityTypes == null) {
+                throw new RFBException("error from server: "+stream.readString());
             }
-            if (security.getType() == securityType) {
-                preferredSecurityIsAvailable = true;
+            // determine if the server supports our preferred security type,
+            // and/or "None" security.
+            boolean securityNoneIsAvailable = false;
+            boolean preferredSecurityIsAvailable = false;
+            for (byte securityType : securityTypes) {
+                if (securityType == SECURITY_NONE) {
+                    securityNoneIsAvailable = true;
+                }
+                if (security.getType() == securityType) {
+                    preferredSecurityIsAvailable = true;
+                }
             }
-        }
-        // if the preferred security type is not available,
-        // fall back to "None", if the server supports it.
-        if (! preferredSecurityIsAvailable) {
-            if (securityNoneIsAvailable) {
-                security = new RFBSecurityNone();
-            } else {
-                throw new RFBException("The server does not support security type \""+security.getTypeName()+"\"");
+            // if the preferred security type is not available,
+            // fall back to "None", if the server supports it.
+            if (! preferredSecurityIsAvailable) {
+                if (securityNoneIsAvailable) {
+                    security = new RFBSecurityNone();
+                } else {
+                    throw new RFBException("The server does not support security type \""+security.getTypeName()+"\"");
+                }
             }
-        }
-        // tell the server which security type we'll be using.
-        stream.writeSecurity(security.getType());
+            // tell the server which security type we'll be using.
+            stream.writeSecurity(security.getType());
 
-        // perform the security handshake
-        security.perform(stream);
+            // perform the security handshake
+            beginPhase(PHASE_AUTH);
+            // sending our version and waiting for the security types
+            // was a round trip with nothing in the way.
+            recordRoundTrip(phaseDurations[PHASE_SECURITY]);
+            security.perform(stream);
 
-        // read a security result... it's always sent in version 3.8.
-        // previous versions skipped the result for SECURITY_NONE.
-        int version = this.serverVersion.asInt();
-        if ((version >= 0x0308) || (! (security instanceof RFBSecurityNone))) {
-            // read a security result.
-            if (stream.readSecurityResult() == 1) {
-                // failure
-                if (version >= 0x0308) {
-                    throw new RFBException("error from server: "+stream.readString());
-                } else {
-                    throw new RFBException("cannot authenticate with server.");
+            // read a security result... it's always sent in version 3.8.
+            // previous versions skipped the result for SECURITY_NONE.
+            int version = this.serverVersion.asInt();
+            if ((version >= 0x0308) || (! (security instanceof RFBSecurityNone))) {
+                // read a security result.
+                if (stream.readSecurityResult() == 1) {
+                    // failure
+                    if (version >= 0x0308) {
+                        throw new RFBAuthException("error from server: "+stream.readString());
+                    } else {
+                        throw new RFBAuthException("cannot authenticate with server.");
+                    }
                 }
             }
+
+            // initialization
+            beginPhase(PHASE_INIT);
+            Object[] oa = stream.performInitialization();
+            this.serverName = (String)oa[0];
+            this.width = (Integer)oa[1];
+            this.height = (Integer)oa[2];
+            RFBDecoder.checkDesktopSize(width, height);
+            this.pointerX = width/2.0f;
+            this.pointerY = height/2.0f;
+            endPhase();
+        } catch (EOFException e) {
+            throw handshakeFailure(e);
+        } catch (SocketTimeoutException e) {
+            throw handshakeFailure(e);
         }
 
-        // initialization
-        Object[] oa = stream.performInitialization();
-        this.serverName = (String)oa[0];
-        this.width = (Integer)oa[1];
-        this.height = (Integer)oa[2];
-        this.pointerX = width/2.0f;
-        this.pointerY = height/2.0f;
+        if (framebufferEnabled) {
+            setupFramebuffer();
+        }
+    }
+
+    /**
+     * Negotiate the pixel format and encodings, and start scheduling
+     * updates.
+     */
+    private void setupFramebuffer() throws IOException {
+        decoder = new RFBDecoder(new RFBFramebuffer(width, height));
+        decoder.setOnServerMessageListener(serverMessageListener);
+        decoder.setJpegQuality(jpegQuality);
+        if (recorder != null) {
+            recorder.write(new byte[] {
+                (byte)(width >> 8), (byte)width,
+                (byte)(height >> 8), (byte)height
+            });
+            stream.setRecorder(recorder);
+        }
+        stream.writeSetPixelFormat(RFBPixelFormat.DEFAULT);
+        stream.writeSetEncodings(decoder.getEncodings());
+        // the scheduler's first request is for the whole screen.
+        scheduler = new RFBUpdateScheduler(width, height);
+        scheduleUpdates();
     }
 
     private void establishRFBStream() throws UnknownHostException, IOException, RFBException {
         //System.out.println("connecting...");
+        stream = null;
+        phase = -1;
+        phaseDurations = new long[NUM_PHASES];
+        if (handshakeTimeout > 0) {
+            handshakeDeadline = System.nanoTime() + handshakeTimeout*1000000L;
+        } else {
+            handshakeDeadline = 0L;
+        }
+        beginPhase(PHASE_CONNECT);
+        InetAddress[] addresses;
+        String host;
         if (inetAddress != null) {
-            socket = new Socket(inetAddress, port);
+            addresses = new InetAddress[] { inetAddress };
+            host = inetAddress.getHostAddress();
         } else {
-            socket = new Socket(address, port);
+            host = address;
+            // race all of the name's addresses; looking them up counts
+            // against the connect phase.
+            int resolveTimeout = (int)Math.max(1L, (phaseDeadline(phaseStart) - System.nanoTime()) / 1000000L);
+            addresses = RFBConnector.resolve(address, resolveTimeout);
         }
-        socket.setSoTimeout(TIMEOUT);
-        // disable Nagle's algorithm so mouse movements are smooth.
-        socket.setTcpNoDelay(true);
+        int connectTimeout = (int)Math.max(1L, (phaseDeadline(phaseStart) - System.nanoTime()) / 1000000L);
+        RFBConnector connector = new RFBConnector(host, addresses, getAddressAliases(addresses), port, new RFBConnector.TransportFactory() {
+            @Override
+            public RFBTransport open(SocketAddress socketAddress, int timeout) throws IOException {
+                if (reactor != null) {
+                    return new RFBReactorTransport(reactor, socketAddress, timeout);
+                } else {
+                    return new RFBSocketTransport(socketAddress, timeout);
+                }
+            }
+        });
+        connector.setAttemptDelay(connectAttemptDelay);
+        transport = connector.connect(connectTimeout);
+        connectedAddress = connector.getAddress();
+        transport.setReadTimeout(TIMEOUT);
+        transport.setOnReceive(pingReceiver);
         //System.out.println("connected.");
 
-        this.stream = new RFBStream(socket.getInputStream(), socket.getOutputStream());
+        this.stream = new RFBStream(transport.getInputStream(), transport.getOutputChannel());
+        stream.getWriter().setMaxLatency(maxBatchLatency);
+        this.coalescer = new RFBPointerCoalescer(stream);
         //System.out.println("reading from the RFB socket...");
 
         // version
+        beginPhase(PHASE_VERSION);
 
         this.serverVersion = stream.readVersion();
         int version = this.serverVersion.asInt();
@@ -273,16 +769,408 @@ public class RFBConnection {
         stream.writeVersion(version);
     }
 
+    /**
+     * End the current handshake phase (if any) and start the next,
+     * with reads bounded by its deadline.
+     */
+    private void beginPhase(int nextPhase) throws IOException {
+        long now = System.nanoTime();
+        if (phase >= 0) {
+            phaseDurations[phase] = now - phaseStart;
+        }
+        phase = nextPhase;
+        phaseStart = now;
+        if (stream != null) {
+            stream.setDeadline(transport, phaseDeadline(now));
+        }
+    }
+
+    /**
+     * Return the deadline for the current phase, if it started at
+     * "start": the phase timeout, or the handshake deadline, whichever
+     * comes first.
+     */
+    private long phaseDeadline(long start) {
+        long deadline = start + phaseTimeouts[phase]*1000000L;
+        if ((handshakeDeadline != 0L) && (handshakeDeadline - deadline < 0)) {
+            deadline = handshakeDeadline;
+        }
+        return deadline;
+    }
+
+    /**
+     * End the handshake: record the last phase, and lift the deadline.
+     */
+    private void endPhase() throws IOException {
+        if (phase >= 0) {
+            phaseDurations[phase] = System.nanoTime() - phaseStart;
+            phase = -1;
+        }
+        stream.clearDeadline();
+    }
+
+    /**
+     * Describe a handshake that was cut short, and close the transport.
+     */
+    private RFBException handshakeFailure(IOException e) {
+        int failedPhase = (phase >= 0) ? phase : PHASE_CONNECT;
+        if (phase >= 0) {
+            phaseDurations[phase] = System.nanoTime() - phaseStart;
+            phase = -1;
+        }
+        try {
+            if (transport != null) {
+                transport.close();
+                transport = null;
+            }
+        } catch (IOException e2) {
+        }
+        if (e instanceof EOFException) {
+            return new RFBEOFException(failedPhase, e);
+        } else {
+            return new RFBTimeoutException(failedPhase, e);
+        }
+    }
+
     public void disconnect() throws IOException {
-        if (socket != null) {
-            socket.shutdownOutput();
-            socket.close();
-            socket = null;
+        if (transport != null) {
+            try {
+                transport.shutdownOutput();
+            } finally {
+                transport.close();
+                transport = null;
+            }
+        }
+    }
+
+    // batching
+
+    /**
+     * Set the longest time (in milliseconds) that an outgoing message
+     * may sit in an open batch before it is flushed anyway.
+     */
+    public void setMaxBatchLatency(long maxBatchLatency) {
+        this.maxBatchLatency = maxBatchLatency;
+        if (stream != null) {
+            stream.getWriter().setMaxLatency(maxBatchLatency);
+        }
+    }
+    public long getMaxBatchLatency() {
+        return maxBatchLatency;
+    }
+
+    /**
+     * Start collecting outgoing events, so that a burst of input is
+     * sent to the server in a single write.
+     */
+    public void beginBatch() {
+        if (stream == null) {
+            return;
+        }
+        stream.getWriter().beginBatch();
+    }
+
+    public void endBatch() throws IOException {
+        if (stream == null) {
+            return;
+        }
+        coalescer.flush();
+        stream.getWriter().endBatch();
+    }
+
+    /**
+     * Write out any batched events without closing the batch.
+     */
+    public void flushBatch() throws IOException {
+        if (stream == null) {
+            return;
+        }
+        coalescer.flush();
+        stream.getWriter().flush();
+    }
+
+    /**
+     * Return the batching counters for this session, or null if
+     * there is no stream.
+     */
+    public RFBBatchWriter.Stats getBatchStats() {
+        if (stream == null) {
+            return null;
+        }
+        return stream.getWriter().getStats();
+    }
+
+    /**
+     * Return the number of pointer events which were merged into a
+     * later position update instead of being sent.
+     */
+    public long getCoalescedPointerEvents() {
+        if (coalescer == null) {
+            return 0;
+        }
+        return coalescer.getCoalesced();
+    }
+
+    // server messages
+
+    /**
+     * Read and apply one message from the server, blocking until it
+     * arrives, and return its message type.  This must only be called
+     * from one thread, and only when the framebuffer is enabled.
+     * After a FramebufferUpdate, the caller should call
+     * scheduleUpdates() to keep the updates coming.
+     */
+    public int processServerMessage() throws IOException, RFBException {
+        if (decoder == null) {
+            throw new RFBException("the framebuffer is not enabled.");
+        }
+        // don't count time spent waiting for the server to have
+        // something to say.
+        stream.waitForData();
+        long start = System.nanoTime();
+        long bytes = stream.getBytesRead();
+        long readWait = stream.getReadWait();
+        int type = decoder.processMessage(stream);
+        if (type == RFBDecoder.MSG_FRAMEBUFFER_UPDATE) {
+            readWait = stream.getReadWait() - readWait;
+            long decodeTime = System.nanoTime() - start - readWait;
+            scheduler.onUpdateReceived(
+                decodeTime, readWait, stream.getBytesRead() - bytes
+            );
+            RFBFramebuffer fb = decoder.getFramebuffer();
+            if ((fb.getWidth() != width) || (fb.getHeight() != height)) {
+                // the pointer is clamped to the new size on its next
+                // event.
+                width = fb.getWidth();
+                height = fb.getHeight();
+                scheduler.setFramebufferSize(width, height);
+            }
+        } else if (type == RFBDecoder.MSG_END_OF_CONTINUOUS_UPDATES) {
+            scheduler.onEndOfContinuousUpdates();
+        }
+        return type;
+    }
+
+    /**
+     * Return the remote cursor shape, or null if the framebuffer is
+     * not enabled or we are not connected.
+     */
+    public RFBCursor getCursor() {
+        if (decoder == null) {
+            return null;
+        }
+        return decoder.getCursor();
+    }
+
+    /**
+     * Return the pointer position we last sent to the server, which
+     * is where the cursor should be drawn.  (With pointer prediction,
+     * this is the true position, not the extrapolated one.)
+     */
+    public float getPointerX() {
+        return pointerX;
+    }
+    public float getPointerY() {
+        return pointerY;
+    }
+
+    /**
+     * Return the scheduler which decides when to ask for framebuffer
+     * updates, or null if the framebuffer is not enabled or we are
+     * not connected.
+     */
+    public RFBUpdateScheduler getUpdateScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Send any FramebufferUpdateRequests which are due.  Returns the
+     * number of milliseconds until this should be called again, or -1
+     * if there is nothing to do until the next FramebufferUpdate
+     * arrives or the scheduler is changed (resumed, etc.).
+     */
+    public long scheduleUpdates() throws IOException {
+        if ((stream == null) || (scheduler == null)) {
+            return -1;
+        }
+        // decide under the scheduler's lock, but write outside of it,
+        // so a blocked write can't stall the receiving thread.
+        while (scheduler.takeRequest(System.nanoTime(), updateRequest)) {
+            int x = updateRequest[0];
+            int y = updateRequest[1];
+            int w = updateRequest[2];
+            int h = updateRequest[3];
+            switch (updateRequest[4]) {
+            case RFBUpdateScheduler.REQUEST_FULL:
+                stream.writeFramebufferUpdateRequest(false, x, y, w, h);
+                break;
+            case RFBUpdateScheduler.REQUEST_INCREMENTAL:
+                stream.writeFramebufferUpdateRequest(true, x, y, w, h);
+                break;
+            case RFBUpdateScheduler.REQUEST_CONTINUOUS_ON:
+                stream.writeEnableContinuousUpdates(true, x, y, w, h);
+                break;
+            case RFBUpdateScheduler.REQUEST_CONTINUOUS_OFF:
+                stream.writeEnableContinuousUpdates(false, x, y, w, h);
+                break;
+            }
+        }
+        return scheduler.getDelay(System.nanoTime());
+    }
+
+    /**
+     * Stop (or resume) asking for framebuffer updates, e.g. while the
+     * screen can't be seen.
+     */
+    public void pauseUpdates() {
+        if (scheduler != null) {
+            scheduler.pause();
+        }
+    }
+    public void resumeUpdates() {
+        if (scheduler != null) {
+            scheduler.resume();
+        }
+    }
+
+    /**
+     * Ask only for updates within the given region of the screen.
+     */
+    public void setViewport(int x, int y, int w, int h) {
+        if (scheduler != null) {
+            scheduler.setViewport(x, y, w, h);
         }
     }
 
     // event handling
 
+    /**
+     * Set the curve which scales pointer movements by their speed.
+     */
+    public void setAccelerationCurve(PointerAccelerationCurve accelerationCurve) {
+        this.accelerationCurve = accelerationCurve;
+    }
+    public PointerAccelerationCurve getAccelerationCurve() {
+        return accelerationCurve;
+    }
+
+    /**
+     * If enabled, pointer movements are sent extrapolated ahead by the
+     * time it takes them to reach the server (half the round trip
+     * time, up to MAX_PREDICTION_HORIZON), so the remote cursor keeps
+     * up with the finger.  Clicks and scrolls always go to the true
+     * position.  When the pointer stops, the sender must call
+     * settlePointer() as getPointerSettleDelay() says, to glide it back
+     * from where it was predicted to be.
+     */
+    public void setPointerPrediction(boolean pointerPrediction) {
+        this.pointerPrediction = pointerPrediction;
+    }
+    public boolean getPointerPrediction() {
+        return pointerPrediction;
+    }
+
+    /**
+     * Return the number of milliseconds until settlePointer() should
+     * be called, or -1 if it needn't be.  This must be called on the
+     * sending thread.
+     */
+    public long getPointerSettleDelay() {
+        return predictor.getSettleDelay(System.nanoTime() / 1000000L);
+    }
+
+    /**
+     * Move the pointer back towards its true position, once it has
+     * stopped.  This must be called on the sending thread.
+     */
+    public void settlePointer() throws IOException {
+        if ((stream == null) || ! predictor.hasOffset()) {
+            return;
+        }
+        long now = System.nanoTime() / 1000000L;
+        if (predictor.getSettleDelay(now) > 0) {
+            return;
+        }
+        predictor.settle(now);
+        coalescer.pointerEvent(lastButtons, predictedX(), predictedY());
+    }
+
+    private int predictedX() {
+        float x = pointerX + predictor.getOffsetX();
+        return (int)Math.max(0.0f, Math.min(x, width-1));
+    }
+    private int predictedY() {
+        float y = pointerY + predictor.getOffsetY();
+        return (int)Math.max(0.0f, Math.min(y, height-1));
+    }
+
+    private float getPredictionHorizon() {
+        // the user watches the server's own screen, so only the trip
+        // there counts.
+        float horizon = roundTripTime / 2000000.0f;
+        return Math.min(horizon, MAX_PREDICTION_HORIZON);
+    }
+
+    /**
+     * Return the number of milliseconds until stepScroll() should be
+     * called, to write collected scroll clicks or to continue a fling,
+     * or -1 if it needn't be.  This must be called on the sending
+     * thread.
+     */
+    public long getScrollDelay() {
+        return scroller.getDelay(System.nanoTime() / 1000000L);
+    }
+
+    /**
+     * Continue any fling, and write the scroll clicks collected in the
+     * last frame.  This must be called on the sending thread.
+     */
+    public void stepScroll() throws IOException {
+        if (stream == null) {
+            scroller.reset();
+            scroller.clicksWritten(0);
+            return;
+        }
+        long now = System.nanoTime() / 1000000L;
+        if (scroller.getDelay(now) > 0) {
+            return;
+        }
+        scroller.step(now);
+        writeScroll(now);
+    }
+
+    /**
+     * Write the pending scroll clicks as wheel button press/release
+     * pairs -- buttons 4/5 for vertical and 6/7 for horizontal -- in a
+     * single write.
+     */
+    private void writeScroll(long now) throws IOException {
+        int clicksX = scroller.getClicksX();
+        int clicksY = scroller.getClicksY();
+        scroller.clicksWritten(now);
+        if ((clicksX == 0) && (clicksY == 0)) {
+            return;
+        }
+        int x = predictedX();
+        int y = predictedY();
+        coalescer.flush();
+        RFBBatchWriter writer = stream.getWriter();
+        writer.beginBatch();
+        try {
+            if (clicksY != 0) {
+                byte button = (clicksY > 0) ? (byte)0x08 : (byte)0x10;
+                stream.sendMultiplePointerEvents(Math.abs(clicksY), (byte)(lastButtons|button), lastButtons, x, y);
+            }
+            if (clicksX != 0) {
+                byte button = (clicksX > 0) ? (byte)0x40 : (byte)0x20;
+                stream.sendMultiplePointerEvents(Math.abs(clicksX), (byte)(lastButtons|button), lastButtons, x, y);
+            }
+        } finally {
+            writer.endBatch();
+        }
+        coalescer.setButtons(lastButtons);
+    }
+
     /**
      * Dispatch incoming events
      */
@@ -298,61 +1186,64 @@ public class RFBConnection {
     }
 
     private void sendKey(RFBKeyEvent keyEvent) throws IOException {
+        coalescer.flush();
         stream.sendKey(keyEvent);
     }
 
-    private float syAccumulator = 0.0f;
+    /**
+     * Send an already-resolved key, with an optional modifier
+     * (0 for none).
+     */
+    public void sendKey(int keysym, int modifierKeysym) throws IOException {
+        if (stream == null) {
+            return;
+        }
+        coalescer.flush();
+        stream.sendKey(keysym, modifierKeysym);
+    }
+
     private void handlePointerEvent(RFBPointerEvent rpe) throws IOException {
         float distance=0.0f, speed=0.0f;
+        boolean moved = false;
+        long now = System.nanoTime() / 1000000L;
+
+        if (rpe.fling) {
+            // the fingers lifted off a scroll
+            scroller.release(now);
+            return;
+        }
+        boolean scrolled = (rpe.sx != 0.0f) || (rpe.sy != 0.0f);
+        if (! scrolled) {
+            // anything else ends the scroll gesture, after the clicks
+            // collected so far.
+            writeScroll(now);
+            scroller.reset();
+        }
 
         // handle movement
         if (rpe.dt > 0 && (rpe.dx != 0.0f || rpe.dy != 0.0f)) {
-            // calculate speed
+            moved = true;
+            // scale the movement by the acceleration curve's gain
             distance = FloatMath.sqrt(rpe.dx*rpe.dx+rpe.dy*rpe.dy);
-            speed = distance/((float)rpe.dt) * 10.0f;
-            if (speed > 15.0f) {
-                speed = 15.0f;
-            } else if (speed < 0.1f) {
-                speed = 0.1f;
-            }
-
-            // TODO TODO TODO
-            // The following is an experiment in alternative speed-scaling formulas...
-            /*
-            float dxp = rpe.dx*speed;
-            float dyp = rpe.dy*speed;
-            float log = (float) Math.log(speed+1);
-            float dxp2 = rpe.dx * log;
-            float dyp2 = rpe.dy * log;
-            float ex = (float) (speed+1)*(speed+1);
-            float dxp3 = rpe.dx * ex;
-            float dyp3 = rpe.dy * ex;
-            System.out.printf(
-                "RFBf: dx=%f dy=%f dt=%d speed=%f dx'=%f dy'=%f | log=%f dx''=%f dy''=%f | ex=%f dxe=%f dye=%f\n",
-                rpe.dx, rpe.dy, rpe.dt, speed,
-                dxp, dyp,
-                log, dxp2, dyp2,
-                ex, dxp3, dyp3
-            );
-            pointerX += dxp3/3;
-            pointerY += dyp3/3;
-            */
-
+            speed = accelerationCurve.getGain(distance/((float)rpe.dt));
             pointerX += (rpe.dx*speed);
             pointerY += (rpe.dy*speed);
+        }
 
-            if (pointerX >= width) {
-                pointerX = width-1;
-            }
-            if (pointerY >= height) {
-                pointerY = height-1;
-            }
-            if (pointerX < 0) {
-                pointerX = 0;
-            }
-            if (pointerY < 0) {
-                pointerY = 0;
-            }
+        // clamp every time, since the desktop may have shrunk.
+        int width = this.width;
+        int height = this.height;
+        if (pointerX >= width) {
+            pointerX = width-1;
+        }
+        if (pointerY >= height) {
+            pointerY = height-1;
+        }
+        if (pointerX < 0) {
+            pointerX = 0;
+        }
+        if (pointerY < 0) {
+            pointerY = 0;
         }
 
         // handle buttons
@@ -371,66 +1262,37 @@ public class RFBConnection {
             }
         }
 
-        // process scroll events
-        // TODO: support horizontal scrolling
-        int yScroll = 0;
-        if (rpe.sy != 0.0f) {
-            // scale the sy down
-            float effectiveSy = rpe.sy/5;
-            // accumulate the sy.  This allows us to track
-            // fractional changes, but only send an event when
-            // the absolute accumulation is greater than 1.0.
-            syAccumulator += effectiveSy;
-//float sya1 = syAccumulator;
-            if (Math.abs(syAccumulator) >= 1.0) {
-                yScroll = (int)syAccumulator;
-                // keep the fractional part
-                syAccumulator = syAccumulator - yScroll;
-
-                // clamp the yScroll
-                if (yScroll < -20) {
-                    yScroll = -20;
-                } else if (yScroll > 20) {
-                    yScroll = 20;
-                }
-            }
-//System.out.printf("RFB>> rpe.sy=%f effectiveSy=%f syA1=%f yScroll=%d syA2=%f\n", rpe.sy, effectiveSy, sya1, yScroll, syAccumulator);
+        // extrapolate moves and drags; anything else goes to the true
+        // position.
+        if (pointerPrediction && moved && (buttons == lastButtons)) {
+            predictor.addSample(rpe.dt, pointerX, pointerY, now);
+            predictor.predict(getPredictionHorizon());
         } else {
-            syAccumulator = 0.0f;
+            predictor.reset();
         }
+        lastButtons = buttons;
+        int x = predictedX();
+        int y = predictedY();
 
-        // send the event
-
-        if (yScroll != 0) {
-            // handle scroll
-            if (yScroll > 0) {
-                buttons |= 0x08;
-            } else if (yScroll < 0) {
-                buttons |= 0x10;
+        // scroll events only collect clicks, which are written once
+        // per frame.
+        if (scrolled) {
+            scroller.addScroll(rpe.dt, rpe.sx, rpe.sy, now);
+            if (scroller.isFrameDue(now)) {
+                writeScroll(now);
             }
-
-            byte clearScrollButtons = buttons;
-            clearScrollButtons &= (~(0x08 | 0x10));
-            /*
-            System.out.printf(
-                "RFB>> dt=%d dx=%f dy=%f sx=%f sy=%f || dist=%f speed=%f >> %02X %f,%f  yScroll=%d\n",
-                rpe.dt, rpe.dx, rpe.dy, rpe.sx, rpe.sy,
-                distance, speed,
-                buttons, pointerX, pointerY,
-                yScroll
-            );
-            */
-            stream.sendMultiplePointerEvents(Math.abs(yScroll), buttons, clearScrollButtons, (int)pointerX, (int)pointerY);
-        } else {
-            /*
-            System.out.printf(
-                "RFB>> dt=%d dx=%f dy=%f sx=%f sy=%f || dist=%f speed=%f >> %02X %f,%f\n",
-                rpe.dt, rpe.dx, rpe.dy, rpe.sx, rpe.sy,
-                distance, speed,
-                buttons, pointerX, pointerY
-            );
-            */
-            stream.sendPointerEvent(buttons, (int)pointerX, (int)pointerY);
+            return;
         }
+
+        // send the event
+        /*
+        System.out.printf(
+            "RFB>> dt=%d dx=%f dy=%f sx=%f sy=%f || dist=%f speed=%f >> %02X %f,%f\n",
+            rpe.dt, rpe.dx, rpe.dy, rpe.sx, rpe.sy,
+            distance, speed,
+            buttons, pointerX, pointerY
+        );
+        */
+        coalescer.pointerEvent(buttons, x, y);
     }
 }
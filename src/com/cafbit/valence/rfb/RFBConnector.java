@@ -0,0 +1,332 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cafbit.valence.rfb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Opens a transport to whichever of a host's addresses answers first,
+ * in the manner of "Happy Eyeballs" (RFC 8305).  A host may have
+ * several addresses, typically both IPv4 and IPv6, some of which may
+ * be unreachable.  Rather than trying them one after another, each
+ * waiting out its own timeout, attempts are started a short delay
+ * apart (or as soon as the previous one fails), alternating between
+ * address families.  The first to connect wins, and the rest are
+ * closed as they finish.
+ *
+ * The family which won for each host is remembered, and tried first
+ * the next time.  Other addresses known to belong to the same host
+ * (e.g. the A and AAAA records found by mDNS) can be passed in as
+ * aliases, and are then raced along with the address asked for.
+ */
+class RFBConnector {
+
+    static final long DEFAULT_ATTEMPT_DELAY = 250; // milliseconds
+    private static final int MAX_REMEMBERED_HOSTS = 64;
+
+    /**
+     * Opens one transport; called concurrently, once per address.
+     */
+    interface TransportFactory {
+        RFBTransport open(SocketAddress address, int connectTimeout) throws IOException;
+    }
+
+    private static int serial = 0;
+
+    // host -> whether IPv6 won last time (most recently used last)
+    private static final Map<String,Boolean> preferIPv6 =
+        new LinkedHashMap<String,Boolean>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,Boolean> eldest) {
+                return size() > MAX_REMEMBERED_HOSTS;
+            }
+        };
+
+    private String host;
+    private InetAddress[] addresses;
+    private int port;
+    private TransportFactory factory;
+    private long attemptDelay = DEFAULT_ATTEMPT_DELAY;
+
+    // attempt state, guarded by "this"
+    private RFBTransport winner = null;
+    private InetAddress winnerAddress = null;
+    private IOException lastError = null;
+    private int failures = 0;
+    private boolean done = false;
+
+    /**
+     * Prepare to connect to "host" (a name or address literal, used to
+     * remember the winning family) at the given addresses, and at
+     * "aliases" (which may be null) too.
+     */
+    RFBConnector(String host, InetAddress[] addresses, InetAddress[] aliases, int port, TransportFactory factory) {
+        this.host = host;
+        this.port = port;
+        this.factory = factory;
+        this.addresses = order(merge(addresses, aliases), getPreferIPv6(host));
+    }
+
+    /**
+     * Set how long to wait for an attempt before starting the next one.
+     */
+    void setAttemptDelay(long attemptDelay) {
+        this.attemptDelay = attemptDelay;
+    }
+
+    /**
+     * Look up the addresses of "host" (a name or address literal),
+     * failing with a SocketTimeoutException after "timeout"
+     * milliseconds.  The resolver can't be interrupted, so a name is
+     * looked up on a thread of its own, which is left to finish in
+     * the background if it takes too long.
+     */
+    static InetAddress[] resolve(final String host, int timeout) throws IOException {
+        if (isAddressLiteral(host)) {
+            // no lookup needed
+            return InetAddress.getAllByName(host);
+        }
+        final Object[] result = new Object[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Object answer;
+                try {
+                    answer = InetAddress.getAllByName(host);
+                } catch (IOException e) {
+                    answer = e;
+                }
+                synchronized (result) {
+                    result[0] = answer;
+                    result.notifyAll();
+                }
+            }
+        }, "rfbresolve-"+(serial++));
+        thread.setDaemon(true);
+        thread.start();
+
+        long deadline = System.nanoTime() + timeout*1000000L;
+        synchronized (result) {
+            try {
+                while (result[0] == null) {
+                    long remaining = (deadline - System.nanoTime()) / 1000000L;
+                    if (remaining <= 0) {
+                        throw new SocketTimeoutException("timed out looking up "+host);
+                    }
+                    result.wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        if (result[0] instanceof IOException) {
+            throw (IOException)result[0];
+        }
+        InetAddress[] addresses = (InetAddress[])result[0];
+        if (addresses.length == 0) {
+            throw new UnknownHostException(host);
+        }
+        return addresses;
+    }
+
+    /**
+     * Return true if "host" is an IPv4 or IPv6 address literal rather
+     * than a name.
+     */
+    static boolean isAddressLiteral(String host) {
+        if (host.indexOf(':') >= 0) {
+            // only IPv6 addresses have colons
+            return true;
+        }
+        return host.matches("[0-9]{1,3}(\\.[0-9]{1,3}){3}");
+    }
+
+    /**
+     * Return the address which was connected to.
+     */
+    synchronized InetAddress getAddress() {
+        return winnerAddress;
+    }
+
+    /**
+     * Race the addresses, and return the first transport to connect.
+     * Fails with the last error if every address fails, or with a
+     * SocketTimeoutException if none connects within the timeout,
+     * which bounds the whole race.
+     */
+    RFBTransport connect(int connectTimeout) throws IOException {
+        if (addresses.length == 1) {
+            RFBTransport transport = factory.open(new InetSocketAddress(addresses[0], port), connectTimeout);
+            winnerAddress = addresses[0];
+            return transport;
+        }
+
+        long deadline = System.nanoTime() + connectTimeout*1000000L;
+        long nextStart = 0L;
+        int started = 0;
+        synchronized (this) {
+            try {
+                while (winner == null) {
+                    long now = System.nanoTime();
+                    if (deadline - now <= 0) {
+                        throw new SocketTimeoutException("connect timed out");
+                    }
+                    if (started < addresses.length) {
+                        // start the next attempt once the delay is up, or
+                        // right away if all of the earlier ones failed.
+                        if ((started == 0) || (failures == started) || (now - nextStart >= 0)) {
+                            startAttempt(addresses[started], (int)Math.max(1L, (deadline - now) / 1000000L));
+                            started++;
+                            nextStart = now + attemptDelay*1000000L;
+                            continue;
+                        }
+                    } else if (failures == started) {
+                        throw lastError;
+                    }
+                    long wake = deadline;
+                    if ((started < addresses.length) && (nextStart - deadline < 0)) {
+                        wake = nextStart;
+                    }
+                    wait(Math.max(1L, (wake - now) / 1000000L));
+                }
+                setPreferIPv6(host, winnerAddress instanceof Inet6Address);
+                return winner;
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } finally {
+                // any attempt still running will close its transport
+                done = true;
+            }
+        }
+    }
+
+    private void startAttempt(final InetAddress address, final int connectTimeout) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                RFBTransport transport;
+                try {
+                    transport = factory.open(new InetSocketAddress(address, port), connectTimeout);
+                } catch (IOException e) {
+                    synchronized (RFBConnector.this) {
+                        lastError = e;
+                        failures++;
+                        RFBConnector.this.notifyAll();
+                    }
+                    return;
+                }
+                synchronized (RFBConnector.this) {
+                    if ((winner == null) && (! done)) {
+                        winner = transport;
+                        winnerAddress = address;
+                        RFBConnector.this.notifyAll();
+                        return;
+                    }
+                }
+                try {
+                    transport.close();
+                } catch (IOException e) {
+                }
+            }
+        }, "rfbconnect-"+(serial++));
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    //////////////////////////////////////////////////////////////////////
+    // address ordering
+    //////////////////////////////////////////////////////////////////////
+
+    private static InetAddress[] merge(InetAddress[] addresses, InetAddress[] aliases) {
+        ArrayList<InetAddress> all = new ArrayList<InetAddress>();
+        for (InetAddress address : addresses) {
+            if (! all.contains(address)) {
+                all.add(address);
+            }
+        }
+        if (aliases != null) {
+            for (InetAddress alias : aliases) {
+                if (! all.contains(alias)) {
+                    all.add(alias);
+                }
+            }
+        }
+        return all.toArray(new InetAddress[all.size()]);
+    }
+
+    /**
+     * Interleave the address families, starting with the preferred
+     * family (or, if there is no preference, the family of the first
+     * address), and otherwise keeping the resolver's order.
+     */
+    static InetAddress[] order(InetAddress[] addresses, Boolean preferIPv6) {
+        ArrayList<InetAddress> v6 = new ArrayList<InetAddress>();
+        ArrayList<InetAddress> v4 = new ArrayList<InetAddress>();
+        for (InetAddress address : addresses) {
+            if (address instanceof Inet6Address) {
+                v6.add(address);
+            } else {
+                v4.add(address);
+            }
+        }
+        boolean v6First;
+        if (preferIPv6 != null) {
+            v6First = preferIPv6;
+        } else {
+            v6First = (addresses.length > 0) && (addresses[0] instanceof Inet6Address);
+        }
+        ArrayList<InetAddress> first = v6First ? v6 : v4;
+        ArrayList<InetAddress> second = v6First ? v4 : v6;
+        InetAddress[] ordered = new InetAddress[addresses.length];
+        int n = 0;
+        for (int i=0; (i < first.size()) || (i < second.size()); i++) {
+            if (i < first.size()) {
+                ordered[n++] = first.get(i);
+            }
+            if (i < second.size()) {
+                ordered[n++] = second.get(i);
+            }
+        }
+        return ordered;
+    }
+
+    private static Boolean getPreferIPv6(String host) {
+        synchronized (preferIPv6) {
+            return preferIPv6.get(host);
+        }
+    }
+
+    private static void setPreferIPv6(String host, boolean ipv6) {
+        synchronized (preferIPv6) {
+            preferIPv6.put(host, ipv6);
+        }
+    }
+
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cafbit.valence.rfb;
+
+import java.io.IOException;
+
+/**
+ * CopyRect encoding: the rectangle is a copy of another region of the
+ * framebuffer, given by its top-left corner.
+ */
+class RFBCopyRectDecoder extends RFBRectDecoder {
+
+    @Override
+    public int getEncoding() {
+        return RFBDecoder.ENCODING_COPYRECT;
+    }
+
+    @Override
+    void decode(RFBStream stream, RFBFramebuffer fb, int x, int y, int w, int h) throws IOException, RFBException {
+        int srcX = stream.getU16();
+        int srcY = stream.getU16();
+        fb.checkBounds(srcX, srcY, w, h);
+        fb.copyRect(srcX, srcY, x, y, w, h);
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cafbit.valence.rfb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * The remote cursor shape, as sent with the Cursor pseudo-encoding.
+ * Once we advertise that encoding, the server stops drawing the cursor
+ * into the framebuffer, and it's up to us to draw this at the pointer
+ * position, offset by the hotspot.
+ *
+ * Like the framebuffer, the pixels live off the Java heap, one
+ * little-endian int (0xAARRGGBB) per pixel, with the alpha taken from
+ * the server's bitmask.  A new shape is decoded on the receiving thread
+ * into a back buffer, then swapped in while holding this object's lock,
+ * so a reader that holds the same lock always sees one whole shape.
+ * The two buffers are reused for every shape that fits in them.
+ */
+public class RFBCursor {
+
+    private static final int BYTES_PER_PIXEL = 4;
+    // far bigger than any real cursor, and small enough to allocate
+    static final int MAX_SIZE = 512;
+
+    private int width = 0;
+    private int height = 0;
+    private int hotspotX = 0;
+    private int hotspotY = 0;
+    private ByteBuffer buffer = null;
+    private IntBuffer pixels = null;
+    // only touched by the receiving thread
+    private ByteBuffer backBuffer = null;
+    private IntBuffer backPixels = null;
+    private byte[] mask = new byte[0];
+
+    RFBCursor() {
+    }
+
+    public synchronized int getWidth() {
+        return width;
+    }
+
+    public synchronized int getHeight() {
+        return height;
+    }
+
+    public synchronized int getHotspotX() {
+        return hotspotX;
+    }
+
+    public synchronized int getHotspotY() {
+        return hotspotY;
+    }
+
+    /**
+     * Return true if the server wants no cursor drawn at all.
+     */
+    public synchronized boolean isEmpty() {
+        return (width == 0) || (height == 0);
+    }
+
+    /**
+     * Return the pixels as ints, indexed by (y*width + x), or null if
+     * the cursor is empty.  Only read them while synchronized on this
+     * cursor, together with the size and hotspot; the buffer is reused
+     * for a later shape once the lock is released.
+     */
+    public synchronized IntBuffer getPixels() {
+        return isEmpty() ? null : pixels;
+    }
+
+    /**
+     * Read a new shape: width*height pixels in RFBPixelFormat.DEFAULT,
+     * followed by a bitmask with one bit per pixel, each row padded
+     * to a whole byte.
+     */
+    void read(RFBStream stream, int hotspotX, int hotspotY, int w, int h) throws IOException, RFBException {
+        if ((w > MAX_SIZE) || (h > MAX_SIZE)) {
+            throw new RFBException("cursor too large from server: "+w+"x"+h);
+        }
+        int size = w*h*BYTES_PER_PIXEL;
+        if ((backBuffer == null) || (backBuffer.capacity() < size)) {
+            backBuffer = ByteBuffer.allocateDirect(size);
+            backBuffer.order(ByteOrder.LITTLE_ENDIAN);
+            backPixels = backBuffer.asIntBuffer();
+        }
+        backBuffer.clear();
+        backBuffer.limit(size);
+        stream.readInto(backBuffer);
+        backBuffer.clear();
+
+        int stride = (w+7)/8;
+        if (mask.length < stride*h) {
+            mask = new byte[stride*h];
+        }
+        stream.readInto(mask, 0, stride*h);
+        for (int y=0; y<h; y++) {
+            for (int x=0; x<w; x++) {
+                int i = y*w + x;
+                if ((mask[y*stride + (x>>3)] & (0x80 >> (x&7))) != 0) {
+                    backPixels.put(i, (backPixels.get(i) & 0x00FFFFFF) | 0xFF000000);
+                } else {
+                    backPixels.put(i, 0);
+                }
+            }
+        }
+
+        synchronized (this) {
+            ByteBuffer b = buffer;
+            IntBuffer p = pixels;
+            buffer = backBuffer;
+            pixels = backPixels;
+            backBuffer = b;
+            backPixels = p;
+            this.width = w;
+            this.height = h;
+            this.hotspotX = hotspotX;
+            this.hotspotY = hotspotY;
+        }
+    }
+
+}
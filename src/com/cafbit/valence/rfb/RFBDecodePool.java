@@ -0,0 +1,277 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cafbit.valence.rfb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * Decodes independent rectangles (JPEG) on a small pool of worker
+ * threads, so the receiving thread can keep reading the stream, while
+ * making sure rectangles reach the framebuffer in protocol order.
+ *
+ * Every rectangle queued here becomes a Blit.  Blits are applied to
+ * the framebuffer strictly in the order they were obtained, by
+ * whichever thread completes the oldest one.  Rectangles which are
+ * decoded on the receiving thread only need to be queued if an earlier
+ * rectangle is still in flight; otherwise they can go straight to the
+ * framebuffer (see isIdle()).
+ *
+ * The pool is bounded: once MAX_PENDING blits are outstanding, the
+ * receiving thread waits in obtain(), which pushes back on the server
+ * through TCP flow control.  Blit objects and their buffers are
+ * recycled, so a steady stream of rectangles doesn't allocate.
+ */
+class RFBDecodePool {
+
+    static final int KIND_FILL = 1;
+    static final int KIND_PIXELS = 2;
+    static final int KIND_JPEG = 3;
+
+    static class Blit {
+        RFBFramebuffer fb;
+        int x, y, w, h;
+        int kind;
+        int colour;
+        int[] pixels = new int[0];
+        byte[] data = new byte[0];
+        int dataLength;
+        boolean ready;
+        String error;
+
+        int[] pixels(int size) {
+            if (pixels.length < size) {
+                pixels = new int[size];
+            }
+            return pixels;
+        }
+
+        byte[] data(int size) {
+            if (data.length < size) {
+                data = new byte[size];
+            }
+            dataLength = size;
+            return data;
+        }
+    }
+
+    private final Blit[] pending;
+    private int head = 0;
+    private int count = 0;
+    private Blit[] free;
+    private int freeCount;
+    private String failure = null;
+    private ArrayBlockingQueue<Blit> jobs;
+    private Thread[] workers;
+
+    RFBDecodePool(int numWorkers, int maxPending) {
+        pending = new Blit[maxPending];
+        free = new Blit[maxPending];
+        for (int i=0; i<maxPending; i++) {
+            free[i] = new Blit();
+        }
+        freeCount = maxPending;
+        jobs = new ArrayBlockingQueue<Blit>(maxPending);
+        workers = new Thread[numWorkers];
+        for (int i=0; i<numWorkers; i++) {
+            workers[i] = new Worker();
+            workers[i].setName("rfbdecode-"+i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Return true if nothing is in flight, meaning the caller may
+     * write to the framebuffer directly.  Only the receiving thread
+     * adds blits, so once this returns true it stays true until the
+     * receiving thread calls obtain().
+     */
+    synchronized boolean isIdle() {
+        return count == 0;
+    }
+
+    /**
+     * Reserve the next blit in protocol order, waiting for room if the
+     * pool is full.
+     */
+    synchronized Blit obtain(RFBFramebuffer fb, int x, int y, int w, int h) throws IOException, RFBException {
+        while (freeCount == 0) {
+            waitForProgress();
+        }
+        checkFailure();
+        Blit blit = free[--freeCount];
+        blit.fb = fb;
+        blit.x = x;
+        blit.y = y;
+        blit.w = w;
+        blit.h = h;
+        blit.ready = false;
+        blit.error = null;
+        pending[(head+count) % pending.length] = blit;
+        count++;
+        return blit;
+    }
+
+    void submitFill(Blit blit, int colour) {
+        blit.kind = KIND_FILL;
+        blit.colour = colour;
+        complete(blit);
+    }
+
+    /**
+     * Submit a blit whose pixels have already been decoded.
+     */
+    void submitPixels(Blit blit) {
+        blit.kind = KIND_PIXELS;
+        complete(blit);
+    }
+
+    /**
+     * Submit a blit whose data holds a JPEG image, to be decoded by a
+     * worker.
+     */
+    void submitJPEG(Blit blit) throws IOException {
+        blit.kind = KIND_JPEG;
+        try {
+            jobs.put(blit);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Wait until everything in flight has reached the framebuffer.
+     */
+    synchronized void flush() throws IOException, RFBException {
+        while (count > 0) {
+            waitForProgress();
+        }
+        checkFailure();
+    }
+
+    void close() {
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    private void waitForProgress() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void checkFailure() throws RFBException {
+        if (failure != null) {
+            String message = failure;
+            failure = null;
+            throw new RFBException(message);
+        }
+    }
+
+    /**
+     * Mark a blit ready, and apply every ready blit at the head of the
+     * queue.
+     */
+    private synchronized void complete(Blit blit) {
+        blit.ready = true;
+        boolean progress = false;
+        while ((count > 0) && pending[head].ready) {
+            Blit b = pending[head];
+            pending[head] = null;
+            head = (head + 1) % pending.length;
+            count--;
+            apply(b);
+            b.fb = null;
+            free[freeCount++] = b;
+            progress = true;
+        }
+        if (progress) {
+            notifyAll();
+        }
+    }
+
+    private void apply(Blit blit) {
+        if (blit.error != null) {
+            if (failure == null) {
+                failure = blit.error;
+            }
+            return;
+        }
+        if (blit.kind == KIND_FILL) {
+            blit.fb.fillRect(blit.x, blit.y, blit.w, blit.h, blit.colour);
+        } else {
+            for (int row=0; row<blit.h; row++) {
+                blit.fb.putRow(blit.x, blit.y+row, blit.pixels, row*blit.w, blit.w);
+            }
+        }
+    }
+
+    private class Worker extends Thread {
+        private BitmapFactory.Options options = new BitmapFactory.Options();
+
+        Worker() {
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            options.inDither = false;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Blit blit;
+                try {
+                    blit = jobs.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                decodeJPEG(blit);
+                complete(blit);
+            }
+        }
+
+        private void decodeJPEG(Blit blit) {
+            Bitmap bitmap = null;
+            try {
+                bitmap = BitmapFactory.decodeByteArray(blit.data, 0, blit.dataLength, options);
+                if (bitmap == null) {
+                    blit.error = "undecodable JPEG rectangle from server";
+                } else if ((bitmap.getWidth() != blit.w) || (bitmap.getHeight() != blit.h)) {
+                    blit.error = "JPEG rectangle is "+bitmap.getWidth()+"x"+bitmap.getHeight()+
+                        " instead of "+blit.w+"x"+blit.h;
+                } else {
+                    // ARGB ints; the alpha lands in the unused byte.
+                    bitmap.getPixels(blit.pixels(blit.w*blit.h), 0, blit.w, 0, 0, blit.w, blit.h);
+                }
+            } catch (OutOfMemoryError e) {
+                blit.error = "out of memory decoding a JPEG rectangle";
+            } finally {
+                if (bitmap != null) {
+                    bitmap.recycle();
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,369 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cafbit.valence.rfb;
+
+import java.io.IOException;
+
+import android.util.Log;
+
+/**
+ * Reads server-to-client messages and applies them: FramebufferUpdate
+ * rectangles are handed to the RFBRectDecoder for their encoding,
+ * which writes them into the framebuffer; SetColourMapEntries updates
+ * the colour map; and Bell and ServerCutText are passed along to the
+ * listener.
+ *
+ * Pseudo-encoded rectangles carry other things: a new cursor shape
+ * (Cursor), a new framebuffer size (DesktopSize and
+ * ExtendedDesktopSize), or the end of the update (LastRect).
+ */
+public class RFBDecoder {
+
+    // server-to-client message types
+    public static final int MSG_FRAMEBUFFER_UPDATE = 0;
+    public static final int MSG_SET_COLOUR_MAP_ENTRIES = 1;
+    public static final int MSG_BELL = 2;
+    public static final int MSG_SERVER_CUT_TEXT = 3;
+    public static final int MSG_END_OF_CONTINUOUS_UPDATES = 150;
+
+    // encodings
+    public static final int ENCODING_RAW = 0;
+    public static final int ENCODING_COPYRECT = 1;
+    public static final int ENCODING_RRE = 2;
+    public static final int ENCODING_HEXTILE = 5;
+    public static final int ENCODING_TIGHT = 7;
+    public static final int ENCODING_ZRLE = 16;
+
+    // pseudo-encodings
+    public static final int ENCODING_QUALITY_LEVEL_0 = -32;
+    public static final int ENCODING_DESKTOP_SIZE = -223;
+    public static final int ENCODING_LAST_RECT = -224;
+    public static final int ENCODING_CURSOR = -239;
+    public static final int ENCODING_EXTENDED_DESKTOP_SIZE = -308;
+    public static final int ENCODING_CONTINUOUS_UPDATES = -313;
+
+    private static final int[] PSEUDO_ENCODINGS = {
+        ENCODING_CURSOR,
+        ENCODING_EXTENDED_DESKTOP_SIZE,
+        ENCODING_DESKTOP_SIZE,
+        ENCODING_LAST_RECT,
+        ENCODING_CONTINUOUS_UPDATES
+    };
+
+    public static final int DEFAULT_JPEG_QUALITY = 8;
+
+    // we'll skip (rather than allocate) cut text larger than this.
+    private static final int MAX_CUT_TEXT = 256*1024;
+    // an 8K desktop fits; anything larger we won't try to allocate.
+    static final long MAX_DESKTOP_PIXELS = 8192L*8192;
+
+    public interface OnServerMessageListener {
+        /**
+         * A rectangle of the framebuffer has been updated.  (Some
+         * decoders finish in the background, so the pixels are only
+         * guaranteed to be in place by onFramebufferUpdateComplete().)
+         */
+        public void onFramebufferRect(int x, int y, int w, int h);
+        /**
+         * All of the rectangles in a FramebufferUpdate have been
+         * applied.
+         */
+        public void onFramebufferUpdateComplete();
+        /**
+         * The server has resized the desktop.  The old framebuffer
+         * has been replaced by a new (blank) one, which the following
+         * updates will fill in.
+         */
+        public void onDesktopSize(int width, int height);
+        /**
+         * The cursor shape has changed.  The same RFBCursor is passed
+         * every time, so don't hold on to its pixels; read them while
+         * synchronized on the cursor.
+         */
+        public void onCursor(RFBCursor cursor);
+        public void onBell();
+        public void onServerCutText(String text);
+    }
+
+    private RFBFramebuffer framebuffer;
+    private RFBRectDecoder[] decoders;
+    private int jpegQuality = DEFAULT_JPEG_QUALITY;
+    private int[] colourMap = new int[0];
+    private OnServerMessageListener listener = null;
+    private RFBCursor cursor = new RFBCursor();
+
+    public RFBDecoder(RFBFramebuffer framebuffer) {
+        this.framebuffer = framebuffer;
+        this.decoders = new RFBRectDecoder[] {
+            new RFBTightDecoder(),
+            new RFBZRLEDecoder(),
+            new RFBCopyRectDecoder(),
+            new RFBHextileDecoder(),
+            new RFBRREDecoder(),
+            new RFBRawDecoder()
+        };
+    }
+
+    /**
+     * Set the JPEG quality level (0-9) requested for Tight rectangles,
+     * or -1 to ask for lossless encodings only.  This takes effect the
+     * next time the encodings are sent.
+     */
+    public void setJpegQuality(int jpegQuality) {
+        this.jpegQuality = jpegQuality;
+    }
+    public int getJpegQuality() {
+        return jpegQuality;
+    }
+
+    public void setOnServerMessageListener(OnServerMessageListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Return the framebuffer.  This changes when the server resizes
+     * the desktop.
+     */
+    public RFBFramebuffer getFramebuffer() {
+        return framebuffer;
+    }
+
+    public RFBCursor getCursor() {
+        return cursor;
+    }
+
+    /**
+     * Return the encodings we support, in order of preference, for
+     * SetEncodings.
+     */
+    public int[] getEncodings() {
+        int n = decoders.length;
+        int p = PSEUDO_ENCODINGS.length;
+        int[] encodings = new int[n + p + ((jpegQuality >= 0) ? 1 : 0)];
+        for (int i=0; i<n; i++) {
+            encodings[i] = decoders[i].getEncoding();
+        }
+        System.arraycopy(PSEUDO_ENCODINGS, 0, encodings, n, p);
+        if (jpegQuality >= 0) {
+            encodings[n+p] = ENCODING_QUALITY_LEVEL_0 + jpegQuality;
+        }
+        return encodings;
+    }
+
+    /**
+     * Return the colour map as 0x00RRGGBB values.  This is only used
+     * by servers which ignore our request for true colour.
+     */
+    public int[] getColourMap() {
+        return colourMap;
+    }
+
+    /**
+     * Release the decoders' resources.  Call this from the decoding
+     * thread when no more messages will be processed.
+     */
+    public void close() {
+        for (RFBRectDecoder decoder : decoders) {
+            decoder.close();
+        }
+    }
+
+    /**
+     * Read and apply one server-to-client message, blocking until it
+     * has arrived in full.  Returns the message type.
+     */
+    public int processMessage(RFBStream stream) throws IOException, RFBException {
+        int type = stream.getU8();
+        switch (type) {
+        case MSG_FRAMEBUFFER_UPDATE:
+            readFramebufferUpdate(stream);
+            break;
+        case MSG_SET_COLOUR_MAP_ENTRIES:
+            readColourMapEntries(stream);
+            break;
+        case MSG_BELL:
+            if (listener != null) {
+                listener.onBell();
+            }
+            break;
+        case MSG_SERVER_CUT_TEXT:
+            readServerCutText(stream);
+            break;
+        case MSG_END_OF_CONTINUOUS_UPDATES:
+            // no payload; the caller tells the scheduler.
+            break;
+        default:
+            // the message length is unknown, so we can't resync.
+            throw new RFBException("unknown message type from server: "+type);
+        }
+        return type;
+    }
+
+    private void readFramebufferUpdate(RFBStream stream) throws IOException, RFBException {
+        stream.skip(1); // padding
+        int numRects = stream.getU16();
+        for (int i=0; i<numRects; i++) {
+            int x = stream.getU16();
+            int y = stream.getU16();
+            int w = stream.getU16();
+            int h = stream.getU16();
+            int encoding = stream.getS32();
+
+            if (encoding < 0) {
+                if (readPseudoRect(stream, x, y, w, h, encoding)) {
+                    continue;
+                }
+                // LastRect: the rectangle count is just a placeholder
+                break;
+            }
+
+            RFBRectDecoder decoder = findDecoder(encoding);
+            if (decoder == null) {
+                throw new RFBException("unsupported encoding from server: "+encoding);
+            }
+            framebuffer.checkBounds(x, y, w, h);
+            // rectangles must land in order, so let any decoder with
+            // work in flight finish before another one writes.
+            for (RFBRectDecoder other : decoders) {
+                if (other != decoder) {
+                    other.flush(framebuffer);
+                }
+            }
+            decoder.decode(stream, framebuffer, x, y, w, h);
+            if (listener != null) {
+                listener.onFramebufferRect(x, y, w, h);
+            }
+        }
+        for (RFBRectDecoder decoder : decoders) {
+            decoder.flush(framebuffer);
+        }
+        if (listener != null) {
+            listener.onFramebufferUpdateComplete();
+        }
+    }
+
+    /**
+     * Apply a pseudo-encoded rectangle.  Returns false if it was
+     * LastRect, which ends the update.
+     */
+    private boolean readPseudoRect(RFBStream stream, int x, int y, int w, int h, int encoding) throws IOException, RFBException {
+        switch (encoding) {
+        case ENCODING_LAST_RECT:
+            return false;
+        case ENCODING_CURSOR:
+            // x and y are the hotspot
+            cursor.read(stream, x, y, w, h);
+            if (listener != null) {
+                listener.onCursor(cursor);
+            }
+            return true;
+        case ENCODING_DESKTOP_SIZE:
+            resize(w, h);
+            return true;
+        case ENCODING_EXTENDED_DESKTOP_SIZE:
+            // x is the reason for the change, and y is the status,
+            // which is non-zero if our own resize request failed.
+            int numScreens = stream.getU8();
+            stream.skip(3); // padding
+            stream.skip(16*numScreens); // screen layout, unused
+            if (y == 0) {
+                resize(w, h);
+            }
+            return true;
+        default:
+            throw new RFBException("unsupported pseudo-encoding from server: "+encoding);
+        }
+    }
+
+    /**
+     * Replace the framebuffer with one of the new size.
+     */
+    private void resize(int w, int h) throws IOException, RFBException {
+        checkDesktopSize(w, h);
+        if ((w == framebuffer.getWidth()) && (h == framebuffer.getHeight())) {
+            return;
+        }
+        // nothing may land in the old framebuffer after this.
+        for (RFBRectDecoder decoder : decoders) {
+            decoder.flush(framebuffer);
+        }
+        framebuffer = new RFBFramebuffer(w, h);
+        if (listener != null) {
+            listener.onDesktopSize(w, h);
+        }
+    }
+
+    /**
+     * Reject a desktop size that is empty, or too big to allocate a
+     * framebuffer for.
+     */
+    static void checkDesktopSize(int w, int h) throws RFBException {
+        if ((w <= 0) || (h <= 0) || ((long)w*h > MAX_DESKTOP_PIXELS)) {
+            throw new RFBException("bad desktop size from server: "+w+"x"+h);
+        }
+    }
+
+    private RFBRectDecoder findDecoder(int encoding) {
+        for (RFBRectDecoder decoder : decoders) {
+            if (decoder.getEncoding() == encoding) {
+                return decoder;
+            }
+        }
+        return null;
+    }
+
+    private void readColourMapEntries(RFBStream stream) throws IOException {
+        stream.skip(1); // padding
+        int first = stream.getU16();
+        int count = stream.getU16();
+        if (first+count > colourMap.length) {
+            int[] bigger = new int[first+count];
+            System.arraycopy(colourMap, 0, bigger, 0, colourMap.length);
+            colourMap = bigger;
+        }
+        for (int i=first; i<first+count; i++) {
+            // keep the high byte of each 16-bit component
+            int r = stream.getU16() >> 8;
+            int g = stream.getU16() >> 8;
+            int b = stream.getU16() >> 8;
+            colourMap[i] = (r << 16) | (g << 8) | b;
+        }
+    }
+
+    private void readServerCutText(RFBStream stream) throws IOException {
+        stream.skip(3); // padding
+        int length = stream.getS32();
+        if ((length < 0) || (length > MAX_CUT_TEXT)) {
+            // the length is unsigned, so it may be beyond 2GB.
+            long remaining = length & 0xFFFFFFFFL;
+            Log.w("Valence", "ignoring "+remaining+" bytes of cut text");
+            while (remaining > 0) {
+                int n = (int)Math.min(remaining, Integer.MAX_VALUE);
+                stream.skip(n);
+                remaining -= n;
+            }
+            return;
+        }
+        byte[] buffer = stream.read(length);
+        String text = new String(buffer, "ISO-8859-1");
+        if (listener != null) {
+            listener.onServerCutText(text);
+        }
+    }
+
+}
@@ -0,0 +1,780 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cafbit.valence.rfb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import android.graphics.Bitmap;
+
+/**
+ * Replays recorded server messages through RFBDecoder and reports the
+ * decoding throughput and the bytes allocated per FramebufferUpdate.
+ *
+ * Usage: RFBDecoderBenchmark [recording ...]
+ *
+ * Recordings are captured with RFBConnection.setRecorder().  With no
+ * arguments, a synthetic 2560x1440 desktop is encoded and replayed
+ * instead.  (The synthetic zlib streams use stored blocks, since the
+ * Deflater on our target can't sync-flush, so they exercise the
+ * decoding more than the inflater.)
+ *
+ * JPEG rectangles need android.graphics, so runTightJPEG() must be
+ * run on a device; main() skips it elsewhere.
+ *
+ * After each pass, the framebuffer is compared with the synthetic
+ * screen (except for lossy JPEG), or for recordings, with the first
+ * pass.  Exits with status 1 if they differ.
+ */
+public class RFBDecoderBenchmark {
+
+    private static final int WIDTH = 2560;
+    private static final int HEIGHT = 1440;
+    private static final int HD_WIDTH = 1920;
+    private static final int HD_HEIGHT = 1080;
+    // Tight rectangles are limited to 2048 pixels wide and 64K pixels
+    private static final int TIGHT_RECT_WIDTH = 480;
+    private static final int TIGHT_RECT_HEIGHT = 128;
+    // JPEG quality for each Tight quality level, as TigerVNC maps them
+    private static final int[] JPEG_QUALITY = {
+        15, 29, 41, 42, 62, 77, 79, 86, 92, 100
+    };
+    private static final int WARMUP_PASSES = 2;
+    private static final int PASSES = 5;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            int[] screen = syntheticScreen(WIDTH, HEIGHT);
+            run("synthetic Raw", synthetic(RFBDecoder.ENCODING_RAW, screen, WIDTH, HEIGHT), screen);
+            run("synthetic RRE", synthetic(RFBDecoder.ENCODING_RRE, screen, WIDTH, HEIGHT), screen);
+            run("synthetic Hextile", synthetic(RFBDecoder.ENCODING_HEXTILE, screen, WIDTH, HEIGHT), screen);
+            run("synthetic ZRLE", syntheticZRLE(screen, WIDTH, HEIGHT), screen);
+            run("synthetic Tight", syntheticTight(screen, WIDTH, HEIGHT), screen);
+            int[] hdScreen = syntheticScreen(HD_WIDTH, HD_HEIGHT);
+            run("1080p Tight lossless", syntheticTight(hdScreen, HD_WIDTH, HD_HEIGHT), hdScreen);
+            try {
+                runTightJPEG(0, 3, 6, 8, 9);
+            } catch (Throwable t) {
+                System.out.println("1080p Tight JPEG: skipped ("+t+"); run runTightJPEG() on a device");
+            }
+        } else {
+            for (String filename : args) {
+                run(filename, readFile(filename));
+            }
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////
+    // replay
+    //////////////////////////////////////////////////////////////////////
+
+    private static class Counter implements RFBDecoder.OnServerMessageListener {
+        long pixels = 0;
+        public void onFramebufferRect(int x, int y, int w, int h) {
+            pixels += (long)w * (long)h;
+        }
+        public void onFramebufferUpdateComplete() {}
+        public void onDesktopSize(int width, int height) {}
+        public void onCursor(RFBCursor cursor) {}
+        public void onBell() {}
+        public void onServerCutText(String text) {}
+    }
+
+    /**
+     * Replay a recording several times, and report on the passes after
+     * the warm-up.  Every pass must leave the same framebuffer behind.
+     */
+    public static void run(String name, byte[] recording) throws IOException, RFBException {
+        run(name, recording, null);
+    }
+
+    /**
+     * As above, and if "screen" isn't null, every pass must leave
+     * exactly those pixels in the framebuffer.
+     */
+    public static void run(String name, byte[] recording, int[] screen) throws IOException, RFBException {
+        int width = ((recording[0] & 0xFF) << 8) | (recording[1] & 0xFF);
+        int height = ((recording[2] & 0xFF) << 8) | (recording[3] & 0xFF);
+
+        // the measurement itself may allocate (e.g. boxing), so
+        // calibrate that out.
+        Util.getThreadAllocatedBytes();
+        long overhead = -Util.getThreadAllocatedBytes() + Util.getThreadAllocatedBytes();
+
+        long updates = 0;
+        long checksum = 0;
+        long nanos = 0;
+        long allocated = 0;
+        boolean allocationKnown = true;
+        Counter counter = new Counter();
+        for (int pass=0; pass<WARMUP_PASSES+PASSES; pass++) {
+            boolean measure = (pass >= WARMUP_PASSES);
+            InputStream in = new ByteArrayInputStream(recording, 4, recording.length-4);
+            RFBStream stream = new RFBStream(in, new ByteArrayOutputStream());
+            RFBFramebuffer fb = new RFBFramebuffer(width, height);
+            RFBDecoder decoder = new RFBDecoder(fb);
+            decoder.setOnServerMessageListener(measure ? counter : null);
+            while (true) {
+                long alloc0 = Util.getThreadAllocatedBytes();
+                long t0 = System.nanoTime();
+                int type;
+                try {
+                    type = decoder.processMessage(stream);
+                } catch (EOFException e) {
+                    break;
+                }
+                long t1 = System.nanoTime();
+                long alloc1 = Util.getThreadAllocatedBytes();
+                if (measure && (type == RFBDecoder.MSG_FRAMEBUFFER_UPDATE)) {
+                    updates++;
+                    nanos += t1 - t0;
+                    if ((alloc0 < 0) || (alloc1 < 0)) {
+                        allocationKnown = false;
+                    } else {
+                        allocated += alloc1 - alloc0 - overhead;
+                    }
+                }
+            }
+            decoder.close();
+
+            if (screen != null) {
+                verify(name, fb, screen);
+            }
+            long passChecksum = checksum(fb);
+            if ((pass > 0) && (passChecksum != checksum)) {
+                fail(name+": pass "+pass+" decoded a different framebuffer");
+            }
+            checksum = passChecksum;
+        }
+
+        double seconds = nanos / 1e9;
+        double megabytesIn = (double)(recording.length-4) * PASSES / 1e6;
+        double megabytesOut = (double)counter.pixels * 4 / 1e6;
+        System.out.printf(
+            "%s: %dx%d, %d updates, %.1f MB in, %.1f MB decoded in %.3f s: %.1f Mpixels/s, %.1f MB/s decoded, %.1f MB/s in\n",
+            name, width, height, updates/PASSES,
+            megabytesIn/PASSES, megabytesOut/PASSES, seconds/PASSES,
+            counter.pixels/seconds/1e6, megabytesOut/seconds, megabytesIn/seconds
+        );
+        if (allocationKnown && (updates > 0)) {
+            System.out.printf("%s: %.1f bytes allocated per update\n", name, (double)allocated/updates);
+        } else {
+            System.out.printf("%s: allocation counts are not available\n", name);
+        }
+        System.out.printf("%s: framebuffer checksum %016x%s\n", name, checksum,
+            (screen != null) ? ", verified" : "");
+    }
+
+    private static void verify(String name, RFBFramebuffer fb, int[] screen) {
+        int width = fb.getWidth();
+        for (int i=0; i<screen.length; i++) {
+            if ((fb.getPixel(i % width, i / width) & 0xFFFFFF) != screen[i]) {
+                fail(name+": wrong pixel at ("+(i % width)+","+(i / width)+")");
+            }
+        }
+    }
+
+    private static long checksum(RFBFramebuffer fb) {
+        long sum = 0;
+        int width = fb.getWidth();
+        int height = fb.getHeight();
+        for (int y=0; y<height; y++) {
+            for (int x=0; x<width; x++) {
+                sum = sum*31 + (fb.getPixel(x, y) & 0xFFFFFF);
+            }
+        }
+        return sum;
+    }
+
+    private static void fail(String message) {
+        System.out.println("FAILED: "+message);
+        System.exit(1);
+    }
+
+    /**
+     * Decode a full 1080p update of JPEG rectangles at each of the
+     * given Tight quality levels (0-9).  This needs a device.
+     */
+    public static void runTightJPEG(int... levels) throws IOException, RFBException {
+        int[] screen = syntheticScreen(HD_WIDTH, HD_HEIGHT);
+        for (int level : levels) {
+            run("1080p Tight JPEG level "+level+" (q="+JPEG_QUALITY[level]+")",
+                syntheticTightJPEG(screen, HD_WIDTH, HD_HEIGHT, JPEG_QUALITY[level]));
+        }
+    }
+
+    private static byte[] readFile(String filename) throws IOException {
+        FileInputStream in = new FileInputStream(filename);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[65536];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////
+    // synthetic data
+    //////////////////////////////////////////////////////////////////////
+
+    /**
+     * Draw something resembling a desktop: a solid background, a few
+     * windows full of two-colour "text", a gradient, and a photo-like
+     * area of noise.
+     */
+    static int[] syntheticScreen(int width, int height) {
+        int[] screen = new int[width*height];
+        int seed = 12345;
+        for (int y=0; y<height; y++) {
+            for (int x=0; x<width; x++) {
+                int pixel;
+                if ((x >= width/2) && (y >= height/2)) {
+                    // photo
+                    seed = seed*1103515245 + 12345;
+                    pixel = (seed >>> 8) & 0xFFFFFF;
+                } else if ((x >= width/2) && (y < height/4)) {
+                    // gradient
+                    pixel = ((x/4) & 0xFF) << 8 | ((y/4) & 0xFF);
+                } else if (((x/400) % 2 == 0) && ((y/300) % 2 == 0)) {
+                    // window with text
+                    boolean ink = ((y % 16) < 10) && (((x*7 + y*13) % 11) == 0);
+                    pixel = ink ? 0x000000 : 0xFFFFFF;
+                } else {
+                    pixel = 0x336699;
+                }
+                screen[y*width + x] = pixel;
+            }
+        }
+        return screen;
+    }
+
+    /**
+     * The rectangles of the synthetic session: the whole screen, then
+     * a series of smaller updates across it.
+     */
+    static int[][] syntheticRects(int width, int height) {
+        int[][] rects = new int[11][];
+        rects[0] = new int[] { 0, 0, width, height };
+        int w = width/4;
+        int h = height/4;
+        for (int i=1; i<rects.length; i++) {
+            rects[i] = new int[] { (i*w/2) % (width-w), (i*h/3) % (height-h), w, h };
+        }
+        return rects;
+    }
+
+    /**
+     * The rectangles of a full-screen Tight update, each within the
+     * Tight size limits.
+     */
+    static int[][] tightRects(int width, int height) {
+        int columns = (width + TIGHT_RECT_WIDTH - 1) / TIGHT_RECT_WIDTH;
+        int rows = (height + TIGHT_RECT_HEIGHT - 1) / TIGHT_RECT_HEIGHT;
+        int[][] rects = new int[columns*rows][];
+        int i = 0;
+        for (int y=0; y<height; y+=TIGHT_RECT_HEIGHT) {
+            for (int x=0; x<width; x+=TIGHT_RECT_WIDTH) {
+                rects[i++] = new int[] {
+                    x, y,
+                    Math.min(TIGHT_RECT_WIDTH, width-x),
+                    Math.min(TIGHT_RECT_HEIGHT, height-y)
+                };
+            }
+        }
+        return rects;
+    }
+
+    private static DataOutputStream startRecording(ByteArrayOutputStream bytes, int width, int height) throws IOException {
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(width);
+        out.writeShort(height);
+        return out;
+    }
+
+    private static void writeUpdateHeader(DataOutputStream out, int numRects) throws IOException {
+        out.writeByte(RFBDecoder.MSG_FRAMEBUFFER_UPDATE);
+        out.writeByte(0); // padding
+        out.writeShort(numRects); // number-of-rectangles
+    }
+
+    private static void writeRectHeader(DataOutputStream out, int[] rect, int encoding) throws IOException {
+        out.writeShort(rect[0]);
+        out.writeShort(rect[1]);
+        out.writeShort(rect[2]);
+        out.writeShort(rect[3]);
+        out.writeInt(encoding);
+    }
+
+    /**
+     * The synthetic session in one of the uncompressed encodings:
+     * Raw, RRE, or Hextile.
+     */
+    static byte[] synthetic(int encoding, int[] screen, int width, int height) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = startRecording(bytes, width, height);
+        for (int[] rect : syntheticRects(width, height)) {
+            writeUpdateHeader(out, 1);
+            writeRectHeader(out, rect, encoding);
+            int x = rect[0], y = rect[1], w = rect[2], h = rect[3];
+            switch (encoding) {
+            case RFBDecoder.ENCODING_RAW:
+                for (int row=y; row<y+h; row++) {
+                    for (int col=x; col<x+w; col++) {
+                        writePixel(out, screen[row*width + col]);
+                    }
+                }
+                break;
+            case RFBDecoder.ENCODING_RRE:
+                encodeRRE(out, screen, width, x, y, w, h);
+                break;
+            case RFBDecoder.ENCODING_HEXTILE:
+                encodeHextile(out, screen, width, x, y, w, h);
+                break;
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * RRE with the top-left pixel as the background, and each
+     * horizontal run of other colours as a subrectangle.
+     */
+    private static void encodeRRE(DataOutputStream out, int[] screen, int width, int x, int y, int w, int h) throws IOException {
+        int background = screen[y*width + x];
+        ByteArrayOutputStream subrects = new ByteArrayOutputStream();
+        DataOutputStream sub = new DataOutputStream(subrects);
+        int count = 0;
+        for (int row=0; row<h; row++) {
+            int offset = (y+row)*width + x;
+            for (int col=0; col<w; ) {
+                int run = runAt(screen, offset+col, offset+w);
+                int pixel = screen[offset+col];
+                if (pixel != background) {
+                    writePixel(sub, pixel);
+                    sub.writeShort(col);
+                    sub.writeShort(row);
+                    sub.writeShort(run);
+                    sub.writeShort(1);
+                    count++;
+                }
+                col += run;
+            }
+        }
+        out.writeInt(count);
+        writePixel(out, background);
+        subrects.writeTo(out);
+    }
+
+    /**
+     * Hextile: solid tiles are just a background, tiles with a handful
+     * of runs use coloured subrectangles, and the rest are raw.
+     */
+    private static void encodeHextile(DataOutputStream out, int[] screen, int width, int x, int y, int w, int h) throws IOException {
+        ByteArrayOutputStream subrects = new ByteArrayOutputStream();
+        DataOutputStream sub = new DataOutputStream(subrects);
+        for (int ty=y; ty<y+h; ty+=16) {
+            int th = Math.min(16, y+h-ty);
+            for (int tx=x; tx<x+w; tx+=16) {
+                int tw = Math.min(16, x+w-tx);
+                int background = screen[ty*width + tx];
+                subrects.reset();
+                int count = 0;
+                for (int row=0; (row<th) && (count <= 255); row++) {
+                    int offset = (ty+row)*width + tx;
+                    for (int col=0; col<tw; ) {
+                        int run = runAt(screen, offset+col, offset+tw);
+                        int pixel = screen[offset+col];
+                        if (pixel != background) {
+                            writePixel(sub, pixel);
+                            sub.writeByte((col << 4) | row);
+                            sub.writeByte(((run-1) << 4) | 0);
+                            count++;
+                        }
+                        col += run;
+                    }
+                }
+                if (count == 0) {
+                    out.writeByte(0x02); // background specified
+                    writePixel(out, background);
+                } else if ((count <= 255) && (subrects.size() < tw*th*4)) {
+                    out.writeByte(0x02 | 0x08 | 0x10);
+                    writePixel(out, background);
+                    out.writeByte(count);
+                    subrects.writeTo(out);
+                } else {
+                    out.writeByte(0x01); // raw
+                    for (int row=ty; row<ty+th; row++) {
+                        for (int col=tx; col<tx+tw; col++) {
+                            writePixel(out, screen[row*width + col]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void writePixel(OutputStream out, int pixel) throws IOException {
+        out.write(pixel & 0xFF);
+        out.write((pixel >> 8) & 0xFF);
+        out.write((pixel >> 16) & 0xFF);
+        out.write(0);
+    }
+
+    static byte[] syntheticZRLE(int[] screen, int width, int height) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = startRecording(bytes, width, height);
+        boolean first = true;
+        for (int[] rect : syntheticRects(width, height)) {
+            writeUpdateHeader(out, 1);
+            writeRectHeader(out, rect, RFBDecoder.ENCODING_ZRLE);
+            byte[] tiles = encodeZRLE(screen, width, rect[0], rect[1], rect[2], rect[3]);
+            byte[] zlib = storedZlib(tiles, first);
+            first = false;
+            out.writeInt(zlib.length);
+            out.write(zlib);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * One full-screen update in Tight: fill where the rectangle is
+     * solid, the palette filter for up to 256 colours, and otherwise
+     * alternately the copy and gradient filters.
+     */
+    static byte[] syntheticTight(int[] screen, int width, int height) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = startRecording(bytes, width, height);
+        boolean[] streamStarted = new boolean[4];
+        int[][] rects = tightRects(width, height);
+        writeUpdateHeader(out, rects.length);
+        int[] palette = new int[256];
+        boolean gradient = false;
+        for (int[] rect : rects) {
+            writeRectHeader(out, rect, RFBDecoder.ENCODING_TIGHT);
+            int x = rect[0], y = rect[1], w = rect[2], h = rect[3];
+
+            int colours = 0;
+            for (int row=y; (row<y+h) && (colours <= 256); row++) {
+                for (int col=x; (col<x+w) && (colours <= 256); col++) {
+                    int pixel = screen[row*width + col];
+                    if (indexOf(palette, Math.min(colours, 256), pixel) < 0) {
+                        if (colours < 256) {
+                            palette[colours] = pixel;
+                        }
+                        colours++;
+                    }
+                }
+            }
+
+            if (colours == 1) {
+                out.writeByte(0x80); // fill
+                writeTPixel(out, palette[0]);
+                continue;
+            }
+
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            int streamId;
+            if (colours <= 256) {
+                streamId = 1;
+                out.writeByte(0x40 | (streamId << 4)); // basic, explicit filter
+                out.writeByte(1); // palette
+                out.writeByte(colours-1);
+                for (int i=0; i<colours; i++) {
+                    writeTPixel(out, palette[i]);
+                }
+                for (int row=y; row<y+h; row++) {
+                    int b = 0;
+                    int nbits = 0;
+                    for (int col=x; col<x+w; col++) {
+                        int index = indexOf(palette, colours, screen[row*width + col]);
+                        if (colours == 2) {
+                            b = (b << 1) | index;
+                            if (++nbits == 8) {
+                                data.write(b);
+                                b = 0;
+                                nbits = 0;
+                            }
+                        } else {
+                            data.write(index);
+                        }
+                    }
+                    if (nbits > 0) {
+                        data.write(b << (8-nbits));
+                    }
+                }
+            } else if (! gradient) {
+                streamId = 0;
+                out.writeByte(streamId << 4); // basic, copy filter
+                for (int row=y; row<y+h; row++) {
+                    for (int col=x; col<x+w; col++) {
+                        writeTPixel(data, screen[row*width + col]);
+                    }
+                }
+                gradient = true;
+            } else {
+                streamId = 2;
+                out.writeByte(0x40 | (streamId << 4)); // basic, explicit filter
+                out.writeByte(2); // gradient
+                encodeGradient(data, screen, width, x, y, w, h);
+                gradient = false;
+            }
+
+            byte[] raw = data.toByteArray();
+            if (raw.length < 12) {
+                out.write(raw);
+            } else {
+                byte[] zlib = storedZlib(raw, ! streamStarted[streamId]);
+                streamStarted[streamId] = true;
+                writeCompactLength(out, zlib.length);
+                out.write(zlib);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void encodeGradient(ByteArrayOutputStream data, int[] screen, int width, int x, int y, int w, int h) {
+        for (int row=0; row<h; row++) {
+            for (int col=0; col<w; col++) {
+                int pixel = screen[(y+row)*width + x+col];
+                for (int c=0; c<3; c++) {
+                    int shift = 16 - 8*c;
+                    int left = (col > 0) ? (screen[(y+row)*width + x+col-1] >> shift) & 0xFF : 0;
+                    int up = (row > 0) ? (screen[(y+row-1)*width + x+col] >> shift) & 0xFF : 0;
+                    int upLeft = ((row > 0) && (col > 0)) ? (screen[(y+row-1)*width + x+col-1] >> shift) & 0xFF : 0;
+                    int predicted = Math.max(0, Math.min(255, left + up - upLeft));
+                    data.write((((pixel >> shift) & 0xFF) - predicted) & 0xFF);
+                }
+            }
+        }
+    }
+
+    /**
+     * One full-screen update of Tight JPEG rectangles.  This uses
+     * android.graphics to compress them.
+     */
+    static byte[] syntheticTightJPEG(int[] screen, int width, int height, int quality) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = startRecording(bytes, width, height);
+        int[][] rects = tightRects(width, height);
+        writeUpdateHeader(out, rects.length);
+        for (int[] rect : rects) {
+            writeRectHeader(out, rect, RFBDecoder.ENCODING_TIGHT);
+            int w = rect[2], h = rect[3];
+            int[] argb = new int[w*h];
+            for (int row=0; row<h; row++) {
+                for (int col=0; col<w; col++) {
+                    argb[row*w + col] = 0xFF000000 | screen[(rect[1]+row)*width + rect[0]+col];
+                }
+            }
+            Bitmap bitmap = Bitmap.createBitmap(argb, w, h, Bitmap.Config.ARGB_8888);
+            ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+            bitmap.compress(Bitmap.CompressFormat.JPEG, quality, jpeg);
+            bitmap.recycle();
+            out.writeByte(0x90); // JPEG
+            writeCompactLength(out, jpeg.size());
+            jpeg.writeTo(out);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeTPixel(OutputStream out, int pixel) throws IOException {
+        out.write((pixel >> 16) & 0xFF);
+        out.write((pixel >> 8) & 0xFF);
+        out.write(pixel & 0xFF);
+    }
+
+    private static void writeCompactLength(OutputStream out, int length) throws IOException {
+        int b = length & 0x7F;
+        if (length > 0x7F) {
+            out.write(b | 0x80);
+            b = (length >> 7) & 0x7F;
+            if (length > 0x3FFF) {
+                out.write(b | 0x80);
+                b = (length >> 14) & 0xFF;
+            }
+        }
+        out.write(b);
+    }
+
+    /**
+     * Wrap data in uncompressed ("stored") deflate blocks, which can be
+     * decoded as part of one continuous zlib stream.  The first
+     * rectangle carries the zlib header.
+     */
+    private static byte[] storedZlib(byte[] data, boolean header) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (header) {
+            out.write(0x78);
+            out.write(0x01);
+        }
+        for (int offset=0; offset<data.length; offset+=65535) {
+            int n = Math.min(65535, data.length-offset);
+            out.write(0x00); // BFINAL=0, BTYPE=stored
+            out.write(n & 0xFF);
+            out.write(n >> 8);
+            out.write(~n & 0xFF);
+            out.write((~n >> 8) & 0xFF);
+            out.write(data, offset, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] encodeZRLE(int[] screen, int width, int x, int y, int w, int h) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int[] tile = new int[64*64];
+        int[] palette = new int[128];
+        for (int ty=y; ty<y+h; ty+=64) {
+            int th = Math.min(64, y+h-ty);
+            for (int tx=x; tx<x+w; tx+=64) {
+                int tw = Math.min(64, x+w-tx);
+                int n = 0;
+                for (int row=0; row<th; row++) {
+                    for (int col=0; col<tw; col++) {
+                        tile[n++] = screen[(ty+row)*width + tx+col];
+                    }
+                }
+                encodeZRLETile(out, tile, tw, th, palette);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void encodeZRLETile(ByteArrayOutputStream out, int[] tile, int tw, int th, int[] palette) {
+        int n = tw*th;
+        int colours = 0;
+        int runs = 0;
+        for (int i=0; i<n; i++) {
+            if ((i == 0) || (tile[i] != tile[i-1])) {
+                runs++;
+            }
+            if (colours <= 127) {
+                int index = indexOf(palette, colours, tile[i]);
+                if (index < 0) {
+                    if (colours < 127) {
+                        palette[colours] = tile[i];
+                    }
+                    colours++;
+                }
+            }
+        }
+
+        if (colours == 1) {
+            out.write(1);
+            writeCPixel(out, tile[0]);
+        } else if (colours <= 16) {
+            out.write(colours);
+            for (int i=0; i<colours; i++) {
+                writeCPixel(out, palette[i]);
+            }
+            int bits = (colours == 2) ? 1 : ((colours <= 4) ? 2 : 4);
+            for (int row=0; row<th; row++) {
+                int b = 0;
+                int nbits = 0;
+                for (int col=0; col<tw; col++) {
+                    b = (b << bits) | indexOf(palette, colours, tile[row*tw+col]);
+                    nbits += bits;
+                    if (nbits == 8) {
+                        out.write(b);
+                        b = 0;
+                        nbits = 0;
+                    }
+                }
+                if (nbits > 0) {
+                    out.write(b << (8-nbits));
+                }
+            }
+        } else if ((colours <= 127) && (runs < n/2)) {
+            out.write(128+colours);
+            for (int i=0; i<colours; i++) {
+                writeCPixel(out, palette[i]);
+            }
+            for (int i=0; i<n; ) {
+                int run = runAt(tile, i, n);
+                int index = indexOf(palette, colours, tile[i]);
+                if (run == 1) {
+                    out.write(index);
+                } else {
+                    out.write(index | 0x80);
+                    writeRunLength(out, run);
+                }
+                i += run;
+            }
+        } else if (runs < n/2) {
+            out.write(128);
+            for (int i=0; i<n; ) {
+                int run = runAt(tile, i, n);
+                writeCPixel(out, tile[i]);
+                writeRunLength(out, run);
+                i += run;
+            }
+        } else {
+            out.write(0);
+            for (int i=0; i<n; i++) {
+                writeCPixel(out, tile[i]);
+            }
+        }
+    }
+
+    private static int indexOf(int[] palette, int size, int pixel) {
+        for (int i=0; i<size; i++) {
+            if (palette[i] == pixel) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int runAt(int[] tile, int i, int n) {
+        int run = 1;
+        while ((i+run < n) && (tile[i+run] == tile[i])) {
+            run++;
+        }
+        return run;
+    }
+
+    private static void writeRunLength(ByteArrayOutputStream out, int run) {
+        run--;
+        while (run >= 255) {
+            out.write(255);
+            run -= 255;
+        }
+        out.write(run);
+    }
+
+    private static void writeCPixel(ByteArrayOutputStream out, int pixel) {
+        out.write(pixel & 0xFF);
+        out.write((pixel >> 8) & 0xFF);
+        out.write((pixel >> 16) & 0xFF);
+    }
+
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cafbit.valence.rfb;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * A copy of the remote screen, kept off the Java heap in a direct
+ * buffer so that a full-size desktop doesn't count against the
+ * application's heap limit.  Pixels are stored row-major, one
+ * little-endian int (0x00RRGGBB) per pixel, in RFBPixelFormat.DEFAULT.
+ *
+ * The framebuffer is written by the decoders on the receiving thread,
+ * a row at a time as the data arrives.  A reader on another thread may
+ * see a rectangle half-written; listeners are told when each one is
+ * complete.
+ */
+public class RFBFramebuffer {
+
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private int width;
+    private int height;
+    private ByteBuffer buffer;
+    private IntBuffer pixels;
+    // views reused by the decoders, so writing rows doesn't allocate
+    private ByteBuffer rowView;
+    // the reader's own view, so its position doesn't race the decoders'
+    private IntBuffer readView;
+    private int[] scratchRow;
+
+    public RFBFramebuffer(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.buffer = ByteBuffer.allocateDirect(width*height*BYTES_PER_PIXEL);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        this.pixels = buffer.asIntBuffer();
+        this.rowView = buffer.duplicate();
+        rowView.order(ByteOrder.LITTLE_ENDIAN);
+        this.readView = pixels.duplicate();
+        this.scratchRow = new int[width];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Return the raw pixel memory.  Don't change its position or limit.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Return the pixels as ints, indexed by (y*width + x).
+     */
+    public IntBuffer getPixels() {
+        return pixels;
+    }
+
+    public int getPixel(int x, int y) {
+        return pixels.get(y*width + x);
+    }
+
+    /**
+     * Copy a rectangle of the screen into "dst" as opaque ARGB colors,
+     * "stride" ints per row.  This is for a single reader (e.g. the UI
+     * thread), which may run concurrently with the decoders.
+     */
+    public void readRect(int x, int y, int w, int h, int[] dst, int offset, int stride) {
+        for (int row=0; row<h; row++) {
+            int start = offset + row*stride;
+            readView.position((y+row)*width + x);
+            readView.get(dst, start, w);
+            for (int i=start; i<start+w; i++) {
+                dst[i] |= 0xFF000000;
+            }
+        }
+    }
+
+    /**
+     * Throw an RFBException if the rectangle doesn't fit in the
+     * framebuffer.  A misbehaving server shouldn't be able to make us
+     * scribble outside the buffer.
+     */
+    void checkBounds(int x, int y, int w, int h) throws RFBException {
+        if ((x < 0) || (y < 0) || (w < 0) || (h < 0) ||
+            (x+w > width) || (y+h > height)) {
+            throw new RFBException("rectangle "+w+"x"+h+"+"+x+"+"+y+
+                " is outside the "+width+"x"+height+" framebuffer");
+        }
+    }
+
+    /**
+     * Return a byte view of "w" pixels of row "y", starting at "x".
+     * The view is shared, and is only valid until the next call.
+     */
+    ByteBuffer row(int x, int y, int w) {
+        int offset = (y*width + x) * BYTES_PER_PIXEL;
+        rowView.limit(offset + w*BYTES_PER_PIXEL);
+        rowView.position(offset);
+        return rowView;
+    }
+
+    void fillRect(int x, int y, int w, int h, int pixel) {
+        Arrays.fill(scratchRow, 0, w, pixel);
+        for (int row=y; row<y+h; row++) {
+            pixels.position(row*width + x);
+            pixels.put(scratchRow, 0, w);
+        }
+    }
+
+    /**
+     * Store "w" pixels from "src" starting at (x,y).
+     */
+    void putRow(int x, int y, int[] src, int offset, int w) {
+        pixels.position(y*width + x);
+        pixels.put(src, offset, w);
+    }
+
+    /**
+     * Copy a rectangle from (srcX,srcY) to (x,y).  The regions may
+     * overlap: rows are visited in the order that doesn't overwrite
+     * source rows before they are read, and each row goes through a
+     * scratch array so horizontal overlap is safe too.
+     */
+    void copyRect(int srcX, int srcY, int x, int y, int w, int h) {
+        if (y > srcY) {
+            // moving down -- start at the bottom
+            for (int row=h-1; row>=0; row--) {
+                copyRow(srcX, srcY+row, x, y+row, w);
+            }
+        } else {
+            for (int row=0; row<h; row++) {
+                copyRow(srcX, srcY+row, x, y+row, w);
+            }
+        }
+    }
+
+    private void copyRow(int srcX, int srcY, int x, int y, int w) {
+        pixels.position(srcY*width + srcX);
+        pixels.get(scratchRow, 0, w);
+        pixels.position(y*width + x);
+        pixels.put(scratchRow, 0, w);
+    }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cafbit.valence.rfb;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Hextile encoding: the rectangle is divided into 16x16 tiles, each
+ * either raw or a background colour plus subrectangles.  The
+ * background and foreground colours carry over from one tile to the
+ * next, so they are kept in fields.
+ *
+ * Raw tiles are streamed straight into the framebuffer, as are tiles
+ * which are only a background.  Otherwise the tile is painted into a
+ * scratch array with bulk fills, then stored a row at a time.
+ */
+class RFBHextileDecoder extends RFBRectDecoder {
+
+    private static final int TILE_SIZE = 16;
+    private static final int RAW = 0x01;
+    private static final int BACKGROUND_SPECIFIED = 0x02;
+    private static final int FOREGROUND_SPECIFIED = 0x04;
+    private static final int ANY_SUBRECTS = 0x08;
+    private static final int SUBRECTS_COLOURED = 0x10;
+
+    private int background = 0;
+    private int foreground = 0;
+    private int[] tile = new int[TILE_SIZE*TILE_SIZE];
+
+    @Override
+    public int getEncoding() {
+        return RFBDecoder.ENCODING_HEXTILE;
+    }
+
+    @Override
+    void decode(RFBStream stream, RFBFramebuffer fb, int x, int y, int w, int h) throws IOException, RFBException {
+        for (int ty=y; ty<y+h; ty+=TILE_SIZE) {
+            int th = Math.min(TILE_SIZE, y+h-ty);
+            for (int tx=x; tx<x+w; tx+=TILE_SIZE) {
+                int tw = Math.min(TILE_SIZE, x+w-tx);
+                decodeTile(stream, fb, tx, ty, tw, th);
+            }
+        }
+    }
+
+    private void decodeTile(RFBStream stream, RFBFramebuffer fb, int tx, int ty, int tw, int th) throws IOException, RFBException {
+        int subencoding = stream.getU8();
+        if ((subencoding & RAW) != 0) {
+            for (int row=0; row<th; row++) {
+                stream.readInto(fb.row(tx, ty+row, tw));
+            }
+            return;
+        }
+        if ((subencoding & BACKGROUND_SPECIFIED) != 0) {
+            background = stream.getS32LE();
+        }
+        if ((subencoding & FOREGROUND_SPECIFIED) != 0) {
+            foreground = stream.getS32LE();
+        }
+        if ((subencoding & ANY_SUBRECTS) == 0) {
+            fb.fillRect(tx, ty, tw, th, background);
+            return;
+        }
+
+        Arrays.fill(tile, 0, tw*th, background);
+        boolean coloured = ((subencoding & SUBRECTS_COLOURED) != 0);
+        int numSubrects = stream.getU8();
+        for (int i=0; i<numSubrects; i++) {
+            int pixel = coloured ? stream.getS32LE() : foreground;
+            int xy = stream.getU8();
+            int wh = stream.getU8();
+            int sx = xy >> 4;
+            int sy = xy & 0x0F;
+            int sw = (wh >> 4) + 1;
+            int sh = (wh & 0x0F) + 1;
+            if ((sx+sw > tw) || (sy+sh > th)) {
+                throw new RFBException("Hextile subrectangle is outside its tile");
+            }
+            for (int row=sy; row<sy+sh; row++) {
+                int offset = row*tw + sx;
+                Arrays.fill(tile, offset, offset+sw, pixel);
+            }
+        }
+        for (int row=0; row<th; row++) {
+            fb.putRow(tx, ty+row, tile, row*tw, tw);
+        }
+    }
+
+}
@@ -86,4 +86,27 @@ public class RFBKeyEvent implements RFBEvent {
         this.modifier = modifier;
     }
 
+    /**
+     * Resolve the keysym for this event, or return 0 if there is none.
+     */
+    public int getKeysym() {
+        if (special != null) {
+            return special.keysym;
+        } else if (ch != 0) {
+            return KeyTranslator.translate(ch);
+        } else {
+            return KeyTranslator.translate(keyEvent);
+        }
+    }
+
+    /**
+     * Return the modifier's keysym, or 0 if there is no modifier.
+     */
+    public int getModifierKeysym() {
+        if (modifier == null) {
+            return 0;
+        }
+        return modifier.keysym;
+    }
+
 }
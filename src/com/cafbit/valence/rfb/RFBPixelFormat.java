@@ -0,0 +1,70 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cafbit.valence.rfb;
+
+/**
+ * An RFB PIXEL_FORMAT structure.  We only decode one format: 32 bits
+ * per pixel, little-endian, true colour, with 8 bits each of red,
+ * green and blue.  Pixels in this format land in memory as B,G,R,X,
+ * which means each one can be read from a little-endian IntBuffer as
+ * 0x00RRGGBB -- the same layout Android's ARGB_8888 uses, minus alpha.
+ * Raw rectangles can therefore be copied straight into the
+ * framebuffer without any per-pixel conversion.
+ */
+public class RFBPixelFormat {
+
+    public static final RFBPixelFormat DEFAULT = new RFBPixelFormat();
+
+    public final int bitsPerPixel = 32;
+    public final int depth = 24;
+    public final boolean bigEndian = false;
+    public final boolean trueColour = true;
+    public final int redMax = 255;
+    public final int greenMax = 255;
+    public final int blueMax = 255;
+    public final int redShift = 16;
+    public final int greenShift = 8;
+    public final int blueShift = 0;
+
+    private RFBPixelFormat() {
+    }
+
+    public int getBytesPerPixel() {
+        return bitsPerPixel / 8;
+    }
+
+    /**
+     * Return the 16-byte PIXEL_FORMAT structure.
+     */
+    byte[] getBytes() {
+        return new byte[] {
+            (byte)bitsPerPixel,
+            (byte)depth,
+            (byte)(bigEndian ? 1 : 0),
+            (byte)(trueColour ? 1 : 0),
+            (byte)(redMax >> 8), (byte)redMax,
+            (byte)(greenMax >> 8), (byte)greenMax,
+            (byte)(blueMax >> 8), (byte)blueMax,
+            (byte)redShift,
+            (byte)greenShift,
+            (byte)blueShift,
+            0, 0, 0 // padding
+        };
+    }
+
+}
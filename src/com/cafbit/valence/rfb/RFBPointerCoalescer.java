@@ -0,0 +1,102 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cafbit.valence.rfb;
+
+import java.io.IOException;
+
+/**
+ * Merges consecutive pointer moves into a single absolute position
+ * update per batch flush.  A high-rate touchscreen produces many
+ * intermediate positions within one burst, and the server would just
+ * overwrite each of them with the next, so only the last one needs to
+ * go on the wire.
+ *
+ * Only moves which keep the button mask unchanged are merged.  Button
+ * transitions are always written as-is, and anything else written to
+ * the stream (scroll clicks, keys) must call flush() first so the
+ * pending position goes out in the right order.  Outside of a batch,
+ * events pass straight through.
+ */
+class RFBPointerCoalescer {
+
+    private RFBStream stream;
+    private boolean pending = false;
+    private byte pendingButtons;
+    private int pendingX;
+    private int pendingY;
+    private boolean lastKnown = false;
+    private byte lastButtons;
+    private long coalesced = 0;
+
+    RFBPointerCoalescer(RFBStream stream) {
+        this.stream = stream;
+    }
+
+    void pointerEvent(byte buttons, int x, int y) throws IOException {
+        if (pending) {
+            if (buttons == pendingButtons) {
+                // replace the pending position
+                pendingX = x;
+                pendingY = y;
+                coalesced++;
+                return;
+            }
+            flush();
+        }
+        if (lastKnown && (buttons == lastButtons) && stream.getWriter().isBatching()) {
+            pending = true;
+            pendingButtons = buttons;
+            pendingX = x;
+            pendingY = y;
+            return;
+        }
+        write(buttons, x, y);
+    }
+
+    /**
+     * Write any pending position to the stream.
+     */
+    void flush() throws IOException {
+        if (pending) {
+            pending = false;
+            write(pendingButtons, pendingX, pendingY);
+        }
+    }
+
+    /**
+     * Note the button mask left in effect by an event which was
+     * written directly to the stream.
+     */
+    void setButtons(byte buttons) {
+        lastKnown = true;
+        lastButtons = buttons;
+    }
+
+    /**
+     * Return the number of pointer events dropped by coalescing.
+     */
+    long getCoalesced() {
+        return coalesced;
+    }
+
+    private void write(byte buttons, int x, int y) throws IOException {
+        stream.sendPointerEvent(buttons, x, y);
+        setButtons(buttons);
+    }
+
+}
@@ -27,4 +27,6 @@ public class RFBPointerEvent implements RFBEvent {
     public boolean button2 = false;
     public float sx = 0.0f;
     public float sy = 0.0f;
+    // the fingers lifted off a scroll, which may continue as a fling
+    public boolean fling = false;
 }
\ No newline at end of file
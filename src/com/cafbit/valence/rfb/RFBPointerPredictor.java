@@ -0,0 +1,225 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cafbit.valence.rfb;
+
+/**
+ * Extrapolates the pointer ahead of the real touch samples, to hide the
+ * latency between the finger and the server's screen.
+ *
+ * Each movement adds a sample of the true pointer position.  A
+ * quadratic is fitted by least squares to the samples from the last
+ * HISTORY_TIME milliseconds, which gives the current velocity and
+ * acceleration, and from those the position "horizon" milliseconds
+ * ahead is extrapolated.  A deceleration is never extrapolated past the
+ * point where the pointer would stop.  The offset actually applied only
+ * moves part of the way towards each new prediction, so when the finger
+ * does something unexpected the cursor converges on it instead of
+ * jumping.
+ *
+ * Once the movement stops, settle() glides the offset back to zero,
+ * i.e. to the true position.
+ *
+ * Times are in milliseconds.  This is only used from one thread.
+ */
+class RFBPointerPredictor {
+
+    static final int MAX_SAMPLES = 8;
+    static final long HISTORY_TIME = 100;
+    // with no movement for this long, start settling...
+    static final long SETTLE_DELAY = 50;
+    // ...in steps this far apart
+    static final long SETTLE_INTERVAL = 10;
+    // the share of the way to a new prediction taken at each sample
+    private static final float CORRECTION = 0.5f;
+    // the share of the offset kept at each settling step
+    private static final float SETTLE = 0.5f;
+    private static final float MIN_OFFSET = 0.5f; // pixels
+    private static final float MAX_OFFSET = 200.0f; // pixels
+
+    // samples, in a ring ending at "newest"
+    private long[] t = new long[MAX_SAMPLES];
+    private float[] x = new float[MAX_SAMPLES];
+    private float[] y = new float[MAX_SAMPLES];
+    private int count = 0;
+    private int newest = 0;
+    // event time of the newest sample (the sum of the dt's)
+    private long eventTime = 0;
+    // clock time of the newest sample, and of the last settling step
+    private long sampleTime = 0;
+    private long settleTime = 0;
+
+    private float offsetX = 0.0f, offsetY = 0.0f;
+    // fitted velocity (pixels/ms) and half the acceleration
+    private float vx, vy, hax, hay;
+
+    /**
+     * Add a sample of the true position, "dt" milliseconds of event
+     * time after the previous one, and received at clock time "time".
+     */
+    void addSample(long dt, float px, float py, long time) {
+        if ((dt <= 0) || (dt > HISTORY_TIME)) {
+            // not a continuation of the previous movement
+            count = 0;
+        } else {
+            eventTime += dt;
+        }
+        newest = (newest + 1) % MAX_SAMPLES;
+        t[newest] = eventTime;
+        x[newest] = px;
+        y[newest] = py;
+        if (count < MAX_SAMPLES) {
+            count++;
+        }
+        sampleTime = time;
+    }
+
+    /**
+     * Move the offset towards the position predicted "horizon"
+     * milliseconds after the newest sample.
+     */
+    void predict(float horizon) {
+        fit();
+        float targetX = extrapolate(vx, hax, horizon);
+        float targetY = extrapolate(vy, hay, horizon);
+        offsetX += (targetX - offsetX) * CORRECTION;
+        offsetY += (targetY - offsetY) * CORRECTION;
+        float d = (float)Math.sqrt(offsetX*offsetX + offsetY*offsetY);
+        if (d > MAX_OFFSET) {
+            offsetX *= MAX_OFFSET / d;
+            offsetY *= MAX_OFFSET / d;
+        }
+    }
+
+    /**
+     * Fit p(s) = p0 + v*s + ha*s^2 to the recent samples, where s is
+     * the time relative to the newest one.  With too few samples for a
+     * quadratic, fit a line; with one sample, there's no motion.
+     */
+    private void fit() {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0, s4 = 0;
+        double bx0 = 0, bx1 = 0, bx2 = 0;
+        double by0 = 0, by1 = 0, by2 = 0;
+        int n = 0;
+        for (int i=0; i<count; i++) {
+            int j = (newest - i + MAX_SAMPLES) % MAX_SAMPLES;
+            double s = t[j] - eventTime;
+            if (s < -HISTORY_TIME) {
+                break;
+            }
+            // positions relative to the newest, to keep the sums small
+            double px = x[j] - x[newest];
+            double py = y[j] - y[newest];
+            double ss = s*s;
+            s0 += 1;
+            s1 += s;
+            s2 += ss;
+            s3 += ss*s;
+            s4 += ss*ss;
+            bx0 += px;
+            bx1 += px*s;
+            bx2 += px*ss;
+            by0 += py;
+            by1 += py*s;
+            by2 += py*ss;
+            n++;
+        }
+        vx = vy = hax = hay = 0.0f;
+        if (n >= 3) {
+            // solve the normal equations by Cramer's rule
+            double det = s0*(s2*s4-s3*s3) - s1*(s1*s4-s2*s3) + s2*(s1*s3-s2*s2);
+            if (Math.abs(det) > 1e-6 * s4 * s4) {
+                vx = (float)((s0*(bx1*s4-s3*bx2) - bx0*(s1*s4-s2*s3) + s2*(s1*bx2-bx1*s2)) / det);
+                hax = (float)((s0*(s2*bx2-bx1*s3) - s1*(s1*bx2-bx1*s2) + bx0*(s1*s3-s2*s2)) / det);
+                vy = (float)((s0*(by1*s4-s3*by2) - by0*(s1*s4-s2*s3) + s2*(s1*by2-by1*s2)) / det);
+                hay = (float)((s0*(s2*by2-by1*s3) - s1*(s1*by2-by1*s2) + by0*(s1*s3-s2*s2)) / det);
+                return;
+            }
+        }
+        if (n >= 2) {
+            double det = s0*s2 - s1*s1;
+            if (det > 0) {
+                vx = (float)((s0*bx1 - s1*bx0) / det);
+                vy = (float)((s0*by1 - s1*by0) / det);
+            }
+        }
+    }
+
+    /**
+     * Return the displacement after "h" milliseconds at velocity "v",
+     * with half-acceleration "ha" -- but no further than where a
+     * deceleration would bring the pointer to a stop.
+     */
+    private static float extrapolate(float v, float ha, float h) {
+        if (v * ha < 0.0f) {
+            float stop = -v / (2.0f * ha);
+            if (stop < h) {
+                h = stop;
+            }
+        }
+        return v*h + ha*h*h;
+    }
+
+    float getOffsetX() {
+        return offsetX;
+    }
+    float getOffsetY() {
+        return offsetY;
+    }
+
+    boolean hasOffset() {
+        return (offsetX != 0.0f) || (offsetY != 0.0f);
+    }
+
+    /**
+     * Return how long after clock time "time" settle() should be
+     * called, or -1 if there's no offset to settle.
+     */
+    long getSettleDelay(long time) {
+        if (! hasOffset()) {
+            return -1;
+        }
+        long due = Math.max(sampleTime + SETTLE_DELAY, settleTime + SETTLE_INTERVAL);
+        return Math.max(0, due - time);
+    }
+
+    /**
+     * Take one step of bringing the offset back to zero, since the
+     * movement has stopped.
+     */
+    void settle(long time) {
+        count = 0;
+        offsetX *= SETTLE;
+        offsetY *= SETTLE;
+        if ((Math.abs(offsetX) < MIN_OFFSET) && (Math.abs(offsetY) < MIN_OFFSET)) {
+            offsetX = 0.0f;
+            offsetY = 0.0f;
+        }
+        settleTime = time;
+    }
+
+    /**
+     * Forget the movement, and drop the offset at once.
+     */
+    void reset() {
+        count = 0;
+        offsetX = 0.0f;
+        offsetY = 0.0f;
+    }
+
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cafbit.valence.rfb;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Replays pointer traces through RFBPointerPredictor, and reports the
+ * mean distance between where the server's cursor is and where the
+ * finger is, with and without prediction, for several round trip
+ * times.
+ *
+ * Usage: RFBPointerPredictorBenchmark [trace ...]
+ *
+ * A trace has one sample of the true pointer position per line:
+ * "time x y", in milliseconds and screen pixels.  The samples are
+ * assumed to be the ground truth, linearly interpolated in between.
+ * With no arguments, synthetic traces (circles, flicks, zig-zags, and
+ * stop-and-go) sampled at about 60Hz are replayed instead.
+ *
+ * Each sample is sent when it's taken, reaches the server half a round
+ * trip later, and stays on the screen until the next one arrives; the
+ * error is measured every millisecond.  Settling is simulated as the
+ * sending thread would do it.
+ */
+public class RFBPointerPredictorBenchmark {
+
+    private static final int[] ROUND_TRIP_TIMES = { 30, 50, 80 }; // milliseconds
+    private static final int FRAME_TIME = 16;
+    private static final int FRAME_JITTER = 3;
+
+    /**
+     * A pointer trajectory, as the ground truth.
+     */
+    private static abstract class Trace {
+        String name;
+        long duration;
+        Trace(String name, long duration) {
+            this.name = name;
+            this.duration = duration;
+        }
+        abstract float x(double t);
+        abstract float y(double t);
+        // whether the finger is moving (and so producing samples)
+        boolean moving(double t) {
+            return true;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<Trace> traces = new ArrayList<Trace>();
+        if (args.length == 0) {
+            traces.add(new Trace("circle", 3000) {
+                float x(double t) { return 500.0f + (float)(300.0 * Math.cos(t * 2 * Math.PI / 1500.0)); }
+                float y(double t) { return 500.0f + (float)(300.0 * Math.sin(t * 2 * Math.PI / 1500.0)); }
+            });
+            traces.add(new Trace("flicks", 3200) {
+                // eased strokes back and forth, 400ms each
+                float x(double t) { return 200.0f + (float)(600.0 * (1 - Math.cos(t * Math.PI / 400.0)) / 2); }
+                float y(double t) { return 400.0f + (float)(100.0 * Math.sin(t * Math.PI / 1600.0)); }
+            });
+            traces.add(new Trace("zig-zag", 3000) {
+                // constant speed with abrupt reversals every 300ms
+                float x(double t) { return 200.0f + (float)(1.5 * triangle(t, 300.0)); }
+                float y(double t) { return 300.0f + (float)(0.5 * t / 3.0); }
+            });
+            traces.add(new Trace("stop-and-go", 3000) {
+                // 400ms eased strokes separated by 350ms pauses
+                float x(double t) { return 200.0f + 500.0f * stroke(t); }
+                float y(double t) { return 300.0f + 150.0f * stroke(t); }
+                boolean moving(double t) { return (t % 750.0) < 400.0; }
+                private float stroke(double t) {
+                    double cycle = Math.floor(t / 750.0);
+                    double phase = Math.min(t % 750.0, 400.0) / 400.0;
+                    return (float)(cycle + (1 - Math.cos(phase * Math.PI)) / 2);
+                }
+            });
+        } else {
+            for (String filename : args) {
+                traces.add(readTrace(filename));
+            }
+        }
+
+        System.out.printf("%-14s %5s %12s %12s %8s\n", "trace", "rtt", "unpredicted", "predicted", "gain");
+        for (Trace trace : traces) {
+            for (int rtt : ROUND_TRIP_TIMES) {
+                float unpredicted = meanError(trace, rtt, false);
+                float predicted = meanError(trace, rtt, true);
+                System.out.printf("%-14s %3dms %10.2fpx %10.2fpx %7.1f%%\n",
+                    trace.name, rtt, unpredicted, predicted,
+                    100.0f * (unpredicted - predicted) / unpredicted
+                );
+            }
+        }
+    }
+
+    private static double triangle(double t, double period) {
+        double phase = t % (2 * period);
+        return (phase < period) ? phase : (2 * period - phase);
+    }
+
+    /**
+     * Return the mean distance between the server's cursor and the
+     * finger.
+     */
+    private static float meanError(Trace trace, int rtt, boolean predict) {
+        RFBPointerPredictor predictor = new RFBPointerPredictor();
+        float horizon = Math.min(rtt / 2.0f, RFBConnection.MAX_PREDICTION_HORIZON);
+        long latency = rtt / 2;
+        Random random = new Random(1);
+        int end = (int)trace.duration + 200;
+
+        // what has been sent: times, and positions
+        float[] sentX = new float[end + 1];
+        float[] sentY = new float[end + 1];
+        boolean[] sent = new boolean[end + 1];
+
+        long nextSample = 0;
+        long lastSample = 0;
+        for (long t=0; t<=end; t++) {
+            if ((t == nextSample) && (t <= trace.duration) && trace.moving(t)) {
+                float x = trace.x(t);
+                float y = trace.y(t);
+                if (predict) {
+                    predictor.addSample(t - lastSample, x, y, t);
+                    predictor.predict(horizon);
+                }
+                sentX[(int)t] = x + predictor.getOffsetX();
+                sentY[(int)t] = y + predictor.getOffsetY();
+                sent[(int)t] = true;
+                lastSample = t;
+            } else if (predictor.getSettleDelay(t) == 0) {
+                predictor.settle(t);
+                sentX[(int)t] = trace.x(Math.min(lastSample, trace.duration)) + predictor.getOffsetX();
+                sentY[(int)t] = trace.y(Math.min(lastSample, trace.duration)) + predictor.getOffsetY();
+                sent[(int)t] = true;
+            }
+            if (t == nextSample) {
+                nextSample = t + FRAME_TIME - FRAME_JITTER + random.nextInt(2*FRAME_JITTER + 1);
+            }
+        }
+
+        // compare what's on the server's screen with the finger
+        double total = 0.0;
+        int n = 0;
+        float screenX = Float.NaN, screenY = Float.NaN;
+        for (int t=0; t<=end; t++) {
+            int arrived = (int)(t - latency);
+            if ((arrived >= 0) && sent[arrived]) {
+                screenX = sentX[arrived];
+                screenY = sentY[arrived];
+            }
+            if (Float.isNaN(screenX)) {
+                continue;
+            }
+            double finger = Math.min(t, trace.duration);
+            double dx = trace.x(finger) - screenX;
+            double dy = trace.y(finger) - screenY;
+            total += Math.sqrt(dx*dx + dy*dy);
+            n++;
+        }
+        return (float)(total / n);
+    }
+
+    private static Trace readTrace(String filename) throws IOException {
+        final List<float[]> samples = new ArrayList<float[]>();
+        BufferedReader reader = new BufferedReader(new FileReader(filename));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split("\\s+");
+                if ((fields.length < 3) || fields[0].startsWith("#")) {
+                    continue;
+                }
+                samples.add(new float[] {
+                    Float.parseFloat(fields[0]),
+                    Float.parseFloat(fields[1]),
+                    Float.parseFloat(fields[2])
+                });
+            }
+        } finally {
+            reader.close();
+        }
+        if (samples.isEmpty()) {
+            throw new IOException("empty trace: "+filename);
+        }
+        final float start = samples.get(0)[0];
+        long duration = (long)(samples.get(samples.size()-1)[0] - start);
+        return new Trace(filename, duration) {
+            float x(double t) { return interpolate(t, 1); }
+            float y(double t) { return interpolate(t, 2); }
+            private float interpolate(double t, int field) {
+                t += start;
+                int i = 1;
+                while ((i < samples.size()-1) && (samples.get(i)[0] < t)) {
+                    i++;
+                }
+                float[] a = samples.get(i-1);
+                float[] b = samples.get(Math.min(i, samples.size()-1));
+                if (b[0] <= a[0]) {
+                    return b[field];
+                }
+                double f = Math.max(0.0, Math.min(1.0, (t - a[0]) / (b[0] - a[0])));
+                return (float)(a[field] + f * (b[field] - a[field]));
+            }
+        };
+    }
+
+}
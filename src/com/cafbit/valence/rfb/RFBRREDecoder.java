@@ -0,0 +1,54 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cafbit.valence.rfb;
+
+import java.io.IOException;
+
+/**
+ * RRE encoding: a background colour, followed by a list of solid
+ * subrectangles, each of which is filled straight into the
+ * framebuffer a row at a time.
+ */
+class RFBRREDecoder extends RFBRectDecoder {
+
+    @Override
+    public int getEncoding() {
+        return RFBDecoder.ENCODING_RRE;
+    }
+
+    @Override
+    void decode(RFBStream stream, RFBFramebuffer fb, int x, int y, int w, int h) throws IOException, RFBException {
+        int numSubrects = stream.getS32();
+        if (numSubrects < 0) {
+            throw new RFBException("bad RRE subrectangle count: "+(numSubrects & 0xFFFFFFFFL));
+        }
+        fb.fillRect(x, y, w, h, stream.getS32LE());
+        for (int i=0; i<numSubrects; i++) {
+            int pixel = stream.getS32LE();
+            int sx = stream.getU16();
+            int sy = stream.getU16();
+            int sw = stream.getU16();
+            int sh = stream.getU16();
+            if ((sx+sw > w) || (sy+sh > h)) {
+                throw new RFBException("RRE subrectangle is outside its rectangle");
+            }
+            fb.fillRect(x+sx, y+sy, sw, sh, pixel);
+        }
+    }
+
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cafbit.valence.rfb;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import android.util.Log;
+
+/**
+ * One selector thread which moves bytes for any number of
+ * RFBReactorTransports: it fills their receive buffers as data
+ * arrives, and drains their send buffers whenever a socket can't take
+ * a write right away.
+ *
+ * Transports never touch the selector themselves.  When one needs its
+ * registration or interest set changed, it queues itself with
+ * update() and the reactor applies the change on its own thread,
+ * since SelectableChannel.register() blocks while a select() is in
+ * progress.
+ *
+ * A transport which throws while being serviced is failed on its own.
+ * If the reactor itself fails (or is shut down), every transport it
+ * was serving fails, and getShared() starts a new reactor.
+ */
+public class RFBReactor implements Runnable {
+
+    private static int serial = 0;
+    private static RFBReactor shared = null;
+
+    private Selector selector;
+    private Thread thread;
+    private volatile boolean running = true;
+    // transports waiting for the reactor thread to update their keys
+    private ArrayList<RFBReactorTransport> updates = new ArrayList<RFBReactorTransport>();
+    private ArrayList<RFBReactorTransport> updating = new ArrayList<RFBReactorTransport>();
+
+    public RFBReactor() throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, "rfbreactor-"+(serial++));
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Return a reactor shared by every connection in the process,
+     * starting it if necessary (or if the last one has stopped).
+     */
+    public static synchronized RFBReactor getShared() throws IOException {
+        if (shared == null) {
+            shared = new RFBReactor();
+        }
+        return shared;
+    }
+
+    /**
+     * Stop the reactor thread.  Transports still registered fail, so
+     * close them first.
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Ask the reactor thread to (re-)register "transport" with its
+     * current interest set.  If the reactor has stopped, the transport
+     * fails right away.
+     */
+    void update(RFBReactorTransport transport) {
+        boolean stopped;
+        synchronized (updates) {
+            stopped = ! running;
+            if ((! stopped) && (! updates.contains(transport))) {
+                updates.add(transport);
+            }
+        }
+        if (stopped) {
+            transport.fail(new IOException("the RFB reactor has stopped"));
+            return;
+        }
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        IOException reason = new IOException("the RFB reactor has stopped");
+        try {
+            loop();
+        } catch (IOException e) {
+            Log.w("Valence", "RFB reactor select failed", e);
+            reason = new IOException("the RFB reactor failed: "+e.getMessage());
+            reason.initCause(e);
+        } catch (RuntimeException e) {
+            Log.w("Valence", "RFB reactor failed", e);
+            reason = new IOException("the RFB reactor failed: "+e);
+            reason.initCause(e);
+        } finally {
+            stop(reason);
+        }
+    }
+
+    private void loop() throws IOException {
+        while (running) {
+            selector.select();
+
+            // apply queued registration changes
+            synchronized (updates) {
+                ArrayList<RFBReactorTransport> swap = updating;
+                updating = updates;
+                updates = swap;
+            }
+            for (int i=0; i<updating.size(); i++) {
+                RFBReactorTransport transport = updating.get(i);
+                try {
+                    transport.register(selector);
+                } catch (ClosedChannelException e) {
+                    // closed in the meantime; nothing to do.
+                } catch (RuntimeException e) {
+                    fail(transport, null, e);
+                }
+            }
+            updating.clear();
+
+            // service the ready channels; one transport's failure
+            // mustn't take the others down with it.
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                RFBReactorTransport transport = (RFBReactorTransport)key.attachment();
+                try {
+                    transport.ready(key);
+                } catch (RuntimeException e) {
+                    fail(transport, key, e);
+                }
+            }
+        }
+    }
+
+    private void fail(RFBReactorTransport transport, SelectionKey key, RuntimeException e) {
+        Log.w("Valence", "RFB reactor: transport failed", e);
+        if (key != null) {
+            key.cancel();
+        }
+        IOException error = new IOException("RFB transport failed: "+e);
+        error.initCause(e);
+        transport.fail(error);
+    }
+
+    /**
+     * The reactor thread is exiting: stop sharing this reactor, and
+     * fail every transport it was serving (or about to), so that
+     * nobody waits on it in vain.
+     */
+    private void stop(IOException reason) {
+        synchronized (RFBReactor.class) {
+            if (shared == this) {
+                shared = null;
+            }
+        }
+        ArrayList<RFBReactorTransport> orphans = new ArrayList<RFBReactorTransport>();
+        synchronized (updates) {
+            running = false;
+            orphans.addAll(updates);
+            orphans.addAll(updating);
+            updates.clear();
+        }
+        updating.clear();
+        try {
+            for (SelectionKey key : selector.keys()) {
+                Object transport = key.attachment();
+                if ((transport != null) && (! orphans.contains(transport))) {
+                    orphans.add((RFBReactorTransport)transport);
+                }
+            }
+        } catch (RuntimeException e) {
+            // the selector is already closed
+        }
+        for (RFBReactorTransport transport : orphans) {
+            try {
+                transport.fail(reason);
+            } catch (RuntimeException e) {
+                Log.w("Valence", "RFB reactor: failing a transport", e);
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+        }
+    }
+
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cafbit.valence.rfb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A transport over a non-blocking SocketChannel, serviced by an
+ * RFBReactor.  The reactor reads into a direct receive ring, from
+ * which the InputStream serves blocking reads.  Writes go straight to
+ * the channel from the writing thread; whatever the socket won't take
+ * right away is queued in a direct send buffer for the reactor to
+ * drain, so the writer only blocks when that buffer is full too.
+ *
+ * When the input is being discarded, the reactor throws away incoming
+ * bytes itself, and no thread has to read from the connection at all.
+ */
+class RFBReactorTransport extends RFBTransport {
+
+    private static final int RECEIVE_BUFFER_SIZE = 64*1024;
+    private static final int SEND_BUFFER_SIZE = 16*1024;
+
+    private RFBReactor reactor;
+    private SocketChannel channel;
+    // only touched by the reactor thread
+    private SelectionKey key = null;
+
+    // the rest is guarded by "this"
+    private boolean connected = false;
+    private boolean eof = false;
+    private boolean closed = false;
+    private boolean closeReported = false;
+    private IOException error = null;
+    private int readTimeout = 0;
+    private boolean discard = false;
+    private Runnable onClosed = null;
+    // the receive ring holds "receiveCount" bytes from "receiveHead"
+    private ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+    private int receiveHead = 0;
+    private int receiveCount = 0;
+    private long bytesReceived = 0;
+    // bytes the socket wouldn't take yet, in "write mode"
+    private ByteBuffer sendBuffer = ByteBuffer.allocateDirect(SEND_BUFFER_SIZE);
+
+    RFBReactorTransport(RFBReactor reactor, SocketAddress address, int connectTimeout) throws IOException {
+        this.reactor = reactor;
+        this.channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            // disable Nagle's algorithm so mouse movements are smooth.
+            channel.socket().setTcpNoDelay(true);
+            boolean done = channel.connect(address);
+            synchronized (this) {
+                connected = done;
+            }
+            reactor.update(this);
+            awaitConnect(connectTimeout);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private synchronized void awaitConnect(int timeout) throws IOException {
+        long deadline = System.nanoTime() + timeout*1000000L;
+        while (! connected) {
+            checkError();
+            long remaining = (deadline - System.nanoTime()) / 1000000L;
+            if (remaining <= 0) {
+                throw new SocketTimeoutException("connect timed out");
+            }
+            await(remaining);
+        }
+    }
+
+    private void await(long timeout) throws IOException {
+        try {
+            wait(timeout);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void checkError() throws IOException {
+        if (error != null) {
+            IOException e = new IOException(error.getMessage());
+            e.initCause(error);
+            throw e;
+        }
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////
+    // reactor side
+    //////////////////////////////////////////////////////////////////////
+
+    /**
+     * Register with (or update the interest set on) the reactor's
+     * selector.  Called on the reactor thread.
+     */
+    void register(Selector selector) throws ClosedChannelException {
+        int ops;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            ops = interestOps();
+        }
+        if (key == null) {
+            key = channel.register(selector, ops, this);
+        } else {
+            try {
+                key.interestOps(ops);
+            } catch (CancelledKeyException e) {
+                // closed under us
+            }
+        }
+    }
+
+    private int interestOps() {
+        if (! connected) {
+            return SelectionKey.OP_CONNECT;
+        }
+        int ops = 0;
+        if ((! eof) && (error == null) && (receiveCount < RECEIVE_BUFFER_SIZE)) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (sendBuffer.position() > 0) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        return ops;
+    }
+
+    /**
+     * Service a ready channel.  Called on the reactor thread.
+     */
+    void ready(SelectionKey key) {
+        Runnable closedCallback = null;
+        long before;
+        long after;
+        synchronized (this) {
+            before = bytesReceived;
+            try {
+                if (key.isConnectable() && channel.finishConnect()) {
+                    connected = true;
+                }
+                if (connected && key.isReadable()) {
+                    fill();
+                }
+                if (connected && key.isWritable()) {
+                    sendBuffer.flip();
+                    channel.write(sendBuffer);
+                    sendBuffer.compact();
+                }
+                key.interestOps(interestOps());
+            } catch (CancelledKeyException e) {
+                // closed under us
+            } catch (IOException e) {
+                error = e;
+            }
+            if ((eof || (error != null)) && (! closed) && (! closeReported)) {
+                closedCallback = onClosed;
+                closeReported = (onClosed != null);
+            }
+            after = bytesReceived;
+            notifyAll();
+        }
+        if (after != before) {
+            received();
+        }
+        if (closedCallback != null) {
+            closedCallback.run();
+        }
+    }
+
+    /**
+     * The reactor can no longer service this transport (it failed, or
+     * stopped): fail any waiting reader or writer with "e", and report
+     * the connection closed.
+     */
+    void fail(IOException e) {
+        Runnable closedCallback = null;
+        synchronized (this) {
+            if (error == null) {
+                error = e;
+            }
+            if ((! closed) && (! closeReported)) {
+                closedCallback = onClosed;
+                closeReported = (onClosed != null);
+            }
+            notifyAll();
+        }
+        if (closedCallback != null) {
+            closedCallback.run();
+        }
+    }
+
+    /**
+     * Read as much as the channel has into the free space of the ring.
+     */
+    private void fill() throws IOException {
+        while (receiveCount < RECEIVE_BUFFER_SIZE) {
+            int tail = (receiveHead + receiveCount) % RECEIVE_BUFFER_SIZE;
+            int length = Math.min(RECEIVE_BUFFER_SIZE - receiveCount, RECEIVE_BUFFER_SIZE - tail);
+            receiveBuffer.clear();
+            receiveBuffer.position(tail);
+            receiveBuffer.limit(tail + length);
+            int nbytes = channel.read(receiveBuffer);
+            if (nbytes < 0) {
+                eof = true;
+                break;
+            } else if (nbytes == 0) {
+                break;
+            }
+            bytesReceived += nbytes;
+            if (! discard) {
+                receiveCount += nbytes;
+            }
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////
+    // reader side
+    //////////////////////////////////////////////////////////////////////
+
+    private InputStream inputStream = new InputStream() {
+        private byte[] one = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            int nbytes = read(one, 0, 1);
+            return (nbytes < 0) ? -1 : (one[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) throws IOException {
+            return receive(b, offset, length);
+        }
+
+        @Override
+        public int available() {
+            synchronized (RFBReactorTransport.this) {
+                return receiveCount;
+            }
+        }
+    };
+
+    private synchronized int receive(byte[] b, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        long deadline = System.nanoTime() + readTimeout*1000000L;
+        while (receiveCount == 0) {
+            if (eof) {
+                return -1;
+            }
+            checkError();
+            if (readTimeout == 0) {
+                await(0);
+            } else {
+                long remaining = (deadline - System.nanoTime()) / 1000000L;
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("read timed out");
+                }
+                await(remaining);
+            }
+        }
+        boolean wasFull = (receiveCount == RECEIVE_BUFFER_SIZE);
+        int nbytes = Math.min(length, Math.min(receiveCount, RECEIVE_BUFFER_SIZE - receiveHead));
+        receiveBuffer.clear();
+        receiveBuffer.position(receiveHead);
+        receiveBuffer.get(b, offset, nbytes);
+        receiveHead = (receiveHead + nbytes) % RECEIVE_BUFFER_SIZE;
+        receiveCount -= nbytes;
+        if (wasFull) {
+            // the reactor stopped reading when the ring filled up
+            reactor.update(this);
+        }
+        return nbytes;
+    }
+
+    //////////////////////////////////////////////////////////////////////
+    // writer side
+    //////////////////////////////////////////////////////////////////////
+
+    private WritableByteChannel outputChannel = new WritableByteChannel() {
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return send(src);
+        }
+
+        @Override
+        public boolean isOpen() {
+            synchronized (RFBReactorTransport.this) {
+                return ! closed;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            RFBReactorTransport.this.close();
+        }
+    };
+
+    private synchronized int send(ByteBuffer src) throws IOException {
+        checkError();
+        int total = src.remaining();
+        if (sendBuffer.position() == 0) {
+            // nothing queued, so the socket can take it directly.
+            channel.write(src);
+        }
+        while (src.hasRemaining()) {
+            checkError();
+            if (sendBuffer.hasRemaining()) {
+                boolean wasEmpty = (sendBuffer.position() == 0);
+                int n = Math.min(src.remaining(), sendBuffer.remaining());
+                int limit = src.limit();
+                src.limit(src.position() + n);
+                sendBuffer.put(src);
+                src.limit(limit);
+                if (wasEmpty) {
+                    reactor.update(this);
+                }
+            } else {
+                // wait for the reactor to drain the send buffer
+                await(0);
+            }
+        }
+        return total;
+    }
+
+    //////////////////////////////////////////////////////////////////////
+    // RFBTransport
+    //////////////////////////////////////////////////////////////////////
+
+    @Override
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    @Override
+    public WritableByteChannel getOutputChannel() {
+        return outputChannel;
+    }
+
+    @Override
+    public synchronized void setReadTimeout(int timeout) {
+        this.readTimeout = timeout;
+    }
+
+    @Override
+    public synchronized int getReadTimeout() {
+        return readTimeout;
+    }
+
+    @Override
+    public boolean discardInput(Runnable onClosed) {
+        boolean alreadyClosed;
+        synchronized (this) {
+            discard = true;
+            receiveHead = 0;
+            receiveCount = 0;
+            this.onClosed = onClosed;
+            alreadyClosed = (eof || (error != null)) && (! closed);
+            closeReported = alreadyClosed;
+        }
+        reactor.update(this);
+        if (alreadyClosed) {
+            onClosed.run();
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        channel.socket().shutdownOutput();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        // this also cancels the key
+        channel.close();
+    }
+
+}
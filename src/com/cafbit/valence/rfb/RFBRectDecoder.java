@@ -0,0 +1,58 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cafbit.valence.rfb;
+
+import java.io.IOException;
+
+/**
+ * Decodes the payload of one rectangle of a FramebufferUpdate in a
+ * particular encoding.  Decoders read straight from the stream and
+ * write straight into the framebuffer, so an update is never held in
+ * memory as a whole.  A decoder may keep state (zlib streams, etc.)
+ * across rectangles for the life of the connection.
+ */
+public abstract class RFBRectDecoder {
+
+    /**
+     * Return the encoding-type number this decoder handles.
+     */
+    public abstract int getEncoding();
+
+    /**
+     * Read the rectangle's payload from the stream and apply it to the
+     * framebuffer.  The rectangle has already been bounds-checked.
+     */
+    abstract void decode(RFBStream stream, RFBFramebuffer fb, int x, int y, int w, int h)
+        throws IOException, RFBException;
+
+    /**
+     * Called at the end of each FramebufferUpdate.  Decoders which
+     * defer any work must finish it before returning, so that
+     * listeners see the update complete.
+     */
+    void flush(RFBFramebuffer fb) throws IOException, RFBException {
+    }
+
+    /**
+     * Release any native resources.  This is called on the decoding
+     * thread once the connection is finished with it.
+     */
+    void close() {
+    }
+
+}
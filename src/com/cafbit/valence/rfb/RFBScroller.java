@@ -0,0 +1,201 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cafbit.valence.rfb;
+
+/**
+ * Turns two-finger scroll distances into scroll wheel clicks.
+ *
+ * RFB only has the wheel buttons (4/5 vertical, 6/7 horizontal), so
+ * each axis keeps a fractional accumulator, and only whole clicks are
+ * taken out of it.  A slow drag therefore still scrolls, just less
+ * often, and the remainder is kept until the gesture ends.
+ *
+ * Clicks are collected for up to FRAME milliseconds, so that a burst
+ * of scroll events goes to the server as one write instead of one
+ * press/release run per event.
+ *
+ * When the fingers lift, a scroll which was still moving continues as
+ * a fling: its velocity decays exponentially, and step() is called
+ * every FRAME milliseconds to scroll by the distance covered since the
+ * last step.
+ *
+ * Times are in milliseconds.  This is only used from one thread.
+ */
+class RFBScroller {
+
+    // clicks per pixel of finger movement
+    static final float SCALE = 0.2f;
+    // clicks are written at most this often
+    static final long FRAME = 16;
+    // the most clicks written per axis per frame
+    static final int MAX_CLICKS = 20;
+    // scrolling which stopped this long before the release doesn't fling
+    static final long FLING_TIMEOUT = 100;
+    // the share of the velocity lost per millisecond of fling
+    private static final float FRICTION = 0.002f;
+    // share of the new velocity sample mixed into the estimate
+    private static final float VELOCITY_SMOOTHING = 0.5f;
+    private static final float MIN_FLING_VELOCITY = 0.01f; // clicks/ms
+
+    // fractional clicks not yet taken
+    private float accumulatorX = 0.0f, accumulatorY = 0.0f;
+    // whole clicks not yet written
+    private int clicksX = 0, clicksY = 0;
+    // clock time of the last write
+    private long frameTime = 0;
+
+    // velocity in clicks/ms
+    private float vx = 0.0f, vy = 0.0f;
+    // clock time of the last scroll event
+    private long scrollTime = 0;
+    private boolean flinging = false;
+    private long flingTime = 0;
+
+    /**
+     * Add a scroll of (sx,sy) pixels which took "dt" milliseconds of
+     * event time, received at clock time "time".
+     */
+    void addScroll(long dt, float sx, float sy, long time) {
+        flinging = false;
+        float cx = sx * SCALE;
+        float cy = sy * SCALE;
+        accumulate(cx, cy);
+        if (dt > 0) {
+            float nvx = cx / dt;
+            float nvy = cy / dt;
+            if ((time - scrollTime) > FLING_TIMEOUT) {
+                vx = nvx;
+                vy = nvy;
+            } else {
+                vx += (nvx - vx) * VELOCITY_SMOOTHING;
+                vy += (nvy - vy) * VELOCITY_SMOOTHING;
+            }
+        }
+        scrollTime = time;
+    }
+
+    /**
+     * The fingers lifted at clock time "time": start a fling if the
+     * scroll was still moving.
+     */
+    void release(long time) {
+        float v = (float)Math.sqrt(vx*vx + vy*vy);
+        if (((time - scrollTime) <= FLING_TIMEOUT) && (v >= MIN_FLING_VELOCITY)) {
+            flinging = true;
+            flingTime = time;
+        } else {
+            vx = vy = 0.0f;
+        }
+    }
+
+    boolean isFlinging() {
+        return flinging;
+    }
+
+    /**
+     * Advance the fling to clock time "time".
+     */
+    void step(long time) {
+        if (! flinging) {
+            return;
+        }
+        long dt = time - flingTime;
+        flingTime = time;
+        // the exact distance covered while decaying for dt
+        float decay = (float)Math.exp(-FRICTION * dt);
+        float distance = (1.0f - decay) / FRICTION;
+        accumulate(vx * distance, vy * distance);
+        vx *= decay;
+        vy *= decay;
+        if ((float)Math.sqrt(vx*vx + vy*vy) < MIN_FLING_VELOCITY) {
+            flinging = false;
+            vx = vy = 0.0f;
+        }
+    }
+
+    private void accumulate(float cx, float cy) {
+        accumulatorX += cx;
+        accumulatorY += cy;
+        int x = (int)accumulatorX;
+        int y = (int)accumulatorY;
+        accumulatorX -= x;
+        accumulatorY -= y;
+        clicksX = clamp(clicksX + x);
+        clicksY = clamp(clicksY + y);
+    }
+
+    private static int clamp(int clicks) {
+        return Math.max(-MAX_CLICKS, Math.min(clicks, MAX_CLICKS));
+    }
+
+    boolean hasClicks() {
+        return (clicksX != 0) || (clicksY != 0);
+    }
+
+    /**
+     * Return true if clicks taken at clock time "time" may be written
+     * now, rather than waiting for the frame to end.
+     */
+    boolean isFrameDue(long time) {
+        return (time - frameTime) >= FRAME;
+    }
+
+    /**
+     * Return how long after clock time "time" step() or the write of
+     * pending clicks is due, or -1 if neither is.
+     */
+    long getDelay(long time) {
+        long due;
+        if (flinging) {
+            due = flingTime + FRAME;
+        } else if (hasClicks()) {
+            due = frameTime + FRAME;
+        } else {
+            return -1;
+        }
+        return Math.max(0, due - time);
+    }
+
+    int getClicksX() {
+        return clicksX;
+    }
+    int getClicksY() {
+        return clicksY;
+    }
+
+    /**
+     * Note that the pending clicks were written at clock time "time".
+     */
+    void clicksWritten(long time) {
+        clicksX = 0;
+        clicksY = 0;
+        frameTime = time;
+    }
+
+    /**
+     * Stop any fling, and forget the remainders, since the scroll
+     * gesture is over.  Pending clicks are kept for writing.
+     */
+    void reset() {
+        accumulatorX = accumulatorY = 0.0f;
+        vx = vy = 0.0f;
+        flinging = false;
+    }
+
+}
@@ -23,7 +23,6 @@ import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.KeyFactory;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
@@ -33,10 +32,11 @@ import javax.crypto.Cipher;
 import javax.crypto.KeyAgreement;
 import javax.crypto.interfaces.DHPrivateKey;
 import javax.crypto.interfaces.DHPublicKey;
-import javax.crypto.spec.DHParameterSpec;
 import javax.crypto.spec.DHPublicKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 
+import android.util.Log;
+
 /**
  * This class implements "Mac Authentication", which uses Diffie-Hellman
  * key agreement (along with MD5 and AES128) to authenticate users to
@@ -58,6 +58,8 @@ import javax.crypto.spec.SecretKeySpec;
  *
  * The ciphertext from step 3 and the DH public key from step 2
  * are sent to the server.
+ *
+ * Our DH key pair normally comes precomputed from DHKeyPairPool.
  */
 public class RFBSecurityARD extends RFBSecurity {
 
@@ -108,12 +110,14 @@ public class RFBSecurityARD extends RFBSecurity {
         // 2. perform Diffie-Hellman key agreement to calculate
         //    the publicKey and privateKey
 
+        long start = System.nanoTime();
         DHResult dh = performDHKeyAgreement(
             new BigInteger(+1, prime),
             new BigInteger(+1, generator),
             new BigInteger(+1, peerKey),
             keyLength
         );
+        Log.i("Valence", "ARD key agreement: "+((System.nanoTime()-start)/1000000L)+"ms; DH key pool: "+DHKeyPairPool.getInstance());
 
         // 3. calculate the MD5 hash of the DH shared secret
 
@@ -156,13 +160,11 @@ public class RFBSecurityARD extends RFBSecurity {
 
         // fetch instances of all needed Diffie-Hellman support classes
 
-        KeyPairGenerator keyPairGenerator;
         KeyAgreement keyAgreement;
         KeyFactory keyFactory;
         try {
-            keyPairGenerator = KeyPairGenerator.getInstance("DH");
-            keyAgreement = KeyAgreement.getInstance("DH");
-            keyFactory = KeyFactory.getInstance("DH");
+            keyAgreement = DHKeyPairPool.newKeyAgreement();
+            keyFactory = DHKeyPairPool.newKeyFactory();
         } catch (NoSuchAlgorithmException e) {
             e.printStackTrace();
             throw new IOException(MSG_NO_SUPPORT + " (Diffie-Hellman)");
@@ -179,11 +181,8 @@ public class RFBSecurityARD extends RFBSecurity {
             DHPublicKey peerPublicKey =
                 (DHPublicKey) keyFactory.generatePublic(peerKeySpec);
 
-            // generate my public/private key pair
-            keyPairGenerator.initialize(
-                new DHParameterSpec(prime, generator)
-            );
-            KeyPair keyPair = keyPairGenerator.generateKeyPair();
+            // get my public/private key pair
+            KeyPair keyPair = DHKeyPairPool.getInstance().take(prime, generator);
 
             // perform key agreement
             keyAgreement.init(keyPair.getPrivate());
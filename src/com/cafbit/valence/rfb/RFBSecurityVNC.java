@@ -30,6 +30,7 @@ public class RFBSecurityVNC extends RFBSecurity {
     }
 
     private String password;
+    private DES des = null;
 
     public RFBSecurityVNC() {
 
@@ -43,9 +44,20 @@ public class RFBSecurityVNC extends RFBSecurity {
         }
     }
 
+    /**
+     * Authenticate with a DES instance already keyed with the password
+     * (see DES.forPassword()), which may be shared between connections.
+     */
+    public RFBSecurityVNC(DES des) {
+        this.des = des;
+    }
+
     public boolean perform(RFBStream stream) throws IOException {
         byte challenge[] = stream.read(16);
-        byte response[] = DES.encrypt(challenge, password);
+        if (des == null) {
+            des = DES.forPassword(password);
+        }
+        byte response[] = des.encrypt(challenge);
         stream.write(response);
         return true;
     }
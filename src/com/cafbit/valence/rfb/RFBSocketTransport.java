@@ -0,0 +1,113 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cafbit.valence.rfb;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A transport over a blocking java.net.Socket.  A separate thread must
+ * read from it for the life of the connection.
+ */
+class RFBSocketTransport extends RFBTransport {
+
+    private Socket socket;
+    private InputStream inputStream = null;
+    private WritableByteChannel outputChannel = null;
+    // written by the reading thread
+    private volatile long bytesReceived = 0;
+
+    RFBSocketTransport(SocketAddress address, int connectTimeout) throws IOException {
+        socket = new Socket();
+        try {
+            socket.connect(address, connectTimeout);
+            // disable Nagle's algorithm so mouse movements are smooth.
+            socket.setTcpNoDelay(true);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+        if (inputStream == null) {
+            inputStream = new FilterInputStream(socket.getInputStream()) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) {
+                        bytesReceived++;
+                        received();
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int offset, int length) throws IOException {
+                    int nbytes = super.read(b, offset, length);
+                    if (nbytes > 0) {
+                        bytesReceived += nbytes;
+                        received();
+                    }
+                    return nbytes;
+                }
+            };
+        }
+        return inputStream;
+    }
+
+    @Override
+    public synchronized WritableByteChannel getOutputChannel() throws IOException {
+        if (outputChannel == null) {
+            outputChannel = Channels.newChannel(socket.getOutputStream());
+        }
+        return outputChannel;
+    }
+
+    @Override
+    public void setReadTimeout(int timeout) throws IOException {
+        socket.setSoTimeout(timeout);
+    }
+
+    @Override
+    public int getReadTimeout() throws IOException {
+        return socket.getSoTimeout();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        socket.shutdownOutput();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+}
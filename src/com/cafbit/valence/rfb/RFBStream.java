@@ -17,20 +17,39 @@
 
 package com.cafbit.valence.rfb;
 
-import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-
-import android.view.KeyEvent;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 
 public class RFBStream {
 
     private static final int BUFFER_SIZE = 4096;
-    private byte[] buffer = new byte[BUFFER_SIZE];
     private InputStream inputStream;
-    private OutputStream outputStream;
+    private OutputStream recorder = null;
+    // for RFBUpdateScheduler: how much we've read, and how long we
+    // spent blocked reading it.
+    private long bytesRead = 0;
+    private long readWait = 0;
+    private RFBBatchWriter writer;
     private int version;
+    // during the handshake, reads must finish by the deadline.
+    private RFBTransport deadlineTransport = null;
+    private long deadline = 0L;
+    private int savedTimeout = 0;
+
+    /**
+     * All reads go through this one reusable buffer.  Between calls,
+     * the buffer is in "read mode": the position is the read cursor
+     * and the limit marks the end of the bytes received so far.
+     * The primitive readers below never allocate once the buffer
+     * exists, which matters when server messages are consumed at
+     * frame rate.
+     */
+    private ByteBuffer inBuffer = ByteBuffer.allocate(BUFFER_SIZE);
 
     private enum State {
         NEED_VERSION
@@ -38,42 +57,220 @@ public class RFBStream {
     private State state = State.NEED_VERSION;
 
     public RFBStream(InputStream inputStream, OutputStream outputStream) {
-        this.inputStream = new BufferedInputStream(inputStream, BUFFER_SIZE);
-        this.outputStream = outputStream;
+        this.inputStream = inputStream;
+        this.writer = new RFBBatchWriter(outputStream);
+        inBuffer.limit(0);
     }
 
-    public RFBMessage read() throws IOException, RFBException {
-        return null;
+    public RFBStream(InputStream inputStream, WritableByteChannel outputChannel) {
+        this.inputStream = inputStream;
+        this.writer = new RFBBatchWriter(outputChannel);
+        inBuffer.limit(0);
     }
 
-    byte[] read(int length) throws IOException {
+    RFBBatchWriter getWriter() {
+        return writer;
+    }
 
-        byte[] buffer = new byte[length];
-        int pos = 0;
+    long getBytesRead() {
+        return bytesRead;
+    }
+
+    long getReadWait() {
+        return readWait;
+    }
+
+    /**
+     * Block until at least one byte is available.
+     */
+    void waitForData() throws IOException {
+        require(1);
+    }
 
-        while (pos < length) {
-            //System.out.println("reading.  pos="+pos+" length="+length);
-            int nbytes = inputStream.read(buffer, pos, length-pos);
-            if (nbytes != -1) {
-                pos+=nbytes;
+    /**
+     * Make every read fail with a SocketTimeoutException once
+     * System.nanoTime() passes "deadline", by shrinking the transport's
+     * read timeout to whatever time is left before each read.  Unlike
+     * a plain read timeout, this bounds the total time, even if the
+     * server trickles data.
+     */
+    void setDeadline(RFBTransport transport, long deadline) throws IOException {
+        if (deadlineTransport == null) {
+            savedTimeout = transport.getReadTimeout();
+        }
+        this.deadlineTransport = transport;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Stop enforcing the deadline, and restore the transport's
+     * original read timeout.
+     */
+    void clearDeadline() throws IOException {
+        if (deadlineTransport != null) {
+            deadlineTransport.setReadTimeout(savedTimeout);
+            deadlineTransport = null;
+        }
+    }
+
+    private void beforeRead() throws IOException {
+        if (deadlineTransport == null) {
+            return;
+        }
+        long remaining = (deadline - System.nanoTime()) / 1000000L;
+        if (remaining <= 0) {
+            throw new SocketTimeoutException("deadline passed");
+        }
+        deadlineTransport.setReadTimeout((int)Math.min(remaining, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Copy everything read from now on (including anything already
+     * buffered but not yet consumed) to the given stream.  This is
+     * used to capture server messages for RFBDecoderBenchmark.
+     */
+    void setRecorder(OutputStream recorder) throws IOException {
+        if ((recorder != null) && inBuffer.hasRemaining()) {
+            recorder.write(inBuffer.array(), inBuffer.position(), inBuffer.remaining());
+        }
+        this.recorder = recorder;
+    }
+
+    /**
+     * Make sure at least "length" bytes are available at the read
+     * cursor, reading from the input stream as needed.  The length
+     * must not exceed BUFFER_SIZE.
+     */
+    private void require(int length) throws IOException {
+        if (inBuffer.remaining() >= length) {
+            return;
+        }
+
+        // switch to "write mode" with the unread bytes moved to the front
+        inBuffer.compact();
+        byte[] array = inBuffer.array();
+        while (inBuffer.position() < length) {
+            int pos = inBuffer.position();
+            beforeRead();
+            long start = System.nanoTime();
+            int nbytes = inputStream.read(array, pos, inBuffer.capacity()-pos);
+            readWait += System.nanoTime() - start;
+            if (nbytes < 0) {
+                inBuffer.flip();
+                throw new EOFException("connection closed by server");
             }
+            if (recorder != null) {
+                recorder.write(array, pos, nbytes);
+            }
+            inBuffer.position(pos+nbytes);
+            bytesRead += nbytes;
         }
-        //System.out.println("read:\n"+Util.hexDump(buffer));
+        inBuffer.flip();
+    }
+
+    /**
+     * Read exactly "length" bytes into the supplied array.  Small reads
+     * are served from the internal buffer; once the buffer is drained,
+     * large reads go straight from the input stream into the
+     * destination to avoid a second copy.
+     */
+    void readInto(byte[] dst, int offset, int length) throws IOException {
+        int n = inBuffer.remaining();
+        if (n > length) {
+            n = length;
+        }
+        inBuffer.get(dst, offset, n);
+        offset += n;
+        length -= n;
+
+        if (length >= BUFFER_SIZE) {
+            while (length > 0) {
+                beforeRead();
+                long start = System.nanoTime();
+                int nbytes = inputStream.read(dst, offset, length);
+                readWait += System.nanoTime() - start;
+                if (nbytes < 0) {
+                    throw new EOFException("connection closed by server");
+                }
+                if (recorder != null) {
+                    recorder.write(dst, offset, nbytes);
+                }
+                offset += nbytes;
+                length -= nbytes;
+                bytesRead += nbytes;
+            }
+        } else if (length > 0) {
+            require(length);
+            inBuffer.get(dst, offset, length);
+        }
+    }
+
+    /**
+     * Fill the remaining space of "dst" (which may be a direct buffer)
+     * from the stream, a buffer's worth at a time.
+     */
+    void readInto(ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            if (! inBuffer.hasRemaining()) {
+                // take whatever the next read brings
+                require(1);
+            }
+            int n = Math.min(dst.remaining(), inBuffer.remaining());
+            int limit = inBuffer.limit();
+            inBuffer.limit(inBuffer.position()+n);
+            dst.put(inBuffer);
+            inBuffer.limit(limit);
+        }
+    }
 
+    /**
+     * Discard exactly "length" bytes from the stream.
+     */
+    void skip(int length) throws IOException {
+        while (length > 0) {
+            int n = (length < BUFFER_SIZE) ? length : BUFFER_SIZE;
+            require(n);
+            inBuffer.position(inBuffer.position()+n);
+            length -= n;
+        }
+    }
+
+    int getU8() throws IOException {
+        require(1);
+        return inBuffer.get() & 0xFF;
+    }
+    int getU16() throws IOException {
+        require(2);
+        return inBuffer.getShort() & 0xFFFF;
+    }
+    int getS32() throws IOException {
+        require(4);
+        return inBuffer.getInt();
+    }
+    /**
+     * Read a little-endian 32-bit value, i.e. one pixel in
+     * RFBPixelFormat.DEFAULT.
+     */
+    int getS32LE() throws IOException {
+        require(4);
+        return Integer.reverseBytes(inBuffer.getInt());
+    }
+
+    byte[] read(int length) throws IOException {
+        byte[] buffer = new byte[length];
+        readInto(buffer, 0, length);
+        //System.out.println("read:\n"+Util.hexDump(buffer));
         return buffer;
     }
 
     int readByte() throws IOException {
-        byte[] ba = read(1);
-        return ba[0];
+        return (byte)getU8();
     }
     int readShort() throws IOException {
-        byte[] ba = read(2);
-        return (0xFF & (int)ba[0])<<8 | (0xFF & (int)ba[1])<<0;
+        return getU16();
     }
     int readInt() throws IOException {
-        byte[] ba = read(4);
-        return ba[0]<<24 | ba[1]<<16 | ba[2]<<8 | ba[3];
+        return getS32();
     }
     String readString() throws IOException {
         int length = readInt();
@@ -83,15 +280,15 @@ public class RFBStream {
 
     void write(byte[] ba) throws IOException {
         //System.out.println("write:\n"+Util.hexDump(ba));
-        outputStream.write(ba);
+        writer.put(ba);
     }
     void writeByte(int b) throws IOException {
         //byte[] ba = new byte[1]; ba[0] = (byte)b; System.out.println("write:\n"+Util.hexDump(ba));
-        outputStream.write(b);
+        writer.putByte(b);
     }
     void write(RFBMessage message) throws IOException {
         //System.out.println("write:\n"+Util.hexDump(message.getBytes()));
-        outputStream.write(message.getBytes());
+        writer.put(message.getBytes());
     }
 
     public Version readVersion() throws IOException, RFBException {
@@ -195,14 +392,43 @@ public class RFBStream {
         */
     }
 
+    /**
+     * Ask the server to send pixels in the given format.
+     */
+    public void writeSetPixelFormat(RFBPixelFormat pixelFormat) throws IOException {
+        byte[] pf = pixelFormat.getBytes();
+        byte[] buffer = new byte[4+pf.length];
+        buffer[0] = 0x00; // message-type
+        // (3 bytes padding)
+        System.arraycopy(pf, 0, buffer, 4, pf.length);
+        write(buffer);
+    }
+
+    /**
+     * Tell the server which encodings we support, in order of
+     * preference.
+     */
+    public void writeSetEncodings(int[] encodings) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4+4*encodings.length);
+        buffer.put((byte)0x02);                    // message-type
+        buffer.put((byte)0x00);                    // padding
+        buffer.putShort((short)encodings.length);  // number-of-encodings
+        for (int encoding : encodings) {
+            buffer.putInt(encoding);
+        }
+        write(buffer.array());
+    }
+
+    public void writeFramebufferUpdateRequest(boolean incremental, int x, int y, int w, int h) throws IOException {
+        writer.putFramebufferUpdateRequest(incremental, x, y, w, h);
+    }
+
+    public void writeEnableContinuousUpdates(boolean enable, int x, int y, int w, int h) throws IOException {
+        writer.putEnableContinuousUpdates(enable, x, y, w, h);
+    }
+
     public void sendPointerEvent(byte buttons, int x, int y) throws IOException {
-        byte[] pointerEvent = new byte[] {
-            0x05, // message-type
-            buttons, // button-mask
-            (byte)((x&0xFF00)>>8), (byte)(x&0xFF),
-            (byte)((y&0xFF00)>>8), (byte)(y&0xFF),
-        };
-        write(pointerEvent);
+        writer.putPointerEvent(buttons, x, y);
     }
 
     /**
@@ -211,82 +437,54 @@ public class RFBStream {
      * these things.)
      */
     public void sendMultiplePointerEvents(int iterations, byte setButtons, byte clearButtons, int x, int y) throws IOException {
-        byte[] buffer = new byte[6*iterations*2];
-        byte x1 = (byte)((x&0xFF00)>>8);
-        byte x2 = (byte)(x&0xFF);
-        byte y1 = (byte)((y&0xFF00)>>8);
-        byte y2 = (byte)(y&0xFF);
-        for (int i=0; i<iterations; i++) {
-            int n = 6*i*2;
-            buffer[n]   = 0x05;         // message-type
-            buffer[n+1] = setButtons;   // button-mask
-            buffer[n+2] = x1;
-            buffer[n+3] = x2;
-            buffer[n+4] = y1;
-            buffer[n+5] = y2;
-            buffer[n+6] = 0x05;         // message-type
-            buffer[n+7] = clearButtons; // button-mask
-            buffer[n+8] = x1;
-            buffer[n+9] = x2;
-            buffer[n+10] = y1;
-            buffer[n+11] = y2;
+        writer.beginBatch();
+        try {
+            for (int i=0; i<iterations; i++) {
+                writer.putPointerEvent(setButtons, x, y);
+                writer.putPointerEvent(clearButtons, x, y);
+            }
+        } finally {
+            writer.endBatch();
         }
-        write(buffer);
     }
 
     public void sendKey(RFBKeyEvent keyEvent) throws IOException {
-        // resolve the keysym
-        int keysym;
-        if (keyEvent.special != null) {
-            keysym = keyEvent.special.keysym;
-        } else if (keyEvent.ch != 0) {
-            keysym = KeyTranslator.translate(keyEvent.ch);
-        } else {
-            keysym = KeyTranslator.translate(keyEvent.keyEvent);
-            if (keysym == 0) {
-                return;
-            }
-        }
+        sendKey(keyEvent.getKeysym(), keyEvent.getModifierKeysym());
+    }
+
+    /**
+     * Send a key press and release, wrapped in a press and release of
+     * the modifier if modifierKeysym is non-zero.
+     */
+    public void sendKey(int keysym, int modifierKeysym) throws IOException {
         if (keysym == 0) {
             return;
         }
 
-        if (keyEvent.modifier != null) {
-            sendKeyDown(keyEvent.modifier.keysym);
-        }
+        // send the modifier and key press/release as one packet.
+        writer.beginBatch();
+        try {
+            if (modifierKeysym != 0) {
+                sendKeyDown(modifierKeysym);
+            }
 
-        sendKeyDown(keysym);
-        sendKeyUp(keysym);
+            sendKeyDown(keysym);
+            sendKeyUp(keysym);
 
-        if (keyEvent.modifier != null) {
-            sendKeyUp(keyEvent.modifier.keysym);
+            if (modifierKeysym != 0) {
+                sendKeyUp(modifierKeysym);
+            }
+        } finally {
+            writer.endBatch();
         }
     }
 
     private void sendKeyDown(int keysym) throws IOException {
-        byte[] keyDown = new byte[] {
-            0x04, // message-type
-            0x01, // down-flag
-            0x00, 0x00, // padding
-            (byte) ((keysym >> 24) & 0xFF),
-            (byte) ((keysym >> 16) & 0xFF),
-            (byte) ((keysym >> 8) & 0xFF),
-            (byte) ((keysym) & 0xFF)
-        };
-        write(keyDown);
+        writer.putKeyEvent(true, keysym);
     }
 
     private void sendKeyUp(int keysym) throws IOException {
-        byte[] keyUp = new byte[] {
-            0x04, // message-type
-            0x00, // down-flag
-            0x00, 0x00, // padding
-            (byte) ((keysym >> 24) & 0xFF),
-            (byte) ((keysym >> 16) & 0xFF),
-            (byte) ((keysym >> 8) & 0xFF),
-            (byte) ((keysym) & 0xFF)
-        };
-        write(keyUp);
+        writer.putKeyEvent(false, keysym);
     }
 
 }
@@ -0,0 +1,346 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cafbit.valence.rfb;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Tight encoding.  Each rectangle is one of:
+ *
+ * - fill: a single colour;
+ * - JPEG: a JFIF image, decoded on an RFBDecodePool worker so the
+ *   receiving thread isn't held up;
+ * - basic: pixel data passed through a copy, palette, or gradient
+ *   filter, and (unless it's under 12 bytes) compressed with one of
+ *   four persistent zlib streams.
+ *
+ * Basic rectangles depend on the zlib stream state, so they are
+ * decoded here on the receiving thread, in order, a row at a time.
+ * Rows go straight into the framebuffer unless a JPEG rectangle is
+ * still in flight, in which case the rectangle is collected and
+ * queued behind it.
+ *
+ * With RFBPixelFormat.DEFAULT, a TPIXEL is three bytes: red, green,
+ * blue.
+ */
+class RFBTightDecoder extends RFBRectDecoder {
+
+    private static final int NUM_STREAMS = 4;
+    private static final int MIN_TO_COMPRESS = 12;
+    private static final int TYPE_FILL = 0x08;
+    private static final int TYPE_JPEG = 0x09;
+    private static final int FILTER_COPY = 0;
+    private static final int FILTER_PALETTE = 1;
+    private static final int FILTER_GRADIENT = 2;
+    private static final int INPUT_SIZE = 4096;
+    private static final int NUM_WORKERS = 2;
+    private static final int MAX_PENDING = 8;
+    // the protocol's limit, which servers respect in practice
+    private static final int MAX_WIDTH = 2048;
+
+    private Inflater[] inflaters = new Inflater[NUM_STREAMS];
+    private Inflater inflater;
+    private boolean compressed;
+    private byte[] input = new byte[INPUT_SIZE];
+    private byte[] scratch = new byte[64];
+    private int compressedRemaining = 0;
+    private RFBStream stream;
+    private RFBDecodePool pool = null;
+
+    // row scratch, grown if a server exceeds MAX_WIDTH
+    private int[] palette = new int[256];
+    private byte[] rowData = new byte[MAX_WIDTH*3];
+    private int[] rowPixels = new int[MAX_WIDTH];
+    private int[] prevRow = new int[MAX_WIDTH];
+
+    RFBTightDecoder() {
+        for (int i=0; i<NUM_STREAMS; i++) {
+            inflaters[i] = new Inflater();
+        }
+    }
+
+    @Override
+    public int getEncoding() {
+        return RFBDecoder.ENCODING_TIGHT;
+    }
+
+    @Override
+    void decode(RFBStream stream, RFBFramebuffer fb, int x, int y, int w, int h) throws IOException, RFBException {
+        int control = stream.getU8();
+        for (int i=0; i<NUM_STREAMS; i++) {
+            if ((control & (1 << i)) != 0) {
+                inflaters[i].reset();
+            }
+        }
+        int type = control >> 4;
+
+        if (type == TYPE_FILL) {
+            int colour = readTPixel(stream);
+            if ((pool == null) || pool.isIdle()) {
+                fb.fillRect(x, y, w, h, colour);
+            } else {
+                pool.submitFill(pool.obtain(fb, x, y, w, h), colour);
+            }
+        } else if (type == TYPE_JPEG) {
+            int length = readCompactLength(stream);
+            if (pool == null) {
+                pool = new RFBDecodePool(NUM_WORKERS, MAX_PENDING);
+            }
+            RFBDecodePool.Blit blit = pool.obtain(fb, x, y, w, h);
+            stream.readInto(blit.data(length), 0, length);
+            pool.submitJPEG(blit);
+        } else if (type < TYPE_FILL) {
+            this.stream = stream;
+            try {
+                decodeBasic(stream, fb, x, y, w, h, type);
+            } finally {
+                this.stream = null;
+            }
+        } else {
+            throw new RFBException("unsupported Tight compression type: "+type);
+        }
+    }
+
+    @Override
+    void flush(RFBFramebuffer fb) throws IOException, RFBException {
+        if (pool != null) {
+            pool.flush();
+        }
+    }
+
+    @Override
+    void close() {
+        for (Inflater i : inflaters) {
+            i.end();
+        }
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    private void decodeBasic(RFBStream stream, RFBFramebuffer fb, int x, int y, int w, int h, int type) throws IOException, RFBException {
+        inflater = inflaters[type & 0x03];
+        int filter = FILTER_COPY;
+        if ((type & 0x04) != 0) {
+            filter = stream.getU8();
+        }
+
+        int rowLength;
+        int paletteSize = 0;
+        switch (filter) {
+        case FILTER_COPY:
+        case FILTER_GRADIENT:
+            rowLength = w*3;
+            break;
+        case FILTER_PALETTE:
+            paletteSize = stream.getU8() + 1;
+            for (int i=0; i<paletteSize; i++) {
+                palette[i] = readTPixel(stream);
+            }
+            rowLength = (paletteSize == 2) ? (w+7)/8 : w;
+            break;
+        default:
+            throw new RFBException("unsupported Tight filter: "+filter);
+        }
+
+        int dataLength = rowLength*h;
+        compressed = (dataLength >= MIN_TO_COMPRESS);
+        if (compressed) {
+            compressedRemaining = readCompactLength(stream);
+        }
+
+        // decode into the framebuffer, or into a blit if something
+        // ahead of us is still in flight.
+        RFBDecodePool.Blit blit = null;
+        int[] pixels = null;
+        if ((pool != null) && (! pool.isIdle())) {
+            blit = pool.obtain(fb, x, y, w, h);
+            pixels = blit.pixels(w*h);
+        }
+
+        ensureRowCapacity(w, rowLength);
+        if (filter == FILTER_GRADIENT) {
+            for (int i=0; i<w; i++) {
+                prevRow[i] = 0;
+            }
+        }
+        for (int row=0; row<h; row++) {
+            readData(rowData, rowLength);
+            switch (filter) {
+            case FILTER_COPY:
+                for (int i=0, j=0; i<w; i++, j+=3) {
+                    rowPixels[i] =
+                        ((rowData[j] & 0xFF) << 16) |
+                        ((rowData[j+1] & 0xFF) << 8) |
+                        (rowData[j+2] & 0xFF);
+                }
+                break;
+            case FILTER_PALETTE:
+                if (paletteSize == 2) {
+                    for (int i=0; i<w; i++) {
+                        int bit = (rowData[i >> 3] >> (7 - (i & 7))) & 1;
+                        rowPixels[i] = palette[bit];
+                    }
+                } else {
+                    for (int i=0; i<w; i++) {
+                        rowPixels[i] = palette[rowData[i] & 0xFF];
+                    }
+                }
+                break;
+            case FILTER_GRADIENT:
+                applyGradient(w);
+                break;
+            }
+            if (blit != null) {
+                System.arraycopy(rowPixels, 0, pixels, row*w, w);
+            } else {
+                fb.putRow(x, y+row, rowPixels, 0, w);
+            }
+        }
+
+        if (compressed) {
+            finishRect();
+        }
+        if (blit != null) {
+            pool.submitPixels(blit);
+        }
+    }
+
+    /**
+     * Undo the gradient filter: each component was sent as the
+     * difference from left + up - upper-left (clamped), using the
+     * previous row of this rectangle.
+     */
+    private void applyGradient(int w) {
+        int left = 0;
+        int upLeft = 0;
+        for (int i=0; i<w; i++) {
+            int up = prevRow[i];
+            int pixel = 0;
+            for (int shift=16, j=i*3; shift>=0; shift-=8, j++) {
+                int predicted = ((left >> shift) & 0xFF) + ((up >> shift) & 0xFF) - ((upLeft >> shift) & 0xFF);
+                if (predicted < 0) {
+                    predicted = 0;
+                } else if (predicted > 255) {
+                    predicted = 255;
+                }
+                pixel |= ((rowData[j] + predicted) & 0xFF) << shift;
+            }
+            rowPixels[i] = pixel;
+            // the previous row's entry is no longer needed once it
+            // has served as "up" and the next pixel's "upper-left"
+            prevRow[i] = pixel;
+            left = pixel;
+            upLeft = up;
+        }
+    }
+
+    private void ensureRowCapacity(int w, int rowLength) {
+        if (rowData.length < rowLength) {
+            rowData = new byte[rowLength];
+        }
+        if (rowPixels.length < w) {
+            rowPixels = new int[w];
+            prevRow = new int[w];
+        }
+    }
+
+    private static int readTPixel(RFBStream stream) throws IOException {
+        int r = stream.getU8();
+        int g = stream.getU8();
+        int b = stream.getU8();
+        return (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * A compact length is 1-3 bytes, 7 bits at a time (8 in the third
+     * byte), least significant first.
+     */
+    private static int readCompactLength(RFBStream stream) throws IOException {
+        int b = stream.getU8();
+        int length = b & 0x7F;
+        if ((b & 0x80) != 0) {
+            b = stream.getU8();
+            length |= (b & 0x7F) << 7;
+            if ((b & 0x80) != 0) {
+                length |= stream.getU8() << 14;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Read exactly "length" bytes of (possibly compressed) data.
+     */
+    private void readData(byte[] dst, int length) throws IOException, RFBException {
+        if (! compressed) {
+            stream.readInto(dst, 0, length);
+            return;
+        }
+        try {
+            int offset = 0;
+            while (offset < length) {
+                int n = inflater.inflate(dst, offset, length-offset);
+                offset += n;
+                if (n == 0) {
+                    if (inflater.needsInput()) {
+                        if (compressedRemaining == 0) {
+                            throw new RFBException("Tight data ended early");
+                        }
+                        feedInflater();
+                    } else if (inflater.finished() || inflater.needsDictionary()) {
+                        throw new RFBException("Tight zlib stream ended unexpectedly");
+                    }
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new RFBException("bad Tight data", e);
+        }
+    }
+
+    private void feedInflater() throws IOException {
+        int n = Math.min(compressedRemaining, input.length);
+        stream.readInto(input, 0, n);
+        compressedRemaining -= n;
+        inflater.setInput(input, 0, n);
+    }
+
+    /**
+     * Consume the rest of the rectangle's compressed data (typically
+     * the zlib sync-flush marker), which must not decompress to
+     * anything.
+     */
+    private void finishRect() throws IOException, RFBException {
+        try {
+            while (true) {
+                if (inflater.inflate(scratch, 0, scratch.length) > 0) {
+                    throw new RFBException("extra data at the end of a Tight rectangle");
+                }
+                if (compressedRemaining == 0) {
+                    break;
+                }
+                feedInflater();
+            }
+        } catch (DataFormatException e) {
+            throw new RFBException("bad Tight data", e);
+        }
+    }
+
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cafbit.valence.rfb;
+
+/**
+ * A handshake phase ran past its deadline.
+ */
+public class RFBTimeoutException extends RFBException {
+    private static final long serialVersionUID = -1286093657395840217L;
+
+    private int phase;
+
+    public RFBTimeoutException(int phase, Throwable e) {
+        super("Timed out waiting for the VNC server during "+
+            RFBConnection.getPhaseName(phase)+".", e);
+        this.phase = phase;
+    }
+
+    /**
+     * Return the handshake phase (RFBConnection.PHASE_*) which failed.
+     */
+    public int getPhase() {
+        return phase;
+    }
+
+}
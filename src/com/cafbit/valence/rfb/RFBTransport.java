@@ -0,0 +1,87 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cafbit.valence.rfb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The byte pipe under an RFBStream.  RFBSocketTransport is a plain
+ * blocking socket; RFBReactorTransport is a non-blocking SocketChannel
+ * serviced by a shared RFBReactor thread.  Either way, the reader sees
+ * a blocking InputStream, so the handshake and the decoders don't care
+ * which one they're running on.
+ */
+public abstract class RFBTransport {
+
+    private volatile Runnable onReceive = null;
+
+    public abstract InputStream getInputStream() throws IOException;
+
+    /**
+     * Return the channel that RFBBatchWriter flushes into.
+     */
+    public abstract WritableByteChannel getOutputChannel() throws IOException;
+
+    /**
+     * Set how long (in milliseconds) a read may block before failing
+     * with a SocketTimeoutException, or 0 to block forever.
+     */
+    public abstract void setReadTimeout(int timeout) throws IOException;
+    public abstract int getReadTimeout() throws IOException;
+
+    /**
+     * Return the number of bytes received so far, including any that
+     * were discarded.
+     */
+    public abstract long getBytesReceived();
+
+    /**
+     * Run "onReceive" whenever data arrives, on whichever thread
+     * receives it (the reader, or the reactor), or stop if it is null.
+     * It must be quick, and mustn't block.
+     */
+    public void setOnReceive(Runnable onReceive) {
+        this.onReceive = onReceive;
+    }
+
+    /**
+     * Called by subclasses after receiving data, holding no locks.
+     */
+    protected void received() {
+        Runnable listener = onReceive;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    public abstract void shutdownOutput() throws IOException;
+    public abstract void close() throws IOException;
+
+    /**
+     * If this transport can throw away incoming data without a thread
+     * of its own, start doing so, arrange for "onClosed" to be run
+     * if the server closes the connection (or it fails), and return
+     * true.  Otherwise return false, and the caller must keep reading.
+     */
+    public boolean discardInput(Runnable onClosed) {
+        return false;
+    }
+
+}
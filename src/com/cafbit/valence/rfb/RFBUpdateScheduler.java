@@ -0,0 +1,285 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cafbit.valence.rfb;
+
+/**
+ * Decides when to send FramebufferUpdateRequests, and for what region.
+ *
+ * Requests are incremental (except the first, or after
+ * requestFullUpdate()), and cover only the visible viewport.  At most
+ * maxOutstanding requests are in flight at once, which hides the round
+ * trip without letting updates pile up behind a slow link.  Requests
+ * are spaced at least one frame budget apart, and further apart if
+ * we're slow to decode updates or the link is slow to deliver them,
+ * based on smoothed measurements of recent updates.  While paused, no
+ * requests are sent at all.
+ *
+ * If the server supports continuous updates, polling is replaced by
+ * asking the server to push changes to the viewport as they happen;
+ * the region is re-sent when the viewport changes, and continuous
+ * updates are turned off while paused.
+ *
+ * The scheduler only makes decisions; RFBConnection sends the
+ * requests.  It is called from both the RFB thread and the receiving
+ * thread, so its methods are synchronized.
+ */
+public class RFBUpdateScheduler {
+
+    public static final int DEFAULT_MAX_OUTSTANDING = 2;
+    public static final long DEFAULT_FRAME_BUDGET = 33; // milliseconds
+    private static final long MAX_INTERVAL = 1000*1000000L; // 1 second
+    // leave the decoder some slack, so it doesn't fall behind
+    private static final float DECODE_HEADROOM = 1.25f;
+    // weight of the newest sample in the moving averages
+    private static final float SMOOTHING = 0.2f;
+    // don't believe transfer rates measured over less than this
+    private static final long MIN_READ_WAIT = 1000000L; // 1 ms
+
+    // kinds of request, as returned by takeRequest()
+    static final int REQUEST_FULL = 0;
+    static final int REQUEST_INCREMENTAL = 1;
+    static final int REQUEST_CONTINUOUS_ON = 2;
+    static final int REQUEST_CONTINUOUS_OFF = 3;
+
+    private int fbWidth;
+    private int fbHeight;
+    private int viewX, viewY, viewWidth, viewHeight;
+    private int maxOutstanding = DEFAULT_MAX_OUTSTANDING;
+    private long frameBudget = DEFAULT_FRAME_BUDGET * 1000000L;
+    private boolean paused = false;
+    private boolean fullUpdateNeeded = true;
+    private int outstanding = 0;
+    private long nextRequestTime = 0;
+    private long interval = frameBudget;
+    private boolean continuousSupported = false;
+    // whether we last told the server to push updates
+    private boolean continuousActive = false;
+    // whether the server's idea of the region is out of date
+    private boolean continuousStale = false;
+
+    // measurements (nanoseconds and bytes)
+    private float decodeAverage = 0.0f;
+    private float bytesAverage = 0.0f;
+    private float throughputAverage = 0.0f; // bytes per nanosecond
+    private long requests = 0;
+    private long updates = 0;
+
+    RFBUpdateScheduler(int fbWidth, int fbHeight) {
+        this.fbWidth = fbWidth;
+        this.fbHeight = fbHeight;
+        this.viewWidth = fbWidth;
+        this.viewHeight = fbHeight;
+    }
+
+    /**
+     * Limit requests to the given region of the framebuffer.
+     */
+    public synchronized void setViewport(int x, int y, int w, int h) {
+        int x2 = Math.min(x+w, fbWidth);
+        int y2 = Math.min(y+h, fbHeight);
+        viewX = Math.max(0, x);
+        viewY = Math.max(0, y);
+        viewWidth = Math.max(0, x2-viewX);
+        viewHeight = Math.max(0, y2-viewY);
+        continuousStale = true;
+    }
+
+    /**
+     * The server has resized the desktop.  The viewport is reset to
+     * the whole screen, and the next request is for all of it.
+     */
+    public synchronized void setFramebufferSize(int width, int height) {
+        fbWidth = width;
+        fbHeight = height;
+        setViewport(0, 0, width, height);
+        fullUpdateNeeded = true;
+    }
+
+    /**
+     * The server has sent EndOfContinuousUpdates.  The first one says
+     * that continuous updates are supported; later ones confirm that
+     * they've been turned off.
+     */
+    synchronized void onEndOfContinuousUpdates() {
+        if (! continuousSupported) {
+            continuousSupported = true;
+        } else {
+            continuousActive = false;
+        }
+    }
+
+    public synchronized void setMaxOutstanding(int maxOutstanding) {
+        this.maxOutstanding = Math.max(1, maxOutstanding);
+    }
+
+    /**
+     * Set the shortest time, in milliseconds, between requests.
+     */
+    public synchronized void setFrameBudget(long milliseconds) {
+        this.frameBudget = milliseconds * 1000000L;
+        computeInterval();
+    }
+
+    /**
+     * Stop sending requests, e.g. while nobody can see the screen.
+     */
+    public synchronized void pause() {
+        paused = true;
+    }
+
+    public synchronized void resume() {
+        paused = false;
+    }
+
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Make the next request non-incremental.
+     */
+    public synchronized void requestFullUpdate() {
+        fullUpdateNeeded = true;
+    }
+
+    /**
+     * Decide whether a request should be sent now.  If so, fill in
+     * "request" with x, y, width, height, and the kind of request
+     * (REQUEST_*), and return true.
+     */
+    synchronized boolean takeRequest(long now, int[] request) {
+        if (paused || ! isVisible()) {
+            if (continuousActive) {
+                continuousActive = false;
+                return fill(request, REQUEST_CONTINUOUS_OFF);
+            }
+            return false;
+        }
+        if (continuousSupported && ! fullUpdateNeeded) {
+            if (continuousActive && ! continuousStale) {
+                return false;
+            }
+            continuousActive = true;
+            continuousStale = false;
+            return fill(request, REQUEST_CONTINUOUS_ON);
+        }
+        if ((outstanding >= maxOutstanding) || (now < nextRequestTime)) {
+            return false;
+        }
+        int kind = fullUpdateNeeded ? REQUEST_FULL : REQUEST_INCREMENTAL;
+        fullUpdateNeeded = false;
+        outstanding++;
+        requests++;
+        nextRequestTime = now + interval;
+        return fill(request, kind);
+    }
+
+    private boolean fill(int[] request, int kind) {
+        request[0] = viewX;
+        request[1] = viewY;
+        request[2] = viewWidth;
+        request[3] = viewHeight;
+        request[4] = kind;
+        return true;
+    }
+
+    /**
+     * Return the number of milliseconds until takeRequest() might
+     * succeed, or -1 if nothing will change until an update arrives
+     * or the scheduler is changed (resumed, etc.).
+     */
+    synchronized long getDelay(long now) {
+        if (paused || ! isVisible()) {
+            return continuousActive ? 0 : -1;
+        }
+        if (continuousSupported && ! fullUpdateNeeded) {
+            return (continuousActive && ! continuousStale) ? -1 : 0;
+        }
+        if (outstanding >= maxOutstanding) {
+            return -1;
+        }
+        long delay = nextRequestTime - now;
+        if (delay <= 0) {
+            return 0;
+        }
+        return (delay + 999999L) / 1000000L;
+    }
+
+    private boolean isVisible() {
+        return (viewWidth > 0) && (viewHeight > 0);
+    }
+
+    /**
+     * Record a FramebufferUpdate.  "decodeTime" is the time we spent
+     * working on it, and "readWait" is the time spent waiting for its
+     * "bytes" to arrive.
+     */
+    synchronized void onUpdateReceived(long decodeTime, long readWait, long bytes) {
+        updates++;
+        if (outstanding > 0) {
+            outstanding--;
+        }
+        if (updates == 1) {
+            decodeAverage = decodeTime;
+            bytesAverage = bytes;
+        } else {
+            decodeAverage += SMOOTHING * (decodeTime - decodeAverage);
+            bytesAverage += SMOOTHING * (bytes - bytesAverage);
+        }
+        // only waits long enough to time are evidence about the link
+        if (readWait >= MIN_READ_WAIT) {
+            float throughput = (float)bytes / (float)readWait;
+            if (throughputAverage == 0.0f) {
+                throughputAverage = throughput;
+            } else {
+                throughputAverage += SMOOTHING * (throughput - throughputAverage);
+            }
+        }
+        computeInterval();
+    }
+
+    private void computeInterval() {
+        float i = frameBudget;
+        if (decodeAverage * DECODE_HEADROOM > i) {
+            i = decodeAverage * DECODE_HEADROOM;
+        }
+        if (throughputAverage > 0.0f) {
+            float transfer = bytesAverage / throughputAverage;
+            if (transfer > i) {
+                i = transfer;
+            }
+        }
+        interval = Math.min((long)i, MAX_INTERVAL);
+    }
+
+    /**
+     * Return the current spacing between requests, in milliseconds.
+     */
+    public synchronized long getInterval() {
+        return interval / 1000000L;
+    }
+
+    public synchronized String toString() {
+        return String.format(
+            "requests=%d updates=%d continuous=%b interval=%dms decode=%.1fms bytes=%.0f throughput=%.0fKB/s",
+            requests, updates, continuousActive, interval/1000000L,
+            decodeAverage/1e6, bytesAverage, throughputAverage*1e6
+        );
+    }
+
+}
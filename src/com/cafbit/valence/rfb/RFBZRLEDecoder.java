@@ -0,0 +1,261 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cafbit.valence.rfb;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * ZRLE encoding: the rectangle is divided into 64x64 tiles, each of
+ * which is solid, raw, palettized, and/or run-length encoded, and the
+ * whole thing is zlib-compressed.  The zlib stream spans every ZRLE
+ * rectangle of the connection, so there is exactly one Inflater, which
+ * lives as long as this decoder does.
+ *
+ * Compressed data is streamed through a fixed input buffer, and each
+ * tile is decoded into preallocated scratch arrays before being stored
+ * in the framebuffer, so decoding allocates nothing.
+ *
+ * With RFBPixelFormat.DEFAULT, a CPIXEL is the low three bytes of a
+ * little-endian pixel: blue, green, red.
+ */
+class RFBZRLEDecoder extends RFBRectDecoder {
+
+    private static final int TILE_SIZE = 64;
+    private static final int INPUT_SIZE = 4096;
+    private static final int OUTPUT_SIZE = 16384;
+
+    private Inflater inflater = new Inflater();
+    private byte[] input = new byte[INPUT_SIZE];
+    private byte[] output = new byte[OUTPUT_SIZE];
+    private int outPos = 0;
+    private int outLimit = 0;
+    // compressed bytes of the current rectangle not yet read
+    private int compressedRemaining = 0;
+    private RFBStream stream;
+
+    // tile scratch
+    private int[] tile = new int[TILE_SIZE*TILE_SIZE];
+    private int[] palette = new int[128];
+
+    @Override
+    public int getEncoding() {
+        return RFBDecoder.ENCODING_ZRLE;
+    }
+
+    @Override
+    void decode(RFBStream stream, RFBFramebuffer fb, int x, int y, int w, int h) throws IOException, RFBException {
+        int length = stream.getS32();
+        if (length < 0) {
+            throw new RFBException("bad ZRLE length: "+(length & 0xFFFFFFFFL));
+        }
+        this.stream = stream;
+        this.compressedRemaining = length;
+        try {
+            for (int ty=y; ty<y+h; ty+=TILE_SIZE) {
+                int th = Math.min(TILE_SIZE, y+h-ty);
+                for (int tx=x; tx<x+w; tx+=TILE_SIZE) {
+                    int tw = Math.min(TILE_SIZE, x+w-tx);
+                    decodeTile(tw, th);
+                    for (int row=0; row<th; row++) {
+                        fb.putRow(tx, ty+row, tile, row*tw, tw);
+                    }
+                }
+            }
+            finishRect();
+        } finally {
+            this.stream = null;
+        }
+    }
+
+    @Override
+    void close() {
+        inflater.end();
+    }
+
+    private void decodeTile(int tw, int th) throws IOException, RFBException {
+        int n = tw*th;
+        int subencoding = readU8();
+        if (subencoding == 0) {
+            // raw
+            for (int i=0; i<n; i++) {
+                tile[i] = readCPixel();
+            }
+        } else if (subencoding == 1) {
+            // solid
+            Arrays.fill(tile, 0, n, readCPixel());
+        } else if (subencoding <= 16) {
+            // packed palette
+            readPalette(subencoding);
+            decodePacked(tw, th, subencoding);
+        } else if (subencoding == 128) {
+            // plain RLE
+            int i = 0;
+            while (i < n) {
+                int pixel = readCPixel();
+                int run = readRunLength(n-i);
+                Arrays.fill(tile, i, i+run, pixel);
+                i += run;
+            }
+        } else if (subencoding >= 130) {
+            // palette RLE
+            readPalette(subencoding-128);
+            int i = 0;
+            while (i < n) {
+                int index = readU8();
+                if ((index & 0x80) == 0) {
+                    tile[i++] = palette[index];
+                } else {
+                    int run = readRunLength(n-i);
+                    Arrays.fill(tile, i, i+run, palette[index & 0x7F]);
+                    i += run;
+                }
+            }
+        } else {
+            throw new RFBException("invalid ZRLE subencoding: "+subencoding);
+        }
+    }
+
+    private void readPalette(int size) throws IOException, RFBException {
+        for (int i=0; i<size; i++) {
+            palette[i] = readCPixel();
+        }
+    }
+
+    /**
+     * Palette indices are packed 1, 2, or 4 bits per pixel, most
+     * significant bits first, with each row starting on a byte
+     * boundary.
+     */
+    private void decodePacked(int tw, int th, int paletteSize) throws IOException, RFBException {
+        int bits = (paletteSize == 2) ? 1 : ((paletteSize <= 4) ? 2 : 4);
+        int mask = (1 << bits) - 1;
+        int i = 0;
+        for (int row=0; row<th; row++) {
+            int b = 0;
+            int nbits = 0;
+            for (int col=0; col<tw; col++) {
+                if (nbits == 0) {
+                    b = readU8();
+                    nbits = 8;
+                }
+                nbits -= bits;
+                tile[i++] = palette[(b >> nbits) & mask];
+            }
+        }
+    }
+
+    /**
+     * A run length is a sequence of bytes, each 255 except the last,
+     * whose sum is the length minus one.
+     */
+    private int readRunLength(int max) throws IOException, RFBException {
+        int length = 1;
+        int b;
+        do {
+            b = readU8();
+            length += b;
+        } while ((b == 255) && (length <= max));
+        if (length > max) {
+            throw new RFBException("ZRLE run overflows the tile");
+        }
+        return length;
+    }
+
+    private int readU8() throws IOException, RFBException {
+        if (outPos == outLimit) {
+            inflate();
+        }
+        return output[outPos++] & 0xFF;
+    }
+
+    private int readCPixel() throws IOException, RFBException {
+        if (outLimit - outPos >= 3) {
+            int pixel =
+                (output[outPos] & 0xFF) |
+                ((output[outPos+1] & 0xFF) << 8) |
+                ((output[outPos+2] & 0xFF) << 16);
+            outPos += 3;
+            return pixel;
+        }
+        return readU8() | (readU8() << 8) | (readU8() << 16);
+    }
+
+    /**
+     * Refill the output buffer, feeding the inflater from the current
+     * rectangle's compressed data as needed.
+     */
+    private void inflate() throws IOException, RFBException {
+        outPos = 0;
+        outLimit = 0;
+        try {
+            while (outLimit == 0) {
+                if (inflater.needsInput()) {
+                    if (compressedRemaining == 0) {
+                        throw new RFBException("ZRLE data ended early");
+                    }
+                    feedInflater();
+                } else if (inflater.finished() || inflater.needsDictionary()) {
+                    throw new RFBException("ZRLE zlib stream ended unexpectedly");
+                }
+                outLimit = inflater.inflate(output, 0, output.length);
+            }
+        } catch (DataFormatException e) {
+            throw new RFBException("bad ZRLE data", e);
+        }
+    }
+
+    private void feedInflater() throws IOException {
+        int n = Math.min(compressedRemaining, input.length);
+        stream.readInto(input, 0, n);
+        compressedRemaining -= n;
+        inflater.setInput(input, 0, n);
+    }
+
+    /**
+     * Consume the rest of the rectangle's compressed data (typically
+     * the zlib sync-flush marker), which must not decompress to
+     * anything we haven't used.  If the tiles ended exactly at the end
+     * of the output buffer, the inflater may still hold some of the
+     * rectangle even after all of it has been read.
+     */
+    private void finishRect() throws IOException, RFBException {
+        try {
+            while (outPos == outLimit) {
+                if (inflater.needsInput()) {
+                    if (compressedRemaining == 0) {
+                        break;
+                    }
+                    feedInflater();
+                } else if (inflater.finished() || inflater.needsDictionary()) {
+                    break;
+                }
+                outPos = 0;
+                outLimit = inflater.inflate(output, 0, output.length);
+            }
+        } catch (DataFormatException e) {
+            throw new RFBException("bad ZRLE data", e);
+        }
+        if (outPos != outLimit) {
+            throw new RFBException("extra data at the end of a ZRLE rectangle");
+        }
+    }
+
+}
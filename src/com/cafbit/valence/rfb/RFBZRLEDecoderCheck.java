@@ -0,0 +1,164 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cafbit.valence.rfb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+/**
+ * Checks the end of a ZRLE rectangle when its decompressed data ends
+ * exactly at the end of the decoder's output buffer, so the inflater
+ * may still be holding the rest of the rectangle (the sync-flush
+ * marker, or data that shouldn't be there):
+ *
+ * - a well-formed rectangle decodes, and so does the one after it;
+ * - a rectangle with one byte more than its tiles need is rejected,
+ *   rather than the byte being taken as the start of the next one.
+ *
+ * Sync-flushed zlib data needs a Java 7 Deflater, so this runs on the
+ * desktop rather than on a device.  Exits with status 1 on the first
+ * failed check.
+ *
+ * Usage: RFBZRLEDecoderCheck
+ */
+public class RFBZRLEDecoderCheck {
+
+    // RFBZRLEDecoder.OUTPUT_SIZE
+    private static final int OUTPUT_SIZE = 16384;
+    private static final int INPUT_SIZE = 4096;
+    // four 64x64 tiles
+    private static final int RECT_WIDTH = 64;
+    private static final int RECT_HEIGHT = 256;
+    // plain-RLE runs per tile: each costs 4 bytes, plus the subencoding
+    // byte, so 4 + 4*(4044+17+17+17) bytes fill the output buffer exactly
+    private static final int[] RUNS = { 4044, 17, 17, 17 };
+    private static final int[] COLOURS = {
+        0x102030, 0x405060, 0x708090, 0xA0B0C0, 0xD0E0F0
+    };
+    private static final int SOLID_COLOUR = 0x123456;
+
+    public static void main(String[] args) throws Exception {
+        int[] expected = new int[RECT_WIDTH*RECT_HEIGHT];
+        byte[] tiles = encodeTiles(expected);
+        check(tiles.length == OUTPUT_SIZE, "the tiles fill one output buffer");
+
+        // a well-formed rectangle, then a small solid one
+        Deflater deflater = new Deflater();
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        byte[] first = compress(deflater, tiles);
+        check(first.length <= INPUT_SIZE, "the rectangle is fed to the inflater at once");
+        writeRect(data, first);
+        writeRect(data, compress(deflater, new byte[] {
+            1, (byte)SOLID_COLOUR, (byte)(SOLID_COLOUR >> 8), (byte)(SOLID_COLOUR >> 16)
+        }));
+        deflater.end();
+
+        RFBStream stream = new RFBStream(new ByteArrayInputStream(data.toByteArray()), new ByteArrayOutputStream());
+        RFBFramebuffer fb = new RFBFramebuffer(RECT_WIDTH*2, RECT_HEIGHT);
+        RFBZRLEDecoder decoder = new RFBZRLEDecoder();
+        decoder.decode(stream, fb, 0, 0, RECT_WIDTH, RECT_HEIGHT);
+        decoder.decode(stream, fb, RECT_WIDTH, 0, 16, 16);
+        decoder.close();
+        for (int y=0; y<RECT_HEIGHT; y++) {
+            for (int x=0; x<RECT_WIDTH; x++) {
+                check((fb.getPixel(x, y) & 0xFFFFFF) == expected[y*RECT_WIDTH + x],
+                    "pixel ("+x+","+y+") of the full-buffer rectangle");
+            }
+        }
+        check((fb.getPixel(RECT_WIDTH, 0) & 0xFFFFFF) == SOLID_COLOUR,
+            "the rectangle after a full-buffer one");
+
+        // the same tiles and one extra byte
+        deflater = new Deflater();
+        byte[] extra = new byte[tiles.length+1];
+        System.arraycopy(tiles, 0, extra, 0, tiles.length);
+        data = new ByteArrayOutputStream();
+        writeRect(data, compress(deflater, extra));
+        deflater.end();
+        stream = new RFBStream(new ByteArrayInputStream(data.toByteArray()), new ByteArrayOutputStream());
+        decoder = new RFBZRLEDecoder();
+        boolean rejected = false;
+        try {
+            decoder.decode(stream, fb, 0, 0, RECT_WIDTH, RECT_HEIGHT);
+        } catch (RFBException e) {
+            rejected = true;
+        }
+        decoder.close();
+        check(rejected, "extra data after a full output buffer is rejected");
+
+        System.out.println("ok");
+    }
+
+    /**
+     * Plain-RLE tiles with runs of at most 255 pixels (one run-length
+     * byte), in a handful of colours so that they compress well.
+     */
+    private static byte[] encodeTiles(int[] expected) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int colour = 0;
+        for (int t=0; t<RUNS.length; t++) {
+            int n = 64*64;
+            int runs = RUNS[t];
+            out.write(128);
+            int i = 0;
+            for (int r=0; r<runs; r++) {
+                // runs of 255 or of single pixels, and the rest
+                int run = (r < runs-1) ? (((runs-1)*255 < n) ? 255 : 1) : n-i;
+                int pixel = COLOURS[colour++ % COLOURS.length];
+                out.write(pixel & 0xFF);
+                out.write((pixel >> 8) & 0xFF);
+                out.write((pixel >> 16) & 0xFF);
+                out.write(run-1);
+                for (int k=0; k<run; k++, i++) {
+                    expected[t*n + i] = pixel;
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] compress(Deflater deflater, byte[] data) {
+        deflater.setInput(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        do {
+            n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+            out.write(buffer, 0, n);
+        } while (n == buffer.length);
+        return out.toByteArray();
+    }
+
+    private static void writeRect(ByteArrayOutputStream data, byte[] zlib) throws IOException {
+        DataOutputStream out = new DataOutputStream(data);
+        out.writeInt(zlib.length);
+        out.write(zlib);
+        out.flush();
+    }
+
+    private static void check(boolean condition, String description) {
+        if (! condition) {
+            System.out.println("FAILED: "+description);
+            System.exit(1);
+        }
+    }
+
+}
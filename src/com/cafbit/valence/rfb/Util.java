@@ -17,6 +17,10 @@
 
 package com.cafbit.valence.rfb;
 
+import java.lang.reflect.Method;
+
+import android.os.Debug;
+
 /**
  * Various mundate utility methods.
  * @author simmons
@@ -61,4 +65,47 @@ public class Util {
         sb.append('\n');
     }
 
+    private static boolean lookedUpThreadMXBean = false;
+    private static Object threadMXBean = null;
+    private static Method getThreadAllocatedBytes = null;
+    private static boolean allocCounting = false;
+
+    /**
+     * Return the number of bytes allocated so far by the current
+     * thread, for benchmarks.  On a desktop VM this asks the
+     * management bean (looked up reflectively, since Android doesn't
+     * have it); on Android it uses the Debug allocation counters,
+     * which are started on the first call.  Returns -1 if neither
+     * is available.
+     */
+    public static synchronized long getThreadAllocatedBytes() {
+        if (! lookedUpThreadMXBean) {
+            lookedUpThreadMXBean = true;
+            try {
+                Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+                threadMXBean = factory.getMethod("getThreadMXBean").invoke(null);
+                Class<?> beanClass = Class.forName("com.sun.management.ThreadMXBean");
+                getThreadAllocatedBytes = beanClass.getMethod("getThreadAllocatedBytes", long.class);
+            } catch (Exception e) {
+                threadMXBean = null;
+            }
+        }
+        if (threadMXBean != null) {
+            try {
+                return (Long)getThreadAllocatedBytes.invoke(threadMXBean, Thread.currentThread().getId());
+            } catch (Exception e) {
+                return -1;
+            }
+        }
+        try {
+            if (! allocCounting) {
+                Debug.startAllocCounting();
+                allocCounting = true;
+            }
+            return Debug.getThreadAllocSize();
+        } catch (Throwable t) {
+            return -1;
+        }
+    }
+
 }
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cafbit.valence;
+
+import static com.cafbit.valence.rfb.Checks.check;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import com.cafbit.valence.rfb.FakeRFBServer;
+import com.cafbit.valence.rfb.RFBConnection;
+import com.cafbit.valence.rfb.RFBSecurityNone;
+
+/**
+ * Checks the screen update path which ValenceActivity drives, against
+ * a FakeRFBServer, which records each FramebufferUpdateRequest:
+ *
+ * - connecting asks for the whole screen;
+ * - pausing (onPause) stops the requests;
+ * - resuming (onResume) with the ScreenViewport around the pointer
+ *   asks for incremental updates of just that viewport;
+ * - the viewport is only re-sent once the pointer leaves its margin.
+ *
+ * The connection calls are the ones RFBThread makes for
+ * MSG_PAUSE_UPDATES, MSG_RESUME_UPDATES and MSG_SET_VIEWPORT.  Exits
+ * with status 1 on the first failed check.
+ *
+ * Usage: ScreenUpdateCheck
+ */
+public class ScreenUpdateCheck {
+
+    private static final int SCREEN_WIDTH = 1920;
+    private static final int SCREEN_HEIGHT = 1080;
+    private static final int VIEW_WIDTH = 480;
+    private static final int VIEW_HEIGHT = 800;
+    // comfortably longer than the scheduler's frame budget
+    private static final long SETTLE_TIME = 200; // milliseconds
+
+    public static void main(String[] args) throws Exception {
+        checkViewport();
+
+        FakeRFBServer server = new FakeRFBServer(SCREEN_WIDTH, SCREEN_HEIGHT);
+        server.start();
+        final RFBConnection conn = new RFBConnection(InetAddress.getByName("127.0.0.1"), server.getPort(), new RFBSecurityNone());
+        conn.setFramebufferEnabled(true);
+        conn.connect();
+        Thread receiver = new Thread("checkrecv") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        conn.processServerMessage();
+                    }
+                } catch (Exception e) {
+                    // disconnected
+                }
+            }
+        };
+        receiver.setDaemon(true);
+        receiver.start();
+
+        try {
+            // connecting asks for the whole screen
+            int[] request = server.awaitRequest(0);
+            check((request[0] == 0) && (request[1] == 0) && (request[2] == 0) &&
+                (request[3] == SCREEN_WIDTH) && (request[4] == SCREEN_HEIGHT),
+                "first request is a full update of the screen");
+
+            // onPause
+            conn.pauseUpdates();
+            int paused = server.getRequestCount();
+            pump(conn);
+            check(server.getRequestCount() == paused, "no requests while paused");
+
+            // onResume, with the pointer near the top-right corner
+            ScreenViewport viewport = new ScreenViewport();
+            viewport.reset();
+            check(viewport.update(SCREEN_WIDTH, SCREEN_HEIGHT, VIEW_WIDTH, VIEW_HEIGHT, 1900.0f, 10.0f),
+                "resuming sends a viewport");
+            conn.setViewport(viewport.getRequestX(), viewport.getRequestY(),
+                viewport.getRequestWidth(), viewport.getRequestHeight());
+            conn.resumeUpdates();
+            pump(conn);
+            request = server.awaitRequest(paused);
+            check((request[0] == 1) &&
+                (request[1] == viewport.getRequestX()) && (request[2] == viewport.getRequestY()) &&
+                (request[3] == viewport.getRequestWidth()) && (request[4] == viewport.getRequestHeight()),
+                "resumed requests are incremental, for the viewport");
+            check(request[1] + request[3] == SCREEN_WIDTH, "the viewport is clamped to the screen");
+        } finally {
+            conn.disconnect();
+        }
+        System.out.println("ok");
+    }
+
+    /**
+     * Check ScreenViewport's geometry by itself.
+     */
+    private static void checkViewport() {
+        ScreenViewport viewport = new ScreenViewport();
+        check(! viewport.update(SCREEN_WIDTH, SCREEN_HEIGHT, 0, 0, 100.0f, 100.0f),
+            "no viewport before layout");
+        check(viewport.update(SCREEN_WIDTH, SCREEN_HEIGHT, VIEW_WIDTH, VIEW_HEIGHT, 960.0f, 540.0f),
+            "first layout sends a viewport");
+        check((viewport.getVisibleX() == 960-VIEW_WIDTH/2) && (viewport.getVisibleY() == 540-VIEW_HEIGHT/2),
+            "the view is centered on the pointer");
+        check(! viewport.update(SCREEN_WIDTH, SCREEN_HEIGHT, VIEW_WIDTH, VIEW_HEIGHT, 1000.0f, 560.0f),
+            "a small move stays within the margin");
+        check(viewport.update(SCREEN_WIDTH, SCREEN_HEIGHT, VIEW_WIDTH, VIEW_HEIGHT, 100.0f, 540.0f),
+            "a large move sends a new viewport");
+        check(viewport.getVisibleX() == 0, "the view stops at the left edge");
+        check(viewport.update(1280, 720, VIEW_WIDTH, VIEW_HEIGHT, 100.0f, 540.0f),
+            "a desktop resize sends a new viewport");
+        check(viewport.getVisibleHeight() == 720, "the view is no taller than the desktop");
+    }
+
+    /**
+     * Call scheduleUpdates() as RFBThread would, for a while.
+     */
+    private static void pump(RFBConnection conn) throws IOException, InterruptedException {
+        long end = System.currentTimeMillis() + SETTLE_TIME;
+        while (System.currentTimeMillis() < end) {
+            long delay = conn.scheduleUpdates();
+            Thread.sleep((delay < 0) ? 5 : Math.max(1, delay));
+        }
+    }
+
+}
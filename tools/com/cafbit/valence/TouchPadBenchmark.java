@@ -0,0 +1,234 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cafbit.valence;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.view.MotionEvent;
+import android.view.View;
+
+import com.cafbit.valence.TouchPadView.OnTouchPadEventListener;
+import com.cafbit.valence.rfb.FakeRFBServer;
+import com.cafbit.valence.rfb.RFBConnection;
+import com.cafbit.valence.rfb.RFBSecurityNone;
+import com.cafbit.valence.rfb.Util;
+
+/**
+ * Replays a recorded gesture trace through the whole input path --
+ * TouchPadHandler, the event ring, RFBSendThread's batch sending and
+ * the RFBConnection -- to a FakeRFBServer, and reports the bytes
+ * allocated per MotionEvent.  A sustained drag should allocate
+ * nothing, so anything above zero here is a regression.
+ *
+ * Usage: TouchPadBenchmark [trace]
+ *
+ * A trace has one MotionEvent per line: "down", "move" or "up", then
+ * one or more "time x y" samples.  All but the last sample of a line
+ * are historical.  With no arguments, a synthetic trace of a tap, a
+ * long drag, and a plain move is replayed instead.
+ */
+public class TouchPadBenchmark {
+
+    private static final float DPI = 160.0f;
+    private static final int FRAME_TIME = 16; // milliseconds
+    private static final int MAX_HISTORY = 8;
+    // enough for the JIT, and the reflection behind the allocation
+    // counter, to settle down
+    private static final int WARMUP_PASSES = 20;
+    private static final int PASSES = 10;
+
+    public static void main(String[] args) throws Exception {
+        List<MotionEvent> trace;
+        if (args.length == 0) {
+            trace = syntheticTrace();
+        } else {
+            trace = readTrace(args[0]);
+        }
+
+        FakeRFBServer server = new FakeRFBServer(1920, 1080);
+        server.start();
+        RFBConnection conn = new RFBConnection(InetAddress.getByName("127.0.0.1"), server.getPort(), new RFBSecurityNone());
+        conn.connect();
+
+        try {
+            for (int i=0; i<WARMUP_PASSES; i++) {
+                replay(trace, conn);
+            }
+            long bytes = Util.getThreadAllocatedBytes();
+            if (bytes < 0) {
+                System.out.println("allocation counting is not available here.");
+                return;
+            }
+            // reading the counter allocates a little by itself
+            long overhead = Util.getThreadAllocatedBytes() - bytes;
+            long worst = 0;
+            long total = 0;
+            for (int i=0; i<PASSES; i++) {
+                long allocated = replay(trace, conn) - overhead;
+                total += allocated;
+                if (allocated > worst) {
+                    worst = allocated;
+                }
+            }
+            System.out.printf(
+                "%d MotionEvents/pass: allocated %.2f bytes/event (worst pass %d bytes), %d bytes sent\n",
+                trace.size(), (double)total / (PASSES * trace.size()), worst, server.getBytesReceived()
+            );
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Replay the trace through a fresh TouchPadHandler, and return the
+     * bytes allocated while doing so.
+     */
+    private static long replay(List<MotionEvent> trace, RFBConnection conn) throws IOException {
+        // the ring must be created on the thread which fills it
+        final RFBEventRing ring = new RFBEventRing(128);
+        RFBSendThread sender = new RFBSendThread(null, conn, ring);
+        TouchPadHandler handler = new TouchPadHandler(new View(), DPI, DPI);
+        handler.setOnTouchPadEventListener(new OnTouchPadEventListener() {
+            // as in ValenceActivity
+            @Override
+            public void onTouchPadEvent(TouchPadEvent tpe) {
+                ring.offerPointer(
+                    tpe.dt, tpe.dx, tpe.dy,
+                    tpe.button1, tpe.button2,
+                    tpe.sx, tpe.sy,
+                    tpe.fling
+                );
+            }
+            @Override
+            public void onTouchPadBatchBegin() {
+                ring.beginBatch();
+            }
+            @Override
+            public void onTouchPadBatchEnd() {
+                ring.endBatch();
+            }
+        });
+
+        int n = trace.size();
+        long start = Util.getThreadAllocatedBytes();
+        for (int i=0; i<n; i++) {
+            handler.onTouchEvent(trace.get(i));
+            // the sender would wake up for each burst
+            sender.sendBatch();
+        }
+        return Util.getThreadAllocatedBytes() - start;
+    }
+
+    //////////////////////////////////////////////////////////////////////
+    // traces
+    //////////////////////////////////////////////////////////////////////
+
+    /**
+     * A tap, then a four second drag, then a two second move.  Each
+     * move carries between zero and MAX_HISTORY historical samples.
+     */
+    private static List<MotionEvent> syntheticTrace() {
+        List<MotionEvent> trace = new ArrayList<MotionEvent>();
+        long t = 1000;
+        float x = 200.0f, y = 200.0f;
+
+        // tap...
+        trace.add(MotionEvent.obtain(t, t, MotionEvent.ACTION_DOWN, x, y, 0));
+        trace.add(MotionEvent.obtain(t, t+80, MotionEvent.ACTION_UP, x, y, 0));
+        // ...then touch again right away to drag
+        t += 150;
+        t = gesture(trace, t, x, y, 4000, 5.0f);
+        t += 1000;
+        gesture(trace, t, x, y, 2000, 3.0f);
+        return trace;
+    }
+
+    private static long gesture(List<MotionEvent> trace, long t, float x, float y, int duration, float radius) {
+        long downTime = t;
+        trace.add(MotionEvent.obtain(downTime, t, MotionEvent.ACTION_DOWN, x, y, 0));
+        int frame = 0;
+        for (long end = t + duration; t < end; frame++) {
+            // sweep around a circle, so that every direction is covered
+            int samples = (frame % (MAX_HISTORY+1)) + 1;
+            MotionEvent me = null;
+            for (int i=0; i<samples; i++) {
+                long st = t + (FRAME_TIME * (i+1)) / samples;
+                double angle = st / 500.0;
+                float sx = x + (float)(Math.cos(angle) * radius * (st - downTime) / 100.0);
+                float sy = y + (float)(Math.sin(angle) * radius * (st - downTime) / 100.0);
+                if (me == null) {
+                    me = MotionEvent.obtain(downTime, st, MotionEvent.ACTION_MOVE, sx, sy, 0);
+                } else {
+                    me.addBatch(st, sx, sy, 1.0f, 1.0f, 0);
+                }
+            }
+            trace.add(me);
+            t += FRAME_TIME;
+        }
+        trace.add(MotionEvent.obtain(downTime, t, MotionEvent.ACTION_UP, x, y, 0));
+        return t;
+    }
+
+    private static List<MotionEvent> readTrace(String filename) throws IOException {
+        List<MotionEvent> trace = new ArrayList<MotionEvent>();
+        BufferedReader reader = new BufferedReader(new FileReader(filename));
+        try {
+            long downTime = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split("\\s+");
+                if ((fields.length < 4) || fields[0].startsWith("#")) {
+                    continue;
+                }
+                int action;
+                if (fields[0].equals("down")) {
+                    action = MotionEvent.ACTION_DOWN;
+                    downTime = Long.parseLong(fields[1]);
+                } else if (fields[0].equals("up")) {
+                    action = MotionEvent.ACTION_UP;
+                } else if (fields[0].equals("move")) {
+                    action = MotionEvent.ACTION_MOVE;
+                } else {
+                    throw new IOException("unknown action: "+fields[0]);
+                }
+                MotionEvent me = null;
+                for (int i=1; i+2<fields.length; i+=3) {
+                    long t = Long.parseLong(fields[i]);
+                    float x = Float.parseFloat(fields[i+1]);
+                    float y = Float.parseFloat(fields[i+2]);
+                    if (me == null) {
+                        me = MotionEvent.obtain(downTime, t, action, x, y, 0);
+                    } else {
+                        me.addBatch(t, x, y, 1.0f, 1.0f, 0);
+                    }
+                }
+                trace.add(me);
+            }
+        } finally {
+            reader.close();
+        }
+        return trace;
+    }
+
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cafbit.valence.rfb;
+
+/**
+ * The assertion shared by the check programs in this folder.
+ */
+public class Checks {
+
+    private Checks() {
+    }
+
+    /**
+     * Report a failed check and exit with status 1.
+     */
+    public static void check(boolean condition, String description) {
+        if (! condition) {
+            System.out.println("FAILED: "+description);
+            System.exit(1);
+        }
+    }
+
+}
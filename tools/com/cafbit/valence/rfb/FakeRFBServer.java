@@ -0,0 +1,223 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cafbit.valence.rfb;
+
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Just enough of an RFB 3.8 server, on the loopback interface, for the
+ * check programs to connect an RFBConnection to.  It accepts one
+ * connection with no security, then reads the client's messages:
+ *
+ * - each FramebufferUpdateRequest is recorded, and answered with an
+ *   empty FramebufferUpdate after the answer delay, unless the server
+ *   has been told to stay silent;
+ * - everything else is discarded, but counted in getBytesReceived().
+ */
+public class FakeRFBServer extends Thread {
+
+    private static final long REQUEST_TIMEOUT = 5000; // milliseconds
+
+    private int width;
+    private int height;
+    private ServerSocket serverSocket;
+    private volatile long answerDelay = 0;
+    private volatile boolean silent = false;
+    private volatile long bytesReceived = 0;
+    // incremental, x, y, width, height
+    private List<int[]> requests = new ArrayList<int[]>();
+
+    public FakeRFBServer(int width, int height) throws IOException {
+        this.width = width;
+        this.height = height;
+        serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        setName("fakeserver");
+        setDaemon(true);
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Wait this long (in milliseconds) before answering each request.
+     */
+    public void setAnswerDelay(long answerDelay) {
+        this.answerDelay = answerDelay;
+    }
+
+    /**
+     * Stop (or resume) answering requests, as a hung server would.
+     */
+    public void setSilent(boolean silent) {
+        this.silent = silent;
+    }
+
+    /**
+     * Return the number of bytes the client has sent since the
+     * handshake.
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public synchronized int getRequestCount() {
+        return requests.size();
+    }
+
+    /**
+     * Wait for request number "index" (from 0), and return it as
+     * { incremental, x, y, width, height }.
+     */
+    public synchronized int[] awaitRequest(int index) throws InterruptedException {
+        long end = System.currentTimeMillis() + REQUEST_TIMEOUT;
+        while (requests.size() <= index) {
+            long wait = end - System.currentTimeMillis();
+            if (wait <= 0) {
+                Checks.check(false, "request "+index+" arrives");
+            }
+            wait(wait);
+        }
+        return requests.get(index);
+    }
+
+    private synchronized void addRequest(int[] request) {
+        requests.add(request);
+        notifyAll();
+    }
+
+    @Override
+    public void run() {
+        try {
+            Socket socket = serverSocket.accept();
+            serverSocket.close();
+            DataInputStream in = new DataInputStream(new CountingInputStream(socket.getInputStream()));
+            OutputStream out = socket.getOutputStream();
+
+            byte[] version = new byte[12];
+            out.write("RFB 003.008\n".getBytes("US-ASCII"));
+            in.readFully(version);
+            // one security type: None
+            out.write(new byte[] { 1, RFBConnection.SECURITY_NONE });
+            in.readByte();
+            // SecurityResult: OK
+            out.write(new byte[] { 0, 0, 0, 0 });
+            // ClientInit
+            in.readByte();
+            // ServerInit: the size, a 32bpp pixel format, and a name
+            byte[] name = "fake".getBytes("US-ASCII");
+            out.write(new byte[] {
+                (byte)(width >> 8), (byte)width,
+                (byte)(height >> 8), (byte)height,
+                32, 24, 0, 1, 0, (byte)255, 0, (byte)255, 0, (byte)255, 16, 8, 0, 0, 0, 0,
+                0, 0, 0, (byte)name.length
+            });
+            out.write(name);
+            out.flush();
+            bytesReceived = 0;
+
+            while (true) {
+                int type = in.readUnsignedByte();
+                switch (type) {
+                case 0: // SetPixelFormat
+                    in.skipBytes(19);
+                    break;
+                case 2: // SetEncodings
+                    in.readByte();
+                    in.skipBytes(4 * in.readUnsignedShort());
+                    break;
+                case 3: // FramebufferUpdateRequest
+                    addRequest(new int[] {
+                        in.readUnsignedByte(),
+                        in.readUnsignedShort(), in.readUnsignedShort(),
+                        in.readUnsignedShort(), in.readUnsignedShort()
+                    });
+                    if (! silent) {
+                        if (answerDelay > 0) {
+                            Thread.sleep(answerDelay);
+                        }
+                        out.write(new byte[] { 0, 0, 0, 0 });
+                        out.flush();
+                    }
+                    break;
+                case 4: // KeyEvent
+                    in.skipBytes(7);
+                    break;
+                case 5: // PointerEvent
+                    in.skipBytes(5);
+                    break;
+                case 6: // ClientCutText
+                    in.skipBytes(3);
+                    in.skipBytes(in.readInt());
+                    break;
+                case 150: // EnableContinuousUpdates
+                    in.skipBytes(9);
+                    break;
+                default:
+                    throw new IOException("unexpected client message "+type);
+                }
+            }
+        } catch (IOException e) {
+            // the client hung up
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private class CountingInputStream extends FilterInputStream {
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                bytesReceived++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                bytesReceived += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            bytesReceived += skipped;
+            return skipped;
+        }
+    }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2011 David Simmons
+ * http://cafbit.com/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cafbit.valence.rfb;
+
+import static com.cafbit.valence.rfb.Checks.check;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+
+/**
+ * Checks the pings which the health check and the round trip
+ * measurement share, against a FakeRFBServer that answers each
+ * FramebufferUpdateRequest after ANSWER_DELAY:
+ *
+ * - only one ping is outstanding at a time, and a second sendPing()
+ *   waits for the first one rather than sending another;
+ * - the round trip measurement won't start while another ping is
+ *   outstanding, so it can't take that ping's answer as its own;
+ * - the answer is noticed by the receiving side as it arrives, and
+ *   only the measurement's own ping is timed;
+ * - once the server goes quiet, the ping stays unanswered.
+ *
+ * These are the calls RFBThread makes for MSG_HEALTH_CHECK and
+ * MSG_MEASURE_ROUND_TRIP.  Exits with status 1 on the first failed
+ * check.
+ *
+ * Usage: RFBPingCheck
+ */
+public class RFBPingCheck {
+
+    private static final int SCREEN_WIDTH = 640;
+    private static final int SCREEN_HEIGHT = 480;
+    private static final long ANSWER_DELAY = 100; // milliseconds
+    private static final long ANSWER_TIMEOUT = 2000; // milliseconds
+
+    private static int answers = 0;
+
+    public static void main(String[] args) throws Exception {
+        FakeRFBServer server = new FakeRFBServer(SCREEN_WIDTH, SCREEN_HEIGHT);
+        server.setAnswerDelay(ANSWER_DELAY);
+        server.start();
+        final RFBConnection conn = new RFBConnection(InetAddress.getByName("127.0.0.1"), server.getPort(), new RFBSecurityNone());
+        conn.connect();
+        final InputStream in = conn.getTransport().getInputStream();
+        conn.getTransport().setReadTimeout(0);
+        Thread receiver = new Thread("checkrecv") {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[1024];
+                try {
+                    while (in.read(buffer) >= 0) {
+                    }
+                } catch (IOException e) {
+                    // disconnected
+                }
+            }
+        };
+        receiver.setDaemon(true);
+        receiver.start();
+        conn.setOnPingAnswered(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (RFBPingCheck.class) {
+                    answers++;
+                    RFBPingCheck.class.notifyAll();
+                }
+            }
+        });
+        // let anything the handshake asked for arrive
+        Thread.sleep(ANSWER_DELAY*2);
+        long handshakeRoundTrip = conn.getRoundTripTime();
+
+        try {
+            // the health check's ping
+            int ping = conn.sendPing();
+            check(ping != 0, "a ping is sent");
+            check(conn.sendPing() == ping, "a second ping waits for the outstanding one");
+            check(! conn.startRoundTrip(), "the measurement waits for the outstanding ping");
+            awaitAnswers(1);
+            check(conn.isPingAnswered(ping), "the ping is answered");
+            check(conn.getRoundTripTime() == handshakeRoundTrip, "the health check's ping isn't timed");
+
+            // the measurement's own ping
+            check(conn.startRoundTrip(), "the measurement starts once no ping is outstanding");
+            int health = conn.sendPing();
+            check(health == ping+1, "the health check shares the measurement's ping");
+            awaitAnswers(2);
+            check(conn.isPingAnswered(health), "the measurement's ping is answered");
+            check(conn.getRoundTripTime() != handshakeRoundTrip, "the measurement's ping is timed");
+
+            // a cancelled measurement isn't recorded
+            long roundTrip = conn.getRoundTripTime();
+            check(conn.startRoundTrip(), "another measurement starts");
+            conn.cancelRoundTrip();
+            awaitAnswers(3);
+            check(conn.getRoundTripTime() == roundTrip, "a cancelled measurement isn't recorded");
+
+            // a server that has stopped answering
+            server.setSilent(true);
+            ping = conn.sendPing();
+            Thread.sleep(ANSWER_DELAY*3);
+            check(! conn.isPingAnswered(ping), "a silent server leaves the ping unanswered");
+        } finally {
+            conn.disconnect();
+        }
+        System.out.println("ok");
+    }
+
+    private static synchronized void awaitAnswers(int count) throws InterruptedException {
+        long end = System.currentTimeMillis() + ANSWER_TIMEOUT;
+        while (answers < count) {
+            long wait = end - System.currentTimeMillis();
+            if (wait <= 0) {
+                check(false, "ping answer "+count+" arrives");
+            }
+            RFBPingCheck.class.wait(wait);
+        }
+    }
+
+}